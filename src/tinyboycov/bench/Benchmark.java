@@ -0,0 +1,190 @@
+package tinyboycov.bench;
+
+import java.util.Locale;
+
+/**
+ * A minimal benchmark harness, in the spirit of JMH. Each benchmark is run for a
+ * number of warmup iterations (whose results are discarded, so the JIT compiler
+ * can settle) followed by a number of measured iterations. Results can be
+ * written as JSON in the same shape as JMH's, so they can be compared between
+ * builds.
+ *
+ * @author niraj
+ *
+ */
+public final class Benchmark {
+  /**
+   * An operation being benchmarked.
+   */
+  @FunctionalInterface
+  public interface Operation {
+    /**
+     * Run the operation once.
+     *
+     * @return the number of operations performed, which is used to compute
+     *         throughput.
+     * @throws Exception If something goes wrong.
+     */
+    long run() throws Exception;
+  }
+
+  /**
+   * Somewhere to put results which would otherwise be unused, so the JIT
+   * compiler cannot eliminate the work which produced them.
+   */
+  private static volatile long sink;
+
+  /**
+   * This class is not instantiable.
+   */
+  private Benchmark() {
+  }
+
+  /**
+   * Consume a value, so that the work which produced it cannot be eliminated.
+   *
+   * @param value The value.
+   */
+  public static void consume(long value) {
+    sink += value;
+  }
+
+  /**
+   * Consume an object, so that the work which produced it cannot be eliminated.
+   *
+   * @param value The object.
+   */
+  public static void consume(Object value) {
+    sink += System.identityHashCode(value);
+  }
+
+  /**
+   * Measure the throughput of an operation, by running it repeatedly for a fixed
+   * time in each iteration.
+   *
+   * @param name       Name of the benchmark.
+   * @param warmups    Number of warmup iterations.
+   * @param iterations Number of measured iterations.
+   * @param millis     Minimum duration of each iteration (in ms).
+   * @param op         The operation.
+   * @return the result (in operations per second).
+   * @throws Exception If the operation fails.
+   */
+  public static Result throughput(String name, int warmups, int iterations, long millis,
+      Operation op) throws Exception {
+    double[] samples = new double[iterations];
+    for (int i = -warmups; i < iterations; i++) {
+      long ops = 0;
+      long start = System.nanoTime();
+      long elapsed;
+      do {
+        ops += op.run();
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < millis * 1_000_000);
+      if (i >= 0) {
+        samples[i] = ops * 1e9 / elapsed;
+      }
+    }
+    return new Result(name, "thrpt", "ops/s", samples); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Measure the average time taken by an operation, by running it once in each
+   * iteration. This is intended for long-running operations.
+   *
+   * @param name       Name of the benchmark.
+   * @param warmups    Number of warmup iterations.
+   * @param iterations Number of measured iterations.
+   * @param op         The operation.
+   * @return the result (in seconds per operation).
+   * @throws Exception If the operation fails.
+   */
+  public static Result averageTime(String name, int warmups, int iterations, Operation op)
+      throws Exception {
+    double[] samples = new double[iterations];
+    for (int i = -warmups; i < iterations; i++) {
+      long start = System.nanoTime();
+      long ops = op.run();
+      long elapsed = System.nanoTime() - start;
+      if (i >= 0) {
+        samples[i] = elapsed / 1e9 / Math.max(1, ops);
+      }
+    }
+    return new Result(name, "avgt", "s/op", samples); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * The measurements taken for a single benchmark.
+   *
+   * @param name    Name of the benchmark.
+   * @param mode    Either <code>thrpt</code> (throughput) or <code>avgt</code>
+   *                (average time).
+   * @param unit    Unit of each measurement.
+   * @param samples Measurement from each iteration.
+   */
+  public record Result(String name, String mode, String unit, double[] samples) {
+    /**
+     * Get the mean of the measurements.
+     *
+     * @return the score.
+     */
+    public double score() {
+      double sum = 0;
+      for (double s : this.samples) {
+        sum += s;
+      }
+      return this.samples.length == 0 ? Double.NaN : sum / this.samples.length;
+    }
+
+    /**
+     * Get the (sample) standard deviation of the measurements.
+     *
+     * @return the error.
+     */
+    public double error() {
+      if (this.samples.length < 2) {
+        return Double.NaN;
+      }
+      double mean = score();
+      double sum = 0;
+      for (double s : this.samples) {
+        sum += (s - mean) * (s - mean);
+      }
+      return Math.sqrt(sum / (this.samples.length - 1));
+    }
+
+    /**
+     * Write this result as a JSON object, using the same field names as JMH.
+     *
+     * @param sb Where to write the object.
+     */
+    public void toJson(StringBuilder sb) {
+      sb.append("{\"benchmark\": \"").append(this.name).append('"'); //$NON-NLS-1$
+      sb.append(", \"mode\": \"").append(this.mode).append('"'); //$NON-NLS-1$
+      sb.append(", \"primaryMetric\": {\"score\": ").append(number(score())); //$NON-NLS-1$
+      sb.append(", \"scoreError\": ").append(number(error())); //$NON-NLS-1$
+      sb.append(", \"scoreUnit\": \"").append(this.unit).append('"'); //$NON-NLS-1$
+      sb.append(", \"rawData\": [["); //$NON-NLS-1$
+      for (int i = 0; i != this.samples.length; i++) {
+        sb.append(i == 0 ? "" : ", ").append(number(this.samples[i])); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      sb.append("]]}}"); //$NON-NLS-1$
+    }
+
+    /**
+     * Format a number for JSON, which has no representation of NaN.
+     *
+     * @param d The number.
+     * @return the formatted number.
+     */
+    private static String number(double d) {
+      return Double.isFinite(d) ? String.format(Locale.ROOT, "%.6g", Double.valueOf(d)) : "null"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%-40s %5s %14.3f +- %10.3f %s", this.name, this.mode, //$NON-NLS-1$
+          Double.valueOf(score()), Double.valueOf(error()), this.unit);
+    }
+  }
+}
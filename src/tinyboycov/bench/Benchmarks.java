@@ -0,0 +1,346 @@
+package tinyboycov.bench;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+import javr.core.AVR;
+import javr.io.HexFile;
+import tinyboy.core.ControlPad;
+import tinyboy.util.CoverageAnalysis;
+import tinyboycov.core.Combinations;
+import tinyboycov.core.CorpusEntry;
+import tinyboycov.core.InputNode;
+import tinyboycov.core.TinyBoyInputGenerator;
+import tinyboycov.util.FuzzDriver;
+import tinyboycov.util.FuzzEmulator;
+
+/**
+ * Benchmarks for the input generator, the emulator and the coverage pipeline as
+ * a whole. Each benchmark whose name contains one of the given filters is run
+ * (or all of them, if none are given), with results printed as they complete.
+ * With <code>-o file</code>, the results are also written to the file as JSON.
+ *
+ * @author niraj
+ *
+ */
+public final class Benchmarks {
+  /**
+   * Where to find the firmware images.
+   */
+  private static final String FIRMWARE_DIR = "tests" + File.separator; //$NON-NLS-1$
+
+  /**
+   * Firmware images, paired with the branch coverage they are expected to
+   * reach (as in the tests).
+   */
+  private static final String[][] FIRMWARES = {
+    { "blocks_1.hex", "95" }, { "blocks_2.hex", "95" }, { "blocks_3.hex", "95" }, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+    { "blocks_4.hex", "95" }, { "blocks_5.hex", "95" }, { "blocks_6.hex", "95" }, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+    { "blocks_7.hex", "95" }, { "blocker_1.hex", "85" }, { "blocker_2.hex", "85" }, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+    { "numbers_1.hex", "85" }, { "snake.hex", "85" }, { "tetris.hex", "85" } //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+  };
+
+  /**
+   * Number of warmup and measured iterations for fast benchmarks.
+   */
+  private static final int WARMUPS = 3;
+  private static final int ITERATIONS = 5;
+
+  /**
+   * Duration of each iteration of a fast benchmark (in ms).
+   */
+  private static final long ITERATION_MILLIS = 500;
+
+  /**
+   * Number of instructions executed by each emulator operation.
+   */
+  private static final int EMULATOR_STEPS = 10_000;
+
+  /**
+   * Time allowed for each run to reach the target coverage (in ms), after which
+   * the firmware image is skipped.
+   */
+  private static final long END_TO_END_TIMEOUT = 60_000;
+
+  /**
+   * Benchmarks whose names contain one of these are run (or all, if empty).
+   */
+  private final String[] filters;
+
+  /**
+   * Results of the benchmarks run so far.
+   */
+  private final ArrayList<Benchmark.Result> results = new ArrayList<>();
+
+  /**
+   * Construct a set of benchmarks.
+   *
+   * @param filters Benchmarks whose names contain one of these are run (or all,
+   *                if empty).
+   */
+  private Benchmarks(String[] filters) {
+    this.filters = filters;
+  }
+
+  /**
+   * Run the benchmarks.
+   *
+   * @param args Optional <code>-o file</code> for JSON output, followed by
+   *             filters.
+   * @throws Exception If something goes wrong.
+   */
+  public static void main(String[] args) throws Exception {
+    String output = null;
+    int i = 0;
+    if (args.length >= 2 && args[0].equals("-o")) { //$NON-NLS-1$
+      output = args[1];
+      i = 2;
+    }
+    Benchmarks benchmarks = new Benchmarks(Arrays.copyOfRange(args, i, args.length));
+    benchmarks.runGenerator();
+    benchmarks.runEmulator();
+    benchmarks.runEndToEnd();
+    if (output != null) {
+      try (Writer w = new FileWriter(output)) {
+        w.write(benchmarks.toJson());
+      }
+    }
+    // Stop any threads left behind
+    System.exit(0);
+  }
+
+  /**
+   * Benchmark the input generator.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  private void runGenerator() throws Exception {
+    final int numButtons = ControlPad.Button.values().length + 1;
+    run("generator.combinations", () -> { //$NON-NLS-1$
+      Combinations c = new Combinations(numButtons, 8);
+      long[] n = new long[1];
+      c.forEachRemaining(node -> n[0] += node.length());
+      Benchmark.consume(n[0]);
+      return Combinations.count(numButtons, 8);
+    });
+    // Inputs from a single generation, where many reach the same state
+    Random random = new Random(0);
+    ArrayList<CorpusEntry<Integer>> entries = new ArrayList<>();
+    byte[][] states = new byte[1000][];
+    for (int i = 0; i != states.length; i++) {
+      states[i] = new byte[608];
+      random.nextBytes(states[i]);
+    }
+    for (int i = 0; i != 10_000; i++) {
+      BitSet coverage = randomRuns(random, 8192);
+      byte[] state = states[random.nextInt(states.length)].clone();
+      entries.add(new CorpusEntry<>(Integer.valueOf(i), coverage, state, 0, 1));
+    }
+    run("generator.pruneInputs", () -> { //$NON-NLS-1$
+      Benchmark.consume(TinyBoyInputGenerator.pruneInputs(entries));
+      return entries.size();
+    });
+    BitSet[] coverages = new BitSet[1000];
+    for (int i = 0; i != coverages.length; i++) {
+      coverages[i] = randomRuns(random, 8192);
+    }
+    run("generator.subsumedBy", () -> { //$NON-NLS-1$
+      long n = 0;
+      for (int i = 0; i != coverages.length; i++) {
+        n += TinyBoyInputGenerator.subsumedBy(coverages[i], coverages[(i + 1) % coverages.length])
+            ? 1 : 0;
+      }
+      Benchmark.consume(n);
+      return coverages.length;
+    });
+    ArrayList<InputNode> frontier = new ArrayList<>();
+    new Combinations(numButtons, 4).forEachRemaining(frontier::add);
+    // Only the append is measured, not the construction of the generator
+    TinyBoyInputGenerator generator = new TinyBoyInputGenerator();
+    run("generator.addOneToAllSequences", () -> { //$NON-NLS-1$
+      Benchmark.consume(generator.addOneToAllSequences(frontier));
+      return frontier.size();
+    });
+  }
+
+  /**
+   * Benchmark the raw speed of the emulator on each firmware image, driven by
+   * random button presses. Instructions are executed one at a time, and then
+   * in batches up to each read of the buttons (as the fuzz driver does).
+   *
+   * @throws Exception If something goes wrong.
+   */
+  private void runEmulator() throws Exception {
+    for (String[] f : FIRMWARES) {
+      for (boolean batch : new boolean[] { false, true }) {
+        String name = (batch ? "emulator.batch:" : "emulator.steps:") + f[0]; //$NON-NLS-1$ //$NON-NLS-2$
+        if (!selected(name)) {
+          continue;
+        }
+        FuzzEmulator tinyBoy = new FuzzEmulator(false);
+        tinyBoy.upload(load(f[0]));
+        Random random = new Random(0);
+        Iterator<Boolean> input = new Iterator<>() {
+          @Override
+          public boolean hasNext() {
+            return true;
+          }
+
+          @Override
+          public Boolean next() {
+            return Boolean.valueOf(random.nextInt(8) == 0);
+          }
+        };
+        tinyBoy.reset();
+        tinyBoy.bind(input);
+        run(name, () -> {
+          long end = tinyBoy.getCycles() + EMULATOR_STEPS;
+          while (tinyBoy.getCycles() < end) {
+            try {
+              if (batch) {
+                tinyBoy.run((int) (end - tinyBoy.getCycles()));
+              } else {
+                tinyBoy.clock();
+              }
+            } catch (AVR.HaltedException e) {
+              tinyBoy.reset();
+            }
+          }
+          return EMULATOR_STEPS;
+        });
+        tinyBoy.destroy();
+      }
+    }
+  }
+
+  /**
+   * Benchmark the time taken to reach the target coverage on each firmware
+   * image, using a single thread and seeding inputs by concolic execution as
+   * the tests do. An image which does not reach the target within
+   * {@link #END_TO_END_TIMEOUT} is skipped, rather than holding up the rest.
+   *
+   * @throws Exception If something goes wrong.
+   */
+  private void runEndToEnd() throws Exception {
+    for (String[] f : FIRMWARES) {
+      String name = "coverage.timeToTarget:" + f[0]; //$NON-NLS-1$
+      if (!selected(name)) {
+        continue;
+      }
+      HexFile firmware = load(f[0]);
+      double target = Double.parseDouble(f[1]);
+      Benchmark.Result r;
+      try {
+        r = Benchmark.averageTime(name, 1, 3, () -> {
+          TinyBoyInputGenerator generator = new TinyBoyInputGenerator(1, firmware, false, true, null);
+          FuzzDriver<?> driver = new FuzzDriver<>(firmware, generator, false, 1, 128);
+          CoverageAnalysis coverage = driver.run(target, END_TO_END_TIMEOUT);
+          driver.destroy();
+          if (coverage.getBranchCoverage() < target) {
+            throw new TimeoutException();
+          }
+          Benchmark.consume(coverage);
+          return 1;
+        });
+      } catch (TimeoutException e) {
+        System.out.println(name + ": target not reached within " //$NON-NLS-1$
+            + END_TO_END_TIMEOUT + "ms"); //$NON-NLS-1$
+        continue;
+      }
+      record(r);
+    }
+  }
+
+  /**
+   * Run a fast benchmark, if it is selected.
+   *
+   * @param name Name of the benchmark.
+   * @param op   The operation to benchmark.
+   * @throws Exception If something goes wrong.
+   */
+  private void run(String name, Benchmark.Operation op) throws Exception {
+    if (selected(name)) {
+      record(Benchmark.throughput(name, WARMUPS, ITERATIONS, ITERATION_MILLIS, op));
+    }
+  }
+
+  /**
+   * Record (and print) the result of a benchmark.
+   *
+   * @param result The result.
+   */
+  private void record(Benchmark.Result result) {
+    this.results.add(result);
+    System.out.println(result);
+  }
+
+  /**
+   * Check whether a benchmark has been selected to run.
+   *
+   * @param name Name of the benchmark.
+   * @return True if selected, false otherwise.
+   */
+  private boolean selected(String name) {
+    for (String filter : this.filters) {
+      if (name.contains(filter)) {
+        return true;
+      }
+    }
+    return this.filters.length == 0;
+  }
+
+  /**
+   * Write the results of all benchmarks run as a JSON array.
+   *
+   * @return the JSON.
+   */
+  private String toJson() {
+    StringBuilder sb = new StringBuilder("[\n"); //$NON-NLS-1$
+    for (int i = 0; i != this.results.size(); i++) {
+      sb.append(i == 0 ? "  " : ",\n  "); //$NON-NLS-1$ //$NON-NLS-2$
+      this.results.get(i).toJson(sb);
+    }
+    return sb.append("\n]\n").toString(); //$NON-NLS-1$
+  }
+
+  /**
+   * Load a firmware image.
+   *
+   * @param filename File name of the firmware image.
+   * @return the firmware.
+   * @throws IOException If something goes wrong.
+   */
+  private static HexFile load(String filename) throws IOException {
+    try (FileReader fr = new FileReader(FIRMWARE_DIR + filename)) {
+      HexFile firmware = new HexFile.Reader(fr).readAll();
+      assert firmware != null;
+      return firmware;
+    }
+  }
+
+  /**
+   * Generate a random coverage set, made up of runs of instructions as real
+   * coverage is.
+   *
+   * @param random Source of randomness.
+   * @param size   Number of instructions.
+   * @return the coverage.
+   */
+  private static BitSet randomRuns(Random random, int size) {
+    BitSet bits = new BitSet(size);
+    for (int i = random.nextInt(64); i < size; i += random.nextInt(128)) {
+      int end = Math.min(size, i + random.nextInt(32));
+      bits.set(i, end);
+      i = end;
+    }
+    return bits;
+  }
+}
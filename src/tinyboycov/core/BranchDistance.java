@@ -0,0 +1,219 @@
+package tinyboycov.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import javr.core.AVR;
+import javr.core.AvrDecoder;
+import javr.core.AvrInstruction;
+import javr.io.HexFile;
+import javr.memory.ByteMemory;
+import tinyboy.util.CoverageAnalysis;
+
+/**
+ * A static control-flow graph of a firmware image, used to work out how close
+ * an input came to an uncovered branch. The graph is built once from the
+ * disassembly, and each time the global coverage grows the distance (in
+ * instructions) from every instruction to the nearest uncovered branch outcome
+ * is recomputed with a breadth-first search backwards from those outcomes. An
+ * input's distance is then the smallest distance of any instruction it covered,
+ * so inputs which got further towards code not yet covered can be expanded
+ * first. Calls are treated as reaching both the called code and the
+ * instruction after the call, and indirect jumps as reaching nothing, so the
+ * distances are approximate.
+ *
+ * @author niraj
+ *
+ */
+public final class BranchDistance {
+  /**
+   * Distance of an instruction from which no uncovered branch outcome can be
+   * reached.
+   */
+  public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  /**
+   * Number of bytes in the code memory of a TinyBoy.
+   */
+  private static final int CODE_SIZE = 8192;
+
+  /**
+   * Number of instructions (i.e. words) in the code memory.
+   */
+  private static final int INSTRUCTIONS = CODE_SIZE / 2;
+
+  /**
+   * Instructions from which control can pass directly to each instruction.
+   */
+  private final int[][] predecessors = new int[INSTRUCTIONS][];
+
+  /**
+   * Each reachable conditional branch, as its address followed by the addresses
+   * of its two outcomes.
+   */
+  private final int[][] branches;
+
+  /**
+   * Distance from each instruction to the nearest uncovered branch outcome.
+   */
+  private final int[] distance = new int[INSTRUCTIONS];
+
+  /**
+   * Build the control-flow graph of a firmware image. Initially, no branches are
+   * considered covered.
+   *
+   * @param firmware The firmware image.
+   */
+  public BranchDistance(HexFile firmware) {
+    CoverageAnalysis analysis = new CoverageAnalysis(firmware);
+    AvrDecoder decoder = new AvrDecoder();
+    AVR.Memory code = new ByteMemory(CODE_SIZE);
+    firmware.uploadTo(code);
+    int[] counts = new int[INSTRUCTIONS];
+    int[][] successors = new int[INSTRUCTIONS][];
+    ArrayList<int[]> found = new ArrayList<>();
+    for (int i = 0; i != INSTRUCTIONS;) {
+      if (analysis.isReachableInstruction(i)) {
+        AvrInstruction insn = decoder.decode(code, i);
+        int[] next = successors(decoder, code, i, insn);
+        if (analysis.isConditionalBranch(i) && next.length == 2) {
+          found.add(new int[] { i, next[0], next[1] });
+        }
+        for (int s : next) {
+          counts[s]++;
+        }
+        successors[i] = next;
+        i = i + insn.getWidth();
+      } else {
+        i = i + 1;
+      }
+    }
+    // Invert the successors
+    for (int i = 0; i != INSTRUCTIONS; i++) {
+      this.predecessors[i] = new int[counts[i]];
+    }
+    for (int i = 0; i != INSTRUCTIONS; i++) {
+      if (successors[i] != null) {
+        for (int s : successors[i]) {
+          this.predecessors[s][--counts[s]] = i;
+        }
+      }
+    }
+    this.branches = found.toArray(new int[found.size()][]);
+    update(new BitSet());
+  }
+
+  /**
+   * Recompute the distances, given the coverage obtained so far. Any outcome of
+   * a conditional branch which has not been covered becomes a target.
+   *
+   * @param coverage Coverage obtained by all inputs so far, where each set bit
+   *                 is the (byte) address of a covered instruction.
+   */
+  public void update(BitSet coverage) {
+    Arrays.fill(this.distance, UNREACHABLE);
+    int[] queue = new int[INSTRUCTIONS];
+    int head = 0;
+    int tail = 0;
+    for (int[] branch : this.branches) {
+      for (int k = 1; k != branch.length; k++) {
+        int target = branch[k];
+        if (!coverage.get(target * 2) && this.distance[target] != 0) {
+          this.distance[target] = 0;
+          queue[tail++] = target;
+        }
+      }
+    }
+    // Each instruction is queued at most once, when its distance is first set
+    while (head != tail) {
+      int i = queue[head++];
+      for (int p : this.predecessors[i]) {
+        if (this.distance[p] == UNREACHABLE) {
+          this.distance[p] = this.distance[i] + 1;
+          queue[tail++] = p;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the distance from an instruction to the nearest uncovered branch
+   * outcome.
+   *
+   * @param address The (word) address of the instruction.
+   * @return the distance in instructions, or {@link #UNREACHABLE}.
+   */
+  public int distanceFrom(int address) {
+    return this.distance[address];
+  }
+
+  /**
+   * Get the distance from the code covered by an input to the nearest uncovered
+   * branch outcome.
+   *
+   * @param coverage Coverage obtained by the input.
+   * @return the smallest distance of any instruction covered, or
+   *         {@link #UNREACHABLE}.
+   */
+  public int distanceOf(BitSet coverage) {
+    int min = UNREACHABLE;
+    for (int i = coverage.nextSetBit(0); i >= 0 && i < CODE_SIZE; i = coverage.nextSetBit(i + 1)) {
+      min = Math.min(min, this.distance[i >> 1]);
+    }
+    return min;
+  }
+
+  /**
+   * Determine where control can pass to after executing an instruction.
+   *
+   * @param decoder Decoder for the code memory.
+   * @param code    The code memory.
+   * @param address The (word) address of the instruction.
+   * @param insn    The instruction.
+   * @return the (word) addresses of its successors.
+   */
+  private static int[] successors(AvrDecoder decoder, AVR.Memory code, int address,
+      AvrInstruction insn) {
+    int next = address + insn.getWidth();
+    switch (insn.getOpcode()) {
+    case RJMP:
+      return new int[] { wrap(next + ((AvrInstruction.RelativeAddress) insn).k) };
+    case JMP:
+      return new int[] { wrap(((AvrInstruction.AbsoluteAddress) insn).k) };
+    case RCALL:
+      return new int[] { wrap(next + ((AvrInstruction.RelativeAddress) insn).k), wrap(next) };
+    case CALL:
+      return new int[] { wrap(((AvrInstruction.AbsoluteAddress) insn).k), wrap(next) };
+    case RET:
+    case RETI:
+    case IJMP:
+    case EIJMP:
+      // Returns are accounted for by the edge after each call
+      return new int[0];
+    case CPSE:
+    case SBIC:
+    case SBIS:
+    case SBRC:
+    case SBRS:
+      // Skip over the next instruction
+      return new int[] { wrap(next), wrap(next + decoder.decode(code, wrap(next)).getWidth()) };
+    default:
+      if (insn instanceof AvrInstruction.RelativeAddress r) {
+        return new int[] { wrap(next), wrap(next + r.k) };
+      } else if (insn instanceof AvrInstruction.FlagRelativeAddress r) {
+        return new int[] { wrap(next), wrap(next + r.k) };
+      }
+      return new int[] { wrap(next) };
+    }
+  }
+
+  /**
+   * Wrap an address around the code memory, as the program counter does.
+   *
+   * @param address The (word) address.
+   * @return the wrapped address.
+   */
+  private static int wrap(int address) {
+    return Math.floorMod(address, INSTRUCTIONS);
+  }
+}
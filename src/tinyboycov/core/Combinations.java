@@ -0,0 +1,203 @@
+package tinyboycov.core;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import org.eclipse.jdt.annotation.Nullable;
+import tinyboy.core.ControlPad;
+
+/**
+ * A lazy traversal over every input sequence of a given length, drawn from the
+ * first few of the buttons followed by no press. Combinations are produced in
+ * order (or in reverse order), with the first step varying slowest. Only the
+ * current path through the prefix tree is held, so each combination costs one
+ * new node (plus the occasional parent when a prefix changes), and memory is
+ * proportional to the sequence length rather than the number of combinations.
+ * The traversal can be split into ranges of combinations for parallel
+ * consumption.
+ *
+ * @author niraj
+ *
+ */
+public final class Combinations implements Spliterator<InputNode> {
+  /**
+   * Each button, followed by no press.
+   */
+  private static final ControlPad.@Nullable Button[] VALUES = values();
+
+  /**
+   * Number of choices at each step.
+   */
+  private final int numButtons;
+
+  /**
+   * Number of steps in each combination.
+   */
+  private final int length;
+
+  /**
+   * Flag to produce combinations in reverse order.
+   */
+  private final boolean descending;
+
+  /**
+   * Index of the next combination to produce.
+   */
+  private long index;
+
+  /**
+   * Index one past the last combination to produce.
+   */
+  private final long fence;
+
+  /**
+   * Choice at each step of the next combination.
+   */
+  private final int[] digits;
+
+  /**
+   * Prefixes of the next combination, where <code>path[i]</code> has length
+   * <code>i</code>.
+   */
+  private final InputNode[] path;
+
+  /**
+   * Length of the longest prefix in <code>path</code> which is up to date.
+   */
+  private int valid;
+
+  /**
+   * Construct a traversal over every combination of a given length.
+   *
+   * @param numButtons Number of choices at each step, taken from the buttons
+   *                   followed by no press.
+   * @param length     Number of steps in each combination.
+   */
+  public Combinations(int numButtons, int length) {
+    this(numButtons, length, false);
+  }
+
+  /**
+   * Construct a traversal over every combination of a given length, in either
+   * order.
+   *
+   * @param numButtons Number of choices at each step, taken from the buttons
+   *                   followed by no press.
+   * @param length     Number of steps in each combination.
+   * @param descending Flag to produce combinations in reverse order.
+   */
+  public Combinations(int numButtons, int length, boolean descending) {
+    this(numButtons, length, descending, 0, count(numButtons, length));
+  }
+
+  /**
+   * Construct a traversal over a range of the combinations of a given length.
+   *
+   * @param numButtons Number of choices at each step.
+   * @param length     Number of steps in each combination.
+   * @param descending Flag to produce combinations in reverse order.
+   * @param origin     Index of the first combination.
+   * @param fence      Index one past the last combination.
+   */
+  private Combinations(int numButtons, int length, boolean descending, long origin, long fence) {
+    if (numButtons < 1 || numButtons > VALUES.length) {
+      throw new IllegalArgumentException("invalid number of buttons: " + numButtons); //$NON-NLS-1$
+    }
+    this.numButtons = numButtons;
+    this.length = length;
+    this.descending = descending;
+    this.fence = fence;
+    this.digits = new int[length];
+    this.path = new InputNode[length + 1];
+    this.path[0] = InputNode.ROOT;
+    seek(origin);
+  }
+
+  /**
+   * Determine the number of combinations of a given length.
+   *
+   * @param numButtons Number of choices at each step.
+   * @param length     Number of steps in each combination.
+   * @return the number of combinations.
+   * @throws ArithmeticException If there are too many to count.
+   */
+  public static long count(int numButtons, int length) {
+    long n = 1;
+    for (int i = 0; i != length; i++) {
+      n = Math.multiplyExact(n, numButtons);
+    }
+    return n;
+  }
+
+  /**
+   * Get every button followed by no press, so that the choice for the last
+   * button is always no press.
+   *
+   * @return the choices.
+   */
+  private static ControlPad.@Nullable Button[] values() {
+    ControlPad.Button[] buttons = ControlPad.Button.values();
+    ControlPad.@Nullable Button[] values = new ControlPad.Button[buttons.length + 1];
+    System.arraycopy(buttons, 0, values, 0, buttons.length);
+    return values;
+  }
+
+  /**
+   * Move to a given combination, discarding the current path.
+   *
+   * @param i Index of the combination.
+   */
+  private void seek(long i) {
+    this.index = i;
+    for (int d = this.length - 1; d >= 0; d--) {
+      this.digits[d] = (int) (i % this.numButtons);
+      i /= this.numButtons;
+    }
+    this.valid = 0;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super InputNode> action) {
+    if (this.index >= this.fence) {
+      return false;
+    }
+    // Rebuild only the part of the path which changed. Reversing the choices
+    // at every step reverses the order of the combinations.
+    for (int d = this.valid; d != this.length; d++) {
+      int digit = this.digits[d];
+      this.path[d + 1] =
+          this.path[d].append(VALUES[this.descending ? this.numButtons - 1 - digit : digit]);
+    }
+    InputNode next = this.path[this.length];
+    // Increment digits, noting the longest prefix left unchanged
+    int d = this.length - 1;
+    while (d >= 0 && ++this.digits[d] == this.numButtons) {
+      this.digits[d--] = 0;
+    }
+    this.valid = Math.max(0, d);
+    this.index++;
+    action.accept(next);
+    return true;
+  }
+
+  @Override
+  public @Nullable Spliterator<InputNode> trySplit() {
+    long mid = (this.index + this.fence) >>> 1;
+    if (mid <= this.index) {
+      return null;
+    }
+    Combinations prefix =
+        new Combinations(this.numButtons, this.length, this.descending, this.index, mid);
+    seek(mid);
+    return prefix;
+  }
+
+  @Override
+  public long estimateSize() {
+    return this.fence - this.index;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | DISTINCT | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+  }
+}
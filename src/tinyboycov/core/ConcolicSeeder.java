@@ -0,0 +1,268 @@
+package tinyboycov.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import javr.core.AVR;
+import javr.io.HexFile;
+import org.eclipse.jdt.annotation.Nullable;
+import tinyboy.core.ControlPad;
+import tinyboycov.util.ConcolicEmulator;
+
+/**
+ * Generates seed inputs by concolic execution. An input is executed on a
+ * {@link ConcolicEmulator}, which records the path constraints on its steps
+ * made by conditional branches. For every constraint whose other outcome has
+ * not yet been covered, this solves for an input which takes that outcome.
+ * Since each step of an input takes one of only a few values (no button, or one
+ * of the buttons), but the firmware's arithmetic on them is not available
+ * symbolically, the solver is a local search over the latest steps of the
+ * input, extended by a few steps (those the constraint depends on first). Each
+ * step is changed in turn, and a change is kept whenever it brings the values
+ * compared by the branch closer together, until the other outcome is covered or
+ * the search runs out of executions. Only inputs which were found to take the other
+ * outcome are handed to the fuzzer as seeds.
+ *
+ * @author niraj
+ *
+ */
+public final class ConcolicSeeder {
+  /**
+   * Maximum number of steps changed whilst solving each constraint.
+   */
+  private static final int MAX_VARIABLES = 8;
+
+  /**
+   * Number of steps added to an input whilst solving its constraints.
+   */
+  private static final int EXTRA_STEPS = 2;
+
+  /**
+   * Maximum number of executions made by each call to
+   * {@link #solve(List, BitSet, int)}.
+   */
+  private static final int MAX_EXECUTIONS = 128;
+
+  /**
+   * All values a step can take: no button, followed by each button.
+   */
+  private static final ControlPad.@Nullable Button[] VALUES = { null, ControlPad.Button.UP,
+    ControlPad.Button.DOWN, ControlPad.Button.LEFT, ControlPad.Button.RIGHT };
+
+  /**
+   * The emulator used for concolic execution.
+   */
+  private final ConcolicEmulator emulator = new ConcolicEmulator();
+
+  /**
+   * Branch outcomes already solved for, which are never solved for again.
+   */
+  private final HashSet<Integer> solved = new HashSet<>();
+
+  /**
+   * Number of executions left in the current call to
+   * {@link #solve(List, BitSet, int)}.
+   */
+  private int executions;
+
+  /**
+   * Create a seeder for a given firmware image.
+   *
+   * @param firmware The firmware image.
+   */
+  public ConcolicSeeder(HexFile firmware) {
+    this.emulator.upload(firmware);
+  }
+
+  /**
+   * Execute inputs concolically in turn, and solve for inputs which flip their
+   * branches whose other outcome has not been covered. This stops once enough
+   * inputs have been produced, or the executions allowed have been used up.
+   *
+   * @param inputs   The inputs to execute, most promising first.
+   * @param coverage Coverage obtained by all inputs so far.
+   * @param limit    Maximum number of inputs to produce.
+   * @return The inputs produced, in the order they were found.
+   */
+  public ArrayList<InputNode> solve(List<InputNode> inputs, BitSet coverage, int limit) {
+    ArrayList<InputNode> solutions = new ArrayList<>();
+    this.executions = MAX_EXECUTIONS;
+    for (InputNode input : inputs) {
+      if (solutions.size() >= limit || this.executions-- <= 0) {
+        break;
+      }
+      execute(input);
+      for (ConcolicEmulator.Constraint c : this.emulator.getConstraints()) {
+        if (solutions.size() >= limit || this.executions <= 0) {
+          break;
+        }
+        Integer other = Integer.valueOf(c.other());
+        if (!coverage.get(c.other() * 2) && c.step() >= 0 && !this.solved.contains(other)) {
+          InputNode s = solve(input, c);
+          if (s != null) {
+            this.solved.add(other);
+            solutions.add(s);
+          }
+        }
+      }
+    }
+    return solutions;
+  }
+
+  /**
+   * Search for an input which takes the other outcome of a single constraint.
+   *
+   * @param input The input executed.
+   * @param c     The constraint.
+   * @return the input found, or <code>null</code> if none was found.
+   */
+  private @Nullable InputNode solve(InputNode input, ConcolicEmulator.Constraint c) {
+    // The branch must be reached, and may need a few more steps to flip
+    int length = Math.max(c.step() + 1, input.length()) + EXTRA_STEPS;
+    PackedSequence steps = input.pack();
+    int[] values = new int[length];
+    for (int s = 0; s < length && s < steps.length(); s++) {
+      values[s] = indexOf(steps.getButton(s));
+    }
+    int[] variables = variables(c, length);
+    int best = c.distance();
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (int v : variables) {
+        int original = values[v];
+        for (int value = 0; value != VALUES.length && !improved; value++) {
+          if (value == original) {
+            continue;
+          } else if (this.executions-- <= 0) {
+            return null;
+          }
+          values[v] = value;
+          InputNode candidate = build(input, values);
+          execute(candidate);
+          if (this.emulator.getCoverage().get(c.other() * 2)) {
+            return candidate;
+          }
+          int distance = distanceOf(c);
+          if (distance < best) {
+            best = distance;
+            improved = true;
+          } else {
+            values[v] = original;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Choose the steps which are changed whilst solving a constraint: those it
+   * depends on, followed by the others, latest first in each case.
+   *
+   * @param c      The constraint.
+   * @param length The number of steps in the input being solved for.
+   * @return the steps.
+   */
+  private static int[] variables(ConcolicEmulator.Constraint c, int length) {
+    int[] variables = new int[Math.min(MAX_VARIABLES, length)];
+    int n = 0;
+    for (int s = length - 1; s >= 0 && n != variables.length; s--) {
+      if (s < ConcolicEmulator.MAX_STEPS && (c.inputs() & (1L << s)) != 0) {
+        variables[n++] = s;
+      }
+    }
+    for (int s = length - 1; s >= 0 && n != variables.length; s--) {
+      if (s >= ConcolicEmulator.MAX_STEPS || (c.inputs() & (1L << s)) == 0) {
+        variables[n++] = s;
+      }
+    }
+    return variables;
+  }
+
+  /**
+   * Find how close the last execution came to flipping a constraint.
+   *
+   * @param c The constraint.
+   * @return the distance recorded for the same branch outcome, or
+   *         {@link Integer#MAX_VALUE} if the branch was not reached with its
+   *         condition depending on the input.
+   */
+  private int distanceOf(ConcolicEmulator.Constraint c) {
+    int distance = Integer.MAX_VALUE;
+    for (ConcolicEmulator.Constraint d : this.emulator.getConstraints()) {
+      if (d.address() == c.address() && d.other() == c.other()) {
+        distance = d.distance();
+      }
+    }
+    return distance;
+  }
+
+  /**
+   * Execute an input concolically from reset.
+   *
+   * @param input The input.
+   */
+  private void execute(InputNode input) {
+    this.emulator.reset();
+    InputNode.Cursor cursor = input.cursor();
+    this.emulator.bind(cursor);
+    try {
+      while (cursor.hasNext()) {
+        this.emulator.clock();
+      }
+    } catch (AVR.HaltedException e) {
+      // Program halted, so execution is complete
+    }
+  }
+
+  /**
+   * Build an input from a sequence of values, sharing as much of an existing
+   * input as possible.
+   *
+   * @param input  The existing input.
+   * @param values The index into {@link #VALUES} of each step.
+   * @return the input.
+   */
+  private static InputNode build(InputNode input, int[] values) {
+    InputNode node = input;
+    while (node.length() > values.length) {
+      InputNode p = node.getParent();
+      assert p != null;
+      node = p;
+    }
+    // Drop every step from the first which differs
+    for (InputNode n = node; n.length() > 0; n = parentOf(n)) {
+      if (indexOf(n.getButton()) != values[n.length() - 1]) {
+        node = parentOf(n);
+      }
+    }
+    for (int s = node.length(); s != values.length; s++) {
+      node = node.append(VALUES[values[s]]);
+    }
+    return node;
+  }
+
+  /**
+   * Get the parent of a non-empty input.
+   *
+   * @param node The input.
+   * @return its parent.
+   */
+  private static InputNode parentOf(InputNode node) {
+    InputNode p = node.getParent();
+    assert p != null;
+    return p;
+  }
+
+  /**
+   * Find the index of a step's value in {@link #VALUES}.
+   *
+   * @param b The button pressed, or <code>null</code> for none.
+   * @return the index.
+   */
+  private static int indexOf(ControlPad.@Nullable Button b) {
+    return b == null ? 0 : b.ordinal() + 1;
+  }
+}
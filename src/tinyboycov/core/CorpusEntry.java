@@ -0,0 +1,73 @@
+package tinyboycov.core;
+
+import java.util.BitSet;
+import java.util.Objects;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A single executed input, along with the coverage and final state it produced,
+ * the number of coverage bits it contributed which had not been seen before,
+ * the number of new hit count buckets it reached and how many inputs of its
+ * generation reached the same state. Overidden functions are to conform to
+ * safety critical standards.
+ *
+ * @author niraj
+ *
+ * @param <T>     type of input
+ * @param input   The input which was executed.
+ * @param coverage The instructions covered by the input.
+ * @param state   The final state reached by the input.
+ * @param newBits Number of coverage bits (and edges) first seen with this input.
+ * @param newCounts Number of instructions whose hit count bucket was first
+ *                reached by this input.
+ * @param stateHits Number of inputs in the same generation which reached the
+ *                same final state (including this one).
+ */
+public record CorpusEntry<T>(T input, BitSet coverage, byte[] state, int newBits,
+    int newCounts, int stateHits) {
+  /**
+   * Create an entry which reached no new hit count buckets.
+   *
+   * @param input     The input which was executed.
+   * @param coverage  The instructions covered by the input.
+   * @param state     The final state reached by the input.
+   * @param newBits   Number of coverage bits first seen with this input.
+   * @param stateHits Number of inputs in the same generation which reached the
+   *                  same final state (including this one).
+   */
+  public CorpusEntry(T input, BitSet coverage, byte[] state, int newBits, int stateHits) {
+    this(input, coverage, state, newBits, 0, stateHits);
+  }
+
+  /**
+   * Get a copy of this entry with a different number of state hits.
+   *
+   * @param hits Number of inputs which reached the same final state.
+   * @return the updated entry.
+   */
+  public CorpusEntry<T> withStateHits(int hits) {
+    return new CorpusEntry<>(this.input, this.coverage, this.state, this.newBits, this.newCounts,
+        hits);
+  }
+
+
+  @Override
+  public boolean equals(@Nullable Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    CorpusEntry<?> other = (CorpusEntry<?>) obj;
+    return Objects.equals(this.input, other.input) && Objects.equals(this.coverage, other.coverage)
+        && Objects.equals(this.state, other.state) && this.newBits == other.newBits
+        && this.newCounts == other.newCounts && this.stateHits == other.stateHits;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.input, this.coverage, this.state, Integer.valueOf(this.newBits),
+        Integer.valueOf(this.newCounts), Integer.valueOf(this.stateHits));
+  }
+}
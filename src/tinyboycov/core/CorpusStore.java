@@ -0,0 +1,207 @@
+package tinyboycov.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import javr.io.HexFile;
+import javr.memory.ByteMemory;
+
+/**
+ * A corpus of interesting inputs persisted on disk between runs, so that a run
+ * against firmware which has been fuzzed before can start from where the last
+ * one left off. Each firmware image has its own file, named by the SHA-256 hash
+ * of its code, so changing the firmware in any way starts a fresh corpus.
+ * Only a minimal set of inputs is stored: those chosen by
+ * {@link CoverageMinimiser} to preserve the coverage of every input saved.
+ * <p>
+ * The file is a compact binary format: a header (magic number, version, hash
+ * of the firmware and number of entries), followed by each entry as its length
+ * in steps, its packed steps (see {@link PackedSequence}) and its coverage
+ * bitmap as a length-prefixed little-endian byte array. A file which cannot be
+ * read is ignored, since the corpus only ever speeds a run up. This includes a
+ * file saved for other firmware (for instance, one copied or renamed), one
+ * which is truncated or has bytes left over after the last entry, and one
+ * whose sizes are corrupt: no array is allocated which would be larger than
+ * the file itself.
+ *
+ * @author niraj
+ *
+ */
+public final class CorpusStore {
+  /**
+   * Marks the start of a corpus file ("TBCS").
+   */
+  private static final int MAGIC = 0x54424353;
+
+  /**
+   * Version of the file format, bumped whenever it changes.
+   */
+  private static final int VERSION = 2;
+
+  /**
+   * Extension of corpus files.
+   */
+  private static final String EXTENSION = ".corpus"; //$NON-NLS-1$
+
+  /**
+   * Size of the code memory of a TinyBoy (in bytes), which is hashed.
+   */
+  private static final int CODE_SIZE = 8192;
+
+  /**
+   * The SHA-256 hash of the firmware's code.
+   */
+  private final byte[] hash;
+
+  /**
+   * The file holding the corpus.
+   */
+  private final File file;
+
+  /**
+   * Create a store for the corpus of a given firmware image, within a given
+   * directory (which is created when the corpus is first saved).
+   *
+   * @param dir      The directory holding corpus files.
+   * @param firmware The firmware image.
+   */
+  public CorpusStore(File dir, HexFile firmware) {
+    this.hash = hash(firmware);
+    this.file = new File(dir, HexFormat.of().formatHex(this.hash) + EXTENSION);
+  }
+
+  /**
+   * Get the file holding the corpus.
+   *
+   * @return the file.
+   */
+  public File getFile() {
+    return this.file;
+  }
+
+  /**
+   * Load the corpus saved by an earlier run. Loaded entries have no final state,
+   * since this is not persisted.
+   *
+   * @return the entries loaded, in the order saved, which is empty if there is
+   *         no corpus or it cannot be read.
+   */
+  public ArrayList<CorpusEntry<PackedSequence>> load() {
+    ArrayList<CorpusEntry<PackedSequence>> entries = new ArrayList<>();
+    if (!this.file.exists()) {
+      return entries;
+    }
+    long size = this.file.length();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return entries;
+      }
+      byte[] h = new byte[this.hash.length];
+      in.readFully(h);
+      if (!Arrays.equals(h, this.hash)) {
+        return entries;
+      }
+      int n = in.readInt();
+      for (int i = 0; i != n; i++) {
+        int length = in.readInt();
+        if (length < 0 || length / PackedSequence.STEPS_PER_WORD * (long) Long.BYTES > size) {
+          return new ArrayList<>();
+        }
+        long[] words = new long[PackedSequence.wordsFor(length)];
+        for (int w = 0; w != words.length; w++) {
+          words[w] = in.readLong();
+        }
+        int count = in.readInt();
+        if (count < 0 || count > size) {
+          return new ArrayList<>();
+        }
+        byte[] bytes = new byte[count];
+        in.readFully(bytes);
+        entries.add(new CorpusEntry<>(new PackedSequence(words, length), BitSet.valueOf(bytes),
+            new byte[0], 0, 1));
+      }
+      if (in.read() != -1) {
+        // Something other than this corpus follows it
+        return new ArrayList<>();
+      }
+      return entries;
+    } catch (IOException | NegativeArraySizeException e) {
+      // Unreadable, truncated or corrupt, so start afresh
+      return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Save a minimal set of inputs preserving the coverage of the given entries,
+   * replacing any corpus saved before. The file is replaced atomically, so a
+   * run which is killed whilst saving leaves the previous corpus intact.
+   *
+   * @param entries The entries to choose from, most preferred first.
+   * @throws IOException If the corpus could not be written.
+   */
+  public void save(List<CorpusEntry<PackedSequence>> entries) throws IOException {
+    ArrayList<CorpusEntry<PackedSequence>> cover = CoverageMinimiser.minimise(entries);
+    File dir = this.file.getAbsoluteFile().getParentFile();
+    Files.createDirectories(dir.toPath());
+    File tmp = File.createTempFile(this.file.getName(), null, dir);
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(this.hash);
+        out.writeInt(cover.size());
+        for (CorpusEntry<PackedSequence> e : cover) {
+          PackedSequence input = e.input();
+          out.writeInt(input.length());
+          for (int w = 0; w != PackedSequence.wordsFor(input.length()); w++) {
+            out.writeLong(input.getWord(w));
+          }
+          byte[] bytes = e.coverage().toByteArray();
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+      }
+      Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  /**
+   * Hash the code of a firmware image, as it is uploaded to the TinyBoy.
+   *
+   * @param firmware The firmware image.
+   * @return the SHA-256 hash.
+   */
+  private static byte[] hash(HexFile firmware) {
+    ByteMemory code = new ByteMemory(CODE_SIZE);
+    firmware.uploadTo(code);
+    byte[] bytes = new byte[CODE_SIZE];
+    for (int i = 0; i != CODE_SIZE; i++) {
+      bytes[i] = code.peek(i);
+    }
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes); //$NON-NLS-1$
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+}
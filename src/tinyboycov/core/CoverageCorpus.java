@@ -0,0 +1,343 @@
+package tinyboycov.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A coverage-guided corpus of inputs waiting to be expanded. The corpus
+ * maintains the global coverage obtained by all inputs executed so far, and
+ * scores each input by the number of coverage bits it contributed which no
+ * earlier input had covered. Inputs which found new coverage are always
+ * scheduled for expansion ahead of those which did not, regardless of which
+ * generation they were found in. Amongst inputs which found the same amount of
+ * new coverage, some can be marked as favoured (e.g. because they form a
+ * minimal cover of their generation) and these are scheduled ahead of the rest,
+ * which are only kept in reserve. Only inputs which found new coverage are ever
+ * favoured, so this never overrides the rule above. After that, those whose
+ * instructions were executed a number of times not seen before (i.e. reached
+ * new hit count buckets) come first, since they made progress in loops and
+ * counters which coverage alone cannot see. Then, those reaching a rare final
+ * state (i.e. one reached by few other inputs of their generation) are
+ * preferred, since a state reached by many inputs usually means most of the
+ * buttons pressed had no effect. When a distance function is given (e.g. from a
+ * {@link BranchDistance}), inputs which got closest to an uncovered branch are
+ * preferred ahead of rare states, since they are most likely to cover it when
+ * extended. The coverage and final state of waiting inputs can be kept off the
+ * heap in a {@link RecordStore}, so that only the inputs themselves (and their
+ * scores) are held by the queue.
+ *
+ * @param <T> type of input
+ *
+ * @author niraj
+ *
+ */
+public class CoverageCorpus<T> {
+  /**
+   * Coverage of an entry whose coverage is held in the store.
+   */
+  private static final BitSet EMPTY_COVERAGE = new BitSet();
+
+  /**
+   * Final state of an entry whose final state is held in the store.
+   */
+  private static final byte[] EMPTY_STATE = new byte[0];
+
+  /**
+   * Union of the coverage of every input recorded so far.
+   */
+  private final BitSet coverage = new BitSet();
+
+  /**
+   * Number of bits set in the global coverage.
+   */
+  private int covered;
+
+  /**
+   * Inputs waiting to be expanded, best first.
+   */
+  private final PriorityQueue<Queued<T>> queue = new PriorityQueue<>();
+
+  /**
+   * Maximum number of inputs waiting to be expanded.
+   */
+  private final int capacity;
+
+  /**
+   * Number of inputs added to the queue so far, used to break ties.
+   */
+  private long added;
+
+  /**
+   * Distance from the coverage of an input to the nearest uncovered branch, or
+   * null if distance is ignored.
+   */
+  private final @Nullable ToIntFunction<BitSet> distance;
+
+  /**
+   * Maximum number of bits in the coverage of an input, or zero if waiting
+   * inputs are kept on the heap.
+   */
+  private final int coverageBits;
+
+  /**
+   * Holds the coverage and final state of waiting inputs off the heap, which is
+   * created once the length of a state is known (or null if not yet created or
+   * waiting inputs are kept on the heap).
+   */
+  private @Nullable RecordStore store;
+
+  /**
+   * Create an empty corpus.
+   *
+   * @param capacity Maximum number of inputs waiting to be expanded. Once this is
+   *                 exceeded, the worst waiting inputs are dropped.
+   */
+  public CoverageCorpus(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * Create an empty corpus which prefers inputs closest to an uncovered branch.
+   *
+   * @param capacity Maximum number of inputs waiting to be expanded. Once this is
+   *                 exceeded, the worst waiting inputs are dropped.
+   * @param distance Distance from the coverage of an input to the nearest
+   *                 uncovered branch, or null to ignore distance.
+   */
+  public CoverageCorpus(int capacity, @Nullable ToIntFunction<BitSet> distance) {
+    this(capacity, distance, 0);
+  }
+
+  /**
+   * Create an empty corpus which prefers inputs closest to an uncovered branch,
+   * and optionally keeps the coverage and final state of waiting inputs off the
+   * heap. Every final state must then have the same length.
+   *
+   * @param capacity     Maximum number of inputs waiting to be expanded. Once
+   *                     this is exceeded, the worst waiting inputs are dropped.
+   * @param distance     Distance from the coverage of an input to the nearest
+   *                     uncovered branch, or null to ignore distance.
+   * @param coverageBits Maximum number of bits in the coverage of an input, or
+   *                     zero to keep waiting inputs on the heap.
+   */
+  public CoverageCorpus(int capacity, @Nullable ToIntFunction<BitSet> distance,
+      int coverageBits) {
+    this.capacity = capacity;
+    this.distance = distance;
+    this.coverageBits = coverageBits;
+  }
+
+  /**
+   * Merge the coverage of an executed input into the global coverage.
+   *
+   * @param inputCoverage Coverage obtained by the input.
+   * @return The number of bits in the input's coverage which were not previously
+   *         covered.
+   */
+  public int record(BitSet inputCoverage) {
+    this.coverage.or(inputCoverage);
+    int before = this.covered;
+    this.covered = this.coverage.cardinality();
+    return this.covered - before;
+  }
+
+  /**
+   * Get the number of bits covered by all inputs recorded so far.
+   *
+   * @return the number of covered bits.
+   */
+  public int getCovered() {
+    return this.covered;
+  }
+
+  /**
+   * Get the union of the coverage of all inputs recorded so far. The returned
+   * set must not be modified.
+   *
+   * @return the global coverage.
+   */
+  public BitSet getCoverage() {
+    return this.coverage;
+  }
+
+  /**
+   * Add entries to the queue of inputs waiting to be expanded.
+   *
+   * @param entries  Entries to be added.
+   * @param favoured Whether those entries which found new coverage should be
+   *                 expanded ahead of any unfavoured entries.
+   */
+  public void addAll(List<CorpusEntry<T>> entries, boolean favoured) {
+    for (CorpusEntry<T> entry : entries) {
+      // Only favour entries which found something, so none can jump ahead of
+      // one which found new coverage
+      boolean f = favoured && entry.newBits() != 0;
+      int d = distanceOf(entry.coverage());
+      RecordStore s = storeFor(entry);
+      if (s == null) {
+        this.queue.add(new Queued<>(entry, -1, f, d, this.added++));
+      } else {
+        // Keep only the input and its scores on the heap
+        CorpusEntry<T> stub = new CorpusEntry<>(entry.input(), EMPTY_COVERAGE, EMPTY_STATE,
+            entry.newBits(), entry.newCounts(), entry.stateHits());
+        this.queue.add(new Queued<>(stub, s.add(entry.coverage(), entry.state()), f, d,
+            this.added++));
+      }
+    }
+    if (this.queue.size() > this.capacity) {
+      // Rare, so simply rebuild keeping the best entries
+      ArrayList<Queued<T>> best = new ArrayList<>();
+      while (best.size() < this.capacity) {
+        best.add(this.queue.remove());
+      }
+      for (Queued<T> q : this.queue) {
+        release(q);
+      }
+      this.queue.clear();
+      this.queue.addAll(best);
+    }
+  }
+
+  /**
+   * Recompute the distance of every entry waiting to be expanded. This should be
+   * called whenever the distance function changes, for example because the
+   * global coverage has grown.
+   */
+  public void reprioritise() {
+    if (this.distance != null) {
+      ArrayList<Queued<T>> all = new ArrayList<>(this.queue);
+      this.queue.clear();
+      for (Queued<T> q : all) {
+        int d = distanceOf(q.slot() < 0 ? q.entry().coverage() : coverageOf(q.slot()));
+        this.queue.add(new Queued<>(q.entry(), q.slot(), q.favoured(), d, q.order()));
+      }
+    }
+  }
+
+  /**
+   * Work out the distance from the coverage of an entry to the nearest
+   * uncovered branch.
+   *
+   * @param entryCoverage The coverage of the entry.
+   * @return the distance, or zero if distance is ignored.
+   */
+  private int distanceOf(BitSet entryCoverage) {
+    ToIntFunction<BitSet> d = this.distance;
+    return d == null ? 0 : d.applyAsInt(entryCoverage);
+  }
+
+  /**
+   * Get the store to keep an entry in, creating it for the first entry.
+   *
+   * @param entry The entry.
+   * @return the store, or null if waiting entries are kept on the heap.
+   */
+  private @Nullable RecordStore storeFor(CorpusEntry<T> entry) {
+    RecordStore s = this.store;
+    if (s == null && this.coverageBits != 0) {
+      s = new RecordStore(this.coverageBits, entry.state().length);
+      this.store = s;
+    }
+    return s;
+  }
+
+  /**
+   * Get the coverage of an entry held in the store.
+   *
+   * @param slot The slot holding the entry.
+   * @return the coverage.
+   */
+  private BitSet coverageOf(int slot) {
+    RecordStore s = this.store;
+    assert s != null;
+    return s.getCoverage(slot);
+  }
+
+  /**
+   * Remove an entry from the queue, reading its coverage and final state back
+   * from the store (if it is held there) and releasing its slot.
+   *
+   * @param q The queued entry.
+   * @return the entry.
+   */
+  private CorpusEntry<T> release(Queued<T> q) {
+    RecordStore s = this.store;
+    if (q.slot() < 0 || s == null) {
+      return q.entry();
+    }
+    CorpusEntry<T> e = q.entry();
+    CorpusEntry<T> entry = new CorpusEntry<>(e.input(), s.getCoverage(q.slot()),
+        s.getState(q.slot()), e.newBits(), e.newCounts(), e.stateHits());
+    s.remove(q.slot());
+    return entry;
+  }
+
+  /**
+   * Remove up to <code>n</code> of the best entries waiting to be expanded.
+   * Favoured entries (which always found new coverage) come first, then those
+   * which found the most new coverage, then those which reached the most new
+   * hit count buckets, then those closest to an uncovered branch and then those
+   * with the rarest final state, with any remaining ties broken in favour of
+   * the most recently added entry.
+   *
+   * @param n Maximum number of entries to remove.
+   * @return The removed entries, best first.
+   */
+  public ArrayList<CorpusEntry<T>> schedule(int n) {
+    ArrayList<CorpusEntry<T>> scheduled = new ArrayList<>();
+    while (scheduled.size() < n && !this.queue.isEmpty()) {
+      scheduled.add(release(this.queue.remove()));
+    }
+    return scheduled;
+  }
+
+  /**
+   * Get the number of entries waiting to be expanded.
+   *
+   * @return the number of waiting entries.
+   */
+  public int size() {
+    return this.queue.size();
+  }
+
+  /**
+   * An entry in the queue, ordered by whether it is favoured, then the new
+   * coverage it found, then the new hit count buckets it reached, then its
+   * distance to an uncovered branch, then by how rare its final state is and
+   * finally by when it was added.
+   *
+   * @param <T>      type of input
+   * @param entry    The corpus entry, whose coverage and final state are empty if
+   *                 they are held in the store.
+   * @param slot     The slot holding the entry in the store, or -1 if it is
+   *                 held on the heap.
+   * @param favoured Whether the entry is favoured, which implies it found new
+   *                 coverage.
+   * @param distance Distance to the nearest uncovered branch.
+   * @param order    Position in which the entry was added.
+   */
+  private record Queued<T>(CorpusEntry<T> entry, int slot, boolean favoured, int distance,
+      long order) implements Comparable<Queued<T>> {
+    @Override
+    public int compareTo(Queued<T> other) {
+      int c = Boolean.compare(other.favoured, this.favoured);
+      if (c == 0) {
+        c = Integer.compare(other.entry.newBits(), this.entry.newBits());
+      }
+      if (c == 0) {
+        c = Integer.compare(other.entry.newCounts(), this.entry.newCounts());
+      }
+      if (c == 0) {
+        c = Integer.compare(this.distance, other.distance);
+      }
+      if (c == 0) {
+        c = Integer.compare(this.entry.stateHits(), other.entry.stateHits());
+      }
+      return c != 0 ? c : Long.compare(other.order, this.order);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package tinyboycov.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Reduces a set of executed inputs to a small subset which still covers every
+ * coverage bit covered by the whole set. Finding the smallest such subset is the
+ * set cover problem, so the classic greedy approximation is used: repeatedly
+ * pick the input covering the most bits not yet covered. Gains only ever shrink
+ * as bits become covered, so they are re-evaluated lazily from a max-heap which
+ * means most inputs are only examined a handful of times. All bitmap operations
+ * work directly on <code>long</code> words, and no memory is allocated once the
+ * coverage of each input has been unpacked.
+ *
+ * @author niraj
+ *
+ */
+public class CoverageMinimiser {
+  /**
+   * Utility class.
+   */
+  private CoverageMinimiser() {
+  }
+
+  /**
+   * Compute a greedy minimal cover of the given inputs. Amongst inputs with the
+   * same gain, the earliest in the list is chosen.
+   *
+   * @param <T>    type of input
+   * @param inputs A list of executed inputs, along with their coverage.
+   * @return The inputs making up the cover, in their original order.
+   */
+  public static <T> ArrayList<CorpusEntry<T>> minimise(List<CorpusEntry<T>> inputs) {
+    ArrayList<CorpusEntry<T>> cover = new ArrayList<>();
+    BitSet chosen = cover(inputs);
+    for (int i = chosen.nextSetBit(0); i >= 0; i = chosen.nextSetBit(i + 1)) {
+      cover.add(inputs.get(i));
+    }
+    return cover;
+  }
+
+  /**
+   * Compute a greedy minimal cover of the given inputs, as for
+   * <code>minimise()</code>.
+   *
+   * @param <T>    type of input
+   * @param inputs A list of executed inputs, along with their coverage.
+   * @return The indices of the inputs making up the cover.
+   */
+  public static <T> BitSet cover(List<CorpusEntry<T>> inputs) {
+    int n = inputs.size();
+    long[][] words = new long[n][];
+    int width = 0;
+    for (int i = 0; i != n; i++) {
+      words[i] = inputs.get(i).coverage().toLongArray();
+      width = Math.max(width, words[i].length);
+    }
+    // Determine everything which needs to be covered
+    long[] uncovered = new long[width];
+    for (long[] w : words) {
+      for (int j = 0; j != w.length; j++) {
+        uncovered[j] |= w[j];
+      }
+    }
+    // Initial gains are simply the number of bits covered by each input
+    int[] gains = new int[n];
+    int[] heap = new int[n];
+    for (int i = 0; i != n; i++) {
+      gains[i] = count(words[i], uncovered);
+      heap[i] = i;
+    }
+    for (int i = (n / 2) - 1; i >= 0; i--) {
+      siftDown(heap, n, i, gains);
+    }
+    //
+    BitSet cover = new BitSet(n);
+    int size = n;
+    while (size > 0 && gains[heap[0]] > 0) {
+      int top = heap[0];
+      int gain = count(words[top], uncovered);
+      if (gain != gains[top]) {
+        // Stale gain, so update and try again
+        gains[top] = gain;
+        siftDown(heap, size, 0, gains);
+        continue;
+      }
+      // Gain is current, and no other input can do better
+      cover.set(top);
+      long[] w = words[top];
+      for (int j = 0; j != w.length; j++) {
+        uncovered[j] &= ~w[j];
+      }
+      heap[0] = heap[--size];
+      siftDown(heap, size, 0, gains);
+    }
+    return cover;
+  }
+
+  /**
+   * Count the bits of a bitmap which are also in a given mask.
+   *
+   * @param bits The bitmap.
+   * @param mask The mask.
+   * @return The number of bits in both.
+   */
+  private static int count(long[] bits, long[] mask) {
+    int c = 0;
+    for (int j = 0; j != bits.length; j++) {
+      c += Long.bitCount(bits[j] & mask[j]);
+    }
+    return c;
+  }
+
+  /**
+   * Restore the heap property below a given position, where the heap holds input
+   * indices ordered by largest gain first (and then smallest index).
+   *
+   * @param heap  Indices of inputs.
+   * @param size  Number of indices in the heap.
+   * @param pos   Position to sift down from.
+   * @param gains Current (upper bound on the) gain of each input.
+   */
+  private static void siftDown(int[] heap, int size, int pos, int[] gains) {
+    int item = heap[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && before(heap[child + 1], heap[child], gains)) {
+        child++;
+      }
+      if (!before(heap[child], item, gains)) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = item;
+  }
+
+  /**
+   * Determine whether one input should be picked before another.
+   *
+   * @param i     Index of the first input.
+   * @param j     Index of the second input.
+   * @param gains Current (upper bound on the) gain of each input.
+   * @return True if input i comes first.
+   */
+  private static boolean before(int i, int j, int[] gains) {
+    return gains[i] > gains[j] || (gains[i] == gains[j] && i < j);
+  }
+}
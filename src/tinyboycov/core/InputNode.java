@@ -0,0 +1,413 @@
+package tinyboycov.core;
+
+import org.eclipse.jdt.annotation.Nullable;
+import tinyboy.core.ControlPad;
+import tinyboycov.util.ButtonPoll;
+import tinyboycov.util.EdgeCovered;
+import tinyboycov.util.HitCounted;
+import tinyboycov.util.Polled;
+import tinyboycov.util.Resumable;
+import tinyboycov.util.Snapshot;
+
+/**
+ * A node in a prefix tree of input sequences. Each node stores only the last
+ * button of its sequence, and shares everything before that with its parent.
+ * Thus, extending every input in the frontier by one button costs one small
+ * object per child, rather than a copy of the whole sequence. The sequence for a
+ * node is only flattened when it is actually executed, via a {@link Cursor}.
+ * Likewise, once a node has been executed it holds a snapshot of the state
+ * reached after its last step, from which its children can resume, along with
+ * how the firmware polled the buttons in the step after that. The snapshot is
+ * released again once the node's children have all been executed, except at
+ * every {@link #RESUME_INTERVAL}th step, so only the frontier and a sparse set
+ * of resume points hold snapshots, however large the tree grows.
+ *
+ * @author niraj
+ *
+ */
+public final class InputNode {
+  /**
+   * Number of wire reads taken by each step of an input sequence.
+   */
+  private static final int NUM_INPUTS = ControlPad.Button.values().length;
+
+  /**
+   * The empty input sequence, from which all others are derived.
+   */
+  public static final InputNode ROOT = new InputNode(null, null, 0);
+
+  /**
+   * Every button, which can all be appended when nothing is known about how they
+   * will be polled.
+   */
+  private static final ControlPad.@Nullable Button[] ALL_BUTTONS = ControlPad.Button.values();
+
+  /**
+   * Number of steps between the prefixes which keep their snapshots for good, so
+   * that an input derived from part way along another (such as a mutant) never
+   * replays more than this many steps after resuming.
+   */
+  public static final int RESUME_INTERVAL = 16;
+
+  /**
+   * The sequence this extends, or <code>null</code> for the root.
+   */
+  private final @Nullable InputNode parent;
+
+  /**
+   * The last button in this sequence, or <code>null</code> for no button.
+   */
+  private final ControlPad.@Nullable Button button;
+
+  /**
+   * Number of steps in this sequence.
+   */
+  private final int length;
+
+  /**
+   * State reached after the last step of this sequence, or <code>null</code> if
+   * not yet executed or since released. This is written by the worker thread
+   * which executed it before the node is recorded, and only read by descendants
+   * generated after that, so the generator's lock orders the two.
+   */
+  private @Nullable Snapshot snapshot;
+
+  /**
+   * The poll which read the step after the last step of this sequence, or
+   * <code>null</code> if not yet executed or the buttons were not polled. This
+   * is ordered by the generator's lock in the same way as the snapshot.
+   */
+  private @Nullable ButtonPoll poll;
+
+  /**
+   * This sequence flattened, kept once it has been mutated, or
+   * <code>null</code> if not kept. This is only accessed whilst holding the
+   * generator's lock.
+   */
+  private @Nullable PackedSequence packed;
+
+  /**
+   * Construct a node extending a given parent.
+   *
+   * @param parent The sequence being extended.
+   * @param button The button being appended.
+   * @param length Number of steps in the resulting sequence.
+   */
+  private InputNode(@Nullable InputNode parent, ControlPad.@Nullable Button button, int length) {
+    this.parent = parent;
+    this.button = button;
+    this.length = length;
+  }
+
+  /**
+   * Get the number of steps in this sequence.
+   *
+   * @return the sequence length.
+   */
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * Get the sequence which this extends.
+   *
+   * @return the parent, or <code>null</code> if this is the root.
+   */
+  public @Nullable InputNode getParent() {
+    return this.parent;
+  }
+
+  /**
+   * Get the last button in this sequence.
+   *
+   * @return the last button, or <code>null</code> if no button is pressed.
+   */
+  public ControlPad.@Nullable Button getButton() {
+    return this.button;
+  }
+
+  /**
+   * Create a new sequence by appending a button onto this sequence.
+   *
+   * @param b The button to append (or <code>null</code> for no button).
+   * @return The extended sequence.
+   */
+  public InputNode append(ControlPad.@Nullable Button b) {
+    return new InputNode(this, b, this.length + 1);
+  }
+
+  /**
+   * Get the prefix of this sequence with a given number of steps. This is an
+   * existing node, so nothing is copied.
+   *
+   * @param n Number of steps, which must be at most the length of this
+   *          sequence.
+   * @return the prefix.
+   */
+  public InputNode prefix(int n) {
+    InputNode node = this;
+    while (node.length > n) {
+      InputNode p = node.parent;
+      assert p != null;
+      node = p;
+    }
+    return node;
+  }
+
+  /**
+   * Create a new sequence by appending some of the steps of a packed sequence
+   * onto this sequence.
+   *
+   * @param steps The packed sequence.
+   * @param from  Index of the first step appended.
+   * @param to    Index after the last step appended.
+   * @return The extended sequence.
+   */
+  public InputNode append(PackedSequence steps, int from, int to) {
+    InputNode node = this;
+    for (int i = from; i < to; i++) {
+      node = node.append(steps.getButton(i));
+    }
+    return node;
+  }
+
+  /**
+   * Get the buttons worth appending to this sequence. If the firmware tested a
+   * single button when it polled the step after this sequence, then pressing
+   * any other button has the same effect as pressing none. Hence, only that
+   * button and no button need to be appended, rather than every button. Since
+   * most button-gated code polls one button at a time, this stops the number of
+   * inputs growing exponentially with depth.
+   *
+   * @return the buttons to append, where <code>null</code> stands for no button.
+   */
+  public ControlPad.@Nullable Button[] nextButtons() {
+    ButtonPoll p = this.poll;
+    if (p == null || !p.isSingleButton()) {
+      return ALL_BUTTONS;
+    }
+    ControlPad.Button polled = ControlPad.Button.values()[Integer.numberOfTrailingZeros(p.tested())];
+    // Children are executed last first, so the button needed to take the other
+    // branch goes last
+    return p.needed() != 0 ? new ControlPad.@Nullable Button[] { null, polled }
+        : new ControlPad.@Nullable Button[] { polled, null };
+  }
+
+  /**
+   * Flatten this sequence into a packed sequence.
+   *
+   * @return the flattened sequence.
+   */
+  public PackedSequence pack() {
+    long[] words = new long[PackedSequence.wordsFor(this.length)];
+    InputNode n = this;
+    for (int i = this.length - 1; i >= 0; i--) {
+      PackedSequence.set(words, i, PackedSequence.encode(n.button));
+      InputNode p = n.parent;
+      assert p != null;
+      n = p;
+    }
+    return new PackedSequence(words, this.length);
+  }
+
+  /**
+   * Get this sequence flattened, keeping the result. Unlike {@link #pack()},
+   * this flattens the sequence only once, however many mutants are derived from
+   * it or spliced with it. It is released again along with the snapshot. This
+   * must be called whilst holding the generator's lock.
+   *
+   * @return the flattened sequence.
+   */
+  public PackedSequence packed() {
+    PackedSequence p = this.packed;
+    if (p == null) {
+      p = pack();
+      this.packed = p;
+    }
+    return p;
+  }
+
+  /**
+   * Find the snapshot of the longest proper prefix of this sequence which has
+   * been executed.
+   *
+   * @return the snapshot, or <code>null</code> if no prefix has been executed.
+   */
+  public @Nullable Snapshot findResumePoint() {
+    for (InputNode n = this.parent; n != null; n = n.parent) {
+      Snapshot s = n.snapshot;
+      if (s != null) {
+        return s;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Release the snapshot of this sequence, since its children have all been
+   * executed and hold their own, unless this is one of the prefixes kept as a
+   * resume point. Descendants generated later resume from the nearest prefix
+   * still holding a snapshot instead. The flattened sequence kept for mutation
+   * (if any) is released as well. This must be called whilst holding the
+   * generator's lock.
+   */
+  void release() {
+    if (this.length % RESUME_INTERVAL != 0) {
+      this.snapshot = null;
+    }
+    this.packed = null;
+  }
+
+  /**
+   * Create a fresh cursor for executing this sequence.
+   *
+   * @return the cursor.
+   */
+  public Cursor cursor() {
+    return new Cursor(this);
+  }
+
+  @Override
+  public String toString() {
+    return pack().toString();
+  }
+
+  /**
+   * A view of an input sequence which presents it as the stream of wire reads
+   * expected by the <code>AutomatedTester</code>, in the same way as a
+   * <code>TinyBoyInputSequence</code>. The sequence is only flattened on the
+   * first read, and released again once it is exhausted, so cursors waiting to
+   * be executed are small. A cursor can resume from the state reached by the
+   * nearest executed prefix of its sequence, and records the last poll made
+   * whilst it was executed, and the number of new hit count buckets and edges it
+   * reached.
+   */
+  public static final class Cursor implements Resumable, Polled, HitCounted, EdgeCovered {
+    /**
+     * The sequence being executed.
+     */
+    private final InputNode node;
+
+    /**
+     * The flattened sequence, or <code>null</code> if not currently flattened.
+     */
+    private @Nullable PackedSequence steps;
+
+    /**
+     * Number of wire reads performed so far.
+     */
+    private int clock;
+
+    /**
+     * Number of new hit count buckets reached when this cursor was executed.
+     */
+    private int newCounts;
+
+    /**
+     * Number of new edges taken when this cursor was executed.
+     */
+    private int newEdges;
+
+    /**
+     * Create a cursor at the start of a given sequence.
+     *
+     * @param node The sequence being executed.
+     */
+    Cursor(InputNode node) {
+      this.node = node;
+    }
+
+    /**
+     * Get the sequence being executed.
+     *
+     * @return the sequence.
+     */
+    public InputNode node() {
+      return this.node;
+    }
+
+    @Override
+    public int length() {
+      return this.node.length;
+    }
+
+    @Override
+    public @Nullable Snapshot resume() {
+      Snapshot s = this.node.findResumePoint();
+      if (s != null) {
+        this.clock = s.getSteps() * NUM_INPUTS;
+      }
+      return s;
+    }
+
+    @Override
+    public void checkpoint(Snapshot s) {
+      this.node.snapshot = s;
+    }
+
+    @Override
+    public void polled(ButtonPoll p) {
+      // Only a poll of the step after the sequence says how to extend it
+      if (p.step() == this.node.length) {
+        this.node.poll = p;
+      }
+    }
+
+    @Override
+    public void counted(int counts) {
+      this.newCounts = counts;
+    }
+
+    /**
+     * Get the number of new hit count buckets reached when this cursor was
+     * executed.
+     *
+     * @return the number of new buckets, or zero if not executed.
+     */
+    public int newCounts() {
+      return this.newCounts;
+    }
+
+    @Override
+    public void covered(int edges) {
+      this.newEdges = edges;
+    }
+
+    /**
+     * Get the number of new edges taken when this cursor was executed.
+     *
+     * @return the number of new edges, or zero if not executed.
+     */
+    public int newEdges() {
+      return this.newEdges;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.clock / NUM_INPUTS <= this.node.length;
+    }
+
+    @Override
+    public Boolean next() {
+      int step = this.clock / NUM_INPUTS;
+      int pin = this.clock % NUM_INPUTS;
+      this.clock++;
+      if (step >= this.node.length) {
+        // Nothing is pressed once the sequence is over
+        this.steps = null;
+        return Boolean.FALSE;
+      }
+      PackedSequence s = this.steps;
+      if (s == null) {
+        s = this.node.pack();
+        this.steps = s;
+      }
+      return Boolean.valueOf(s.get(step) == pin + 1);
+    }
+
+    @Override
+    public String toString() {
+      return this.node.toString();
+    }
+  }
+}
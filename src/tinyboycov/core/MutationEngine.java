@@ -0,0 +1,162 @@
+package tinyboycov.core;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Produces new inputs by mutating existing ones with a set of pluggable
+ * {@link Mutator}s. Each operator keeps a record of how many of its mutants
+ * have been executed, and how many of those found something new. Operators are
+ * then chosen with probability proportional to their estimated success rate,
+ * <code>(successes + 1) / (trials + 2)</code>, so every operator starts out
+ * equally likely and none is ever ruled out entirely. Mutants are attributed to
+ * their operator until their outcome is reported back.
+ *
+ * @author niraj
+ *
+ */
+public final class MutationEngine {
+  /**
+   * The operators to choose from.
+   */
+  private final Mutator[] mutators;
+
+  /**
+   * Number of mutants of each operator whose outcome has been reported.
+   */
+  private final int[] trials;
+
+  /**
+   * Number of mutants of each operator which found something new.
+   */
+  private final int[] successes;
+
+  /**
+   * Operator which produced each mutant whose outcome has not yet been
+   * reported. Mutants are compared by identity, since equal sequences built by
+   * different operators are different mutants.
+   */
+  private final IdentityHashMap<InputNode, Integer> pending = new IdentityHashMap<>();
+
+  /**
+   * Source of randomness, seeded so that runs are repeatable.
+   */
+  private final Random random = new Random(0);
+
+  /**
+   * Create an engine using the given operators.
+   *
+   * @param mutators The operators.
+   */
+  public MutationEngine(Mutator... mutators) {
+    this.mutators = mutators.clone();
+    this.trials = new int[mutators.length];
+    this.successes = new int[mutators.length];
+  }
+
+  /**
+   * Produce a number of mutants. Each is derived from one of the given inputs,
+   * and operators which combine two inputs take the other from the given
+   * donors.
+   *
+   * @param inputs The inputs to mutate, which must not be empty.
+   * @param donors Inputs to combine with, which must not be empty.
+   * @param n      Number of mutants to produce.
+   * @return The mutants, which may be fewer than requested if the operators
+   *         chosen did not apply.
+   */
+  public ArrayList<InputNode> mutate(List<InputNode> inputs, List<InputNode> donors, int n) {
+    ArrayList<InputNode> mutants = new ArrayList<>();
+    for (int k = 0; k != n; k++) {
+      int m = choose();
+      InputNode input = inputs.get(this.random.nextInt(inputs.size()));
+      InputNode other = donors.get(this.random.nextInt(donors.size()));
+      InputNode mutant = this.mutators[m].mutate(input, input.packed(), other, this.random);
+      if (mutant != null && mutant.length() != 0) {
+        this.pending.put(mutant, Integer.valueOf(m));
+        mutants.add(mutant);
+      }
+    }
+    return mutants;
+  }
+
+  /**
+   * Report the outcome of executing an input. This is ignored unless the input
+   * is a mutant produced by this engine.
+   *
+   * @param input   The input executed.
+   * @param success Whether it found something new.
+   */
+  public void record(InputNode input, boolean success) {
+    Integer m = this.pending.remove(input);
+    if (m != null) {
+      this.trials[m.intValue()]++;
+      if (success) {
+        this.successes[m.intValue()]++;
+      }
+    }
+  }
+
+  /**
+   * Get the number of mutants of an operator whose outcome has been reported.
+   *
+   * @param m Index of the operator.
+   * @return the number of trials.
+   */
+  public int getTrials(int m) {
+    return this.trials[m];
+  }
+
+  /**
+   * Get the number of mutants of an operator which found something new.
+   *
+   * @param m Index of the operator.
+   * @return the number of successes.
+   */
+  public int getSuccesses(int m) {
+    return this.successes[m];
+  }
+
+  /**
+   * Choose an operator, with probability proportional to its estimated success
+   * rate.
+   *
+   * @return the index of the operator.
+   */
+  private int choose() {
+    double total = 0;
+    for (int m = 0; m != this.mutators.length; m++) {
+      total += rate(m);
+    }
+    double r = this.random.nextDouble() * total;
+    for (int m = 0; m != this.mutators.length - 1; m++) {
+      r -= rate(m);
+      if (r < 0) {
+        return m;
+      }
+    }
+    return this.mutators.length - 1;
+  }
+
+  /**
+   * Estimate the success rate of an operator.
+   *
+   * @param m Index of the operator.
+   * @return the estimate.
+   */
+  private double rate(int m) {
+    return (this.successes[m] + 1.0) / (this.trials[m] + 2.0);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int m = 0; m != this.mutators.length; m++) {
+      sb.append(m == 0 ? "" : ", ").append(this.mutators[m]).append(' ') //$NON-NLS-1$ //$NON-NLS-2$
+          .append(this.successes[m]).append('/').append(this.trials[m]);
+    }
+    return sb.toString();
+  }
+}
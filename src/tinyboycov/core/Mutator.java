@@ -0,0 +1,31 @@
+package tinyboycov.core;
+
+import java.util.Random;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * An operator which derives a new input from an existing one, for use by a
+ * {@link MutationEngine}. The steps of the input are read from its packed
+ * form (see {@link InputNode#packed()}), which is only built once however many
+ * mutants are derived from the input. The mutant is built on the longest
+ * prefix it shares with the input (see {@link InputNode#prefix(int)}). Thus,
+ * only the steps after the first one changed are new, and the mutant can be
+ * resumed from the nearest snapshot of that prefix.
+ *
+ * @author niraj
+ *
+ */
+public interface Mutator {
+  /**
+   * Derive a new input from an existing one.
+   *
+   * @param input  The input being mutated.
+   * @param steps  The steps of the input, packed.
+   * @param other  Another input, for operators which combine two.
+   * @param random Source of randomness.
+   * @return the mutant, or <code>null</code> if this operator does not apply to
+   *         the input.
+   */
+  @Nullable
+  InputNode mutate(InputNode input, PackedSequence steps, InputNode other, Random random);
+}
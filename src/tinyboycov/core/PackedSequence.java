@@ -0,0 +1,196 @@
+package tinyboycov.core;
+
+import java.util.Arrays;
+import org.eclipse.jdt.annotation.Nullable;
+import tinyboy.core.ControlPad;
+
+/**
+ * An immutable input sequence packed into three bits per step, so that 21 steps
+ * fit in each word. Each step holds the ordinal of the button pressed plus one,
+ * or zero if no button is pressed. Compared with an array of button references,
+ * this is an order of magnitude smaller, and sequences can be hashed and compared
+ * a word at a time. A sequence is turned back into an {@link InputNode} when it
+ * needs to be executed.
+ *
+ * @author niraj
+ *
+ */
+public final class PackedSequence {
+  /**
+   * Number of bits used by each step.
+   */
+  private static final int BITS_PER_STEP = 3;
+
+  /**
+   * Number of steps stored in each word.
+   */
+  static final int STEPS_PER_WORD = Long.SIZE / BITS_PER_STEP;
+
+  /**
+   * Mask for the bits of a single step.
+   */
+  private static final long STEP_MASK = (1L << BITS_PER_STEP) - 1;
+
+  /**
+   * All buttons, indexed by ordinal.
+   */
+  private static final ControlPad.Button[] BUTTONS = ControlPad.Button.values();
+
+  /**
+   * The empty sequence.
+   */
+  public static final PackedSequence EMPTY = new PackedSequence(new long[0], 0);
+
+  /**
+   * The packed steps, with step <code>i</code> in word
+   * <code>i / STEPS_PER_WORD</code>. Unused bits are always zero, so that
+   * sequences can be compared word by word.
+   */
+  private final long[] words;
+
+  /**
+   * Number of steps in this sequence.
+   */
+  private final int length;
+
+  /**
+   * Construct a sequence from packed words.
+   *
+   * @param words  The packed steps (which are not copied).
+   * @param length Number of steps.
+   */
+  PackedSequence(long[] words, int length) {
+    this.words = words;
+    this.length = length;
+  }
+
+  /**
+   * Pack a given sequence of buttons.
+   *
+   * @param buttons The buttons pressed at each step (or <code>null</code> for no
+   *                button).
+   * @return The packed sequence.
+   */
+  public static PackedSequence of(ControlPad.@Nullable Button... buttons) {
+    long[] words = new long[wordsFor(buttons.length)];
+    for (int i = 0; i != buttons.length; i++) {
+      set(words, i, encode(buttons[i]));
+    }
+    return new PackedSequence(words, buttons.length);
+  }
+
+  /**
+   * Determine the number of words needed to hold a given number of steps.
+   *
+   * @param length Number of steps.
+   * @return the number of words.
+   */
+  static int wordsFor(int length) {
+    return (length + STEPS_PER_WORD - 1) / STEPS_PER_WORD;
+  }
+
+  /**
+   * Encode a button as a step.
+   *
+   * @param b The button (or <code>null</code> for no button).
+   * @return the ordinal of the button plus one, or zero for no button.
+   */
+  static int encode(ControlPad.@Nullable Button b) {
+    return b == null ? 0 : b.ordinal() + 1;
+  }
+
+  /**
+   * Set a step in an array of packed words, whose bits for that step must be
+   * zero.
+   *
+   * @param words The packed steps.
+   * @param i     Index of the step.
+   * @param step  The encoded step.
+   */
+  static void set(long[] words, int i, int step) {
+    words[i / STEPS_PER_WORD] |= (long) step << (BITS_PER_STEP * (i % STEPS_PER_WORD));
+  }
+
+  /**
+   * Get the number of steps in this sequence.
+   *
+   * @return the sequence length.
+   */
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * Get a word of the packed steps, in which step <code>i</code> is held by
+   * word <code>i / STEPS_PER_WORD</code>.
+   *
+   * @param w Index of the word.
+   * @return the word.
+   */
+  long getWord(int w) {
+    return this.words[w];
+  }
+
+  /**
+   * Get a given step of this sequence.
+   *
+   * @param i Index of the step.
+   * @return the ordinal of the button pressed plus one, or zero for no button.
+   */
+  public int get(int i) {
+    return (int) (this.words[i / STEPS_PER_WORD] >>> (BITS_PER_STEP * (i % STEPS_PER_WORD))
+        & STEP_MASK);
+  }
+
+  /**
+   * Get the button pressed at a given step of this sequence.
+   *
+   * @param i Index of the step.
+   * @return the button, or <code>null</code> if no button is pressed.
+   */
+  public ControlPad.@Nullable Button getButton(int i) {
+    int step = get(i);
+    return step == 0 ? null : BUTTONS[step - 1];
+  }
+
+  /**
+   * Create a new sequence by appending a button onto this sequence.
+   *
+   * @param b The button to append (or <code>null</code> for no button).
+   * @return The extended sequence.
+   */
+  public PackedSequence append(ControlPad.@Nullable Button b) {
+    long[] ws = Arrays.copyOf(this.words, wordsFor(this.length + 1));
+    set(ws, this.length, encode(b));
+    return new PackedSequence(ws, this.length + 1);
+  }
+
+  @Override
+  public boolean equals(@Nullable Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof PackedSequence)) {
+      return false;
+    }
+    PackedSequence other = (PackedSequence) obj;
+    return this.length == other.length && Arrays.equals(this.words, other.words);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(this.words) + this.length;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("["); //$NON-NLS-1$
+    for (int i = 0; i != this.length; i++) {
+      if (i != 0) {
+        sb.append(", "); //$NON-NLS-1$
+      }
+      sb.append(getButton(i));
+    }
+    return sb.append("]").toString(); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,213 @@
+package tinyboycov.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An off-heap store of coverage bitmaps and final states, held in
+ * memory-mapped files rather than on the heap. Every record has the same width
+ * (a coverage bitmap of fixed size, followed by the length of the state and
+ * the state itself), so a record is found from its slot number alone, and the
+ * slots of removed records are reused. Records are held in segments, each
+ * mapping its own temporary file, and new segments are added as the store
+ * fills up. Each file is deleted as soon as it is mapped (where the platform
+ * allows), so nothing is left behind, and the operating system pages records
+ * in and out as needed. This means a large corpus neither counts against the
+ * heap nor has to be traced by the garbage collector.
+ *
+ * @author niraj
+ *
+ */
+public final class RecordStore {
+  /**
+   * Number of records in each segment.
+   */
+  private static final int RECORDS_PER_SEGMENT = 4096;
+
+  /**
+   * Number of words in each coverage bitmap.
+   */
+  private final int coverageWords;
+
+  /**
+   * Maximum length of each state (in bytes).
+   */
+  private final int stateBytes;
+
+  /**
+   * Width of each record (in bytes).
+   */
+  private final int width;
+
+  /**
+   * The mapped segments, in order.
+   */
+  private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+
+  /**
+   * Slots of removed records, which are reused before any new slot.
+   */
+  private int[] free = new int[16];
+
+  /**
+   * Number of slots in {@link #free}.
+   */
+  private int nFree;
+
+  /**
+   * Number of slots ever used.
+   */
+  private int used;
+
+  /**
+   * Create an empty store.
+   *
+   * @param coverageBits Maximum number of bits in each coverage bitmap.
+   * @param stateBytes   Maximum length of each state (in bytes).
+   */
+  public RecordStore(int coverageBits, int stateBytes) {
+    this.coverageWords = (coverageBits + Long.SIZE - 1) / Long.SIZE;
+    this.stateBytes = stateBytes;
+    this.width = (this.coverageWords + 1) * Long.BYTES + stateBytes;
+  }
+
+  /**
+   * Add a record to this store.
+   *
+   * @param coverage The coverage bitmap, which must fit within the width given
+   *                 when this store was created.
+   * @param state    The state, which must fit within the width given when this
+   *                 store was created.
+   * @return the slot holding the record.
+   */
+  public int add(BitSet coverage, byte[] state) {
+    long[] words = coverage.toLongArray();
+    if (words.length > this.coverageWords || state.length > this.stateBytes) {
+      throw new IllegalArgumentException("record too wide for store"); //$NON-NLS-1$
+    }
+    int slot = this.nFree > 0 ? this.free[--this.nFree] : this.used++;
+    MappedByteBuffer segment = segmentOf(slot);
+    int offset = offsetOf(slot);
+    for (int i = 0; i != this.coverageWords; i++) {
+      segment.putLong(offset + i * Long.BYTES, i < words.length ? words[i] : 0);
+    }
+    offset += this.coverageWords * Long.BYTES;
+    segment.putLong(offset, state.length);
+    segment.put(offset + Long.BYTES, state);
+    return slot;
+  }
+
+  /**
+   * Get the coverage bitmap of a record.
+   *
+   * @param slot The slot holding the record.
+   * @return a copy of the bitmap.
+   */
+  public BitSet getCoverage(int slot) {
+    MappedByteBuffer segment = segmentOf(slot);
+    int offset = offsetOf(slot);
+    long[] words = new long[this.coverageWords];
+    for (int i = 0; i != words.length; i++) {
+      words[i] = segment.getLong(offset + i * Long.BYTES);
+    }
+    return BitSet.valueOf(words);
+  }
+
+  /**
+   * Get the state of a record.
+   *
+   * @param slot The slot holding the record.
+   * @return a copy of the state.
+   */
+  public byte[] getState(int slot) {
+    MappedByteBuffer segment = segmentOf(slot);
+    int offset = offsetOf(slot) + this.coverageWords * Long.BYTES;
+    byte[] state = new byte[(int) segment.getLong(offset)];
+    segment.get(offset + Long.BYTES, state);
+    return state;
+  }
+
+  /**
+   * Remove a record, so that its slot can be reused.
+   *
+   * @param slot The slot holding the record.
+   */
+  public void remove(int slot) {
+    if (this.nFree == this.free.length) {
+      this.free = Arrays.copyOf(this.free, this.free.length * 2);
+    }
+    this.free[this.nFree++] = slot;
+  }
+
+  /**
+   * Get the number of records in this store.
+   *
+   * @return the number of records.
+   */
+  public int size() {
+    return this.used - this.nFree;
+  }
+
+  /**
+   * Find the offset of a slot within its segment.
+   *
+   * @param slot The slot.
+   * @return the offset (in bytes).
+   */
+  private int offsetOf(int slot) {
+    return (slot % RECORDS_PER_SEGMENT) * this.width;
+  }
+
+  /**
+   * Find the segment holding a slot, mapping a new segment if the slot is beyond
+   * the last one.
+   *
+   * @param slot The slot.
+   * @return the segment.
+   */
+  private MappedByteBuffer segmentOf(int slot) {
+    int s = slot / RECORDS_PER_SEGMENT;
+    while (this.segments.size() <= s) {
+      this.segments.add(map((long) RECORDS_PER_SEGMENT * this.width));
+    }
+    return this.segments.get(s);
+  }
+
+  /**
+   * Map a new temporary file of a given size.
+   *
+   * @param size The size of the file (in bytes).
+   * @return the mapping.
+   */
+  private static MappedByteBuffer map(long size) {
+    MappedByteBuffer buffer;
+    File file;
+    try {
+      file = File.createTempFile("tinyboycov", ".records"); //$NON-NLS-1$ //$NON-NLS-2$
+      file.deleteOnExit();
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    try {
+      // The mapping remains valid, so the file is no longer needed
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      // Some platforms refuse to delete a mapped file, so leave it until exit
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+}
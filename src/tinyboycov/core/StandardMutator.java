@@ -0,0 +1,153 @@
+package tinyboycov.core;
+
+import java.util.Random;
+import org.eclipse.jdt.annotation.Nullable;
+import tinyboy.core.ControlPad;
+
+/**
+ * The standard mutation operators, modelled on those of AFL but working on
+ * whole steps (i.e. the button pressed in each frame) rather than bytes.
+ * Unlike appending a step, each of these can revisit an early choice, such as
+ * a button pressed too soon or not held for long enough.
+ *
+ * @author niraj
+ *
+ */
+public enum StandardMutator implements Mutator {
+  /**
+   * Replace a single step with a different one.
+   */
+  SUBSTITUTE {
+    @Override
+    public @Nullable InputNode mutate(InputNode input, PackedSequence steps, InputNode other,
+        Random random) {
+      int n = steps.length();
+      if (n == 0) {
+        return null;
+      }
+      int i = random.nextInt(n);
+      int step = steps.get(i) + 1 + random.nextInt(VALUES.length - 1);
+      return input.prefix(i).append(VALUES[step % VALUES.length]).append(steps, i + 1, n);
+    }
+  },
+
+  /**
+   * Insert a single step.
+   */
+  INSERT {
+    @Override
+    public @Nullable InputNode mutate(InputNode input, PackedSequence steps, InputNode other,
+        Random random) {
+      int n = steps.length();
+      int i = random.nextInt(n + 1);
+      return input.prefix(i).append(randomStep(random)).append(steps, i, n);
+    }
+  },
+
+  /**
+   * Delete a single step, other than the last. Deleting the last step would
+   * just give back an existing prefix of the input, rather than a new mutant.
+   */
+  DELETE {
+    @Override
+    public @Nullable InputNode mutate(InputNode input, PackedSequence steps, InputNode other,
+        Random random) {
+      int n = steps.length();
+      if (n < 2) {
+        return null;
+      }
+      int i = random.nextInt(n - 1);
+      return input.prefix(i).append(steps, i + 1, n);
+    }
+  },
+
+  /**
+   * Repeat a block of consecutive steps straight after itself.
+   */
+  DUPLICATE {
+    @Override
+    public @Nullable InputNode mutate(InputNode input, PackedSequence steps, InputNode other,
+        Random random) {
+      int n = steps.length();
+      if (n == 0) {
+        return null;
+      }
+      int i = random.nextInt(n);
+      int end = i + 1 + random.nextInt(Math.min(MAX_BLOCK, n - i));
+      return input.prefix(end).append(steps, i, end).append(steps, end, n);
+    }
+  },
+
+  /**
+   * Join the start of the input to the end of another input.
+   */
+  SPLICE {
+    @Override
+    public @Nullable InputNode mutate(InputNode input, PackedSequence steps, InputNode other,
+        Random random) {
+      int n = steps.length();
+      int m = other.length();
+      if (other == input || m == 0) {
+        return null;
+      }
+      int i = random.nextInt(n + 1);
+      int j = random.nextInt(m);
+      return input.prefix(i).append(other.packed(), j, m);
+    }
+  },
+
+  /**
+   * Hold the button pressed in a step for a number of further frames (between
+   * one and {@link #MAX_BLOCK}, with short holds more likely).
+   */
+  HOLD {
+    @Override
+    public @Nullable InputNode mutate(InputNode input, PackedSequence steps, InputNode other,
+        Random random) {
+      int n = steps.length();
+      if (n == 0) {
+        return null;
+      }
+      int i = random.nextInt(n);
+      int frames = 1 + random.nextInt(1 + random.nextInt(MAX_BLOCK));
+      InputNode node = input.prefix(i + 1);
+      for (int k = 0; k < frames; k++) {
+        node = node.append(steps.getButton(i));
+      }
+      return node.append(steps, i + 1, n);
+    }
+  };
+
+  /**
+   * Maximum number of steps duplicated, or frames held, by a single mutation.
+   */
+  static final int MAX_BLOCK = 16;
+
+  /**
+   * All values a step can take, indexed by their encoding in a
+   * {@link PackedSequence}: no button, followed by each button.
+   */
+  static final ControlPad.@Nullable Button[] VALUES = values(ControlPad.Button.values());
+
+  /**
+   * Work out every value a step can take.
+   *
+   * @param buttons Every button, in order.
+   * @return no button, followed by each button.
+   */
+  private static ControlPad.@Nullable Button[] values(ControlPad.Button[] buttons) {
+    ControlPad.@Nullable Button[] values = new ControlPad.Button[buttons.length + 1];
+    System.arraycopy(buttons, 0, values, 1, buttons.length);
+    return values;
+  }
+
+  /**
+   * Choose a step at random.
+   *
+   * @param random Source of randomness.
+   * @return no button, or one of the buttons.
+   */
+  static ControlPad.@Nullable Button randomStep(Random random) {
+    return VALUES[random.nextInt(VALUES.length)];
+  }
+}
@@ -0,0 +1,190 @@
+package tinyboycov.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * An index of the final machine states reached by previously executed inputs.
+ * States are keyed by a fast 64-bit hash of the SRAM snapshot and stored in an
+ * open-addressing table, with full equality only checked when two hashes
+ * collide. This makes a membership test O(1) in the number of states seen,
+ * rather than O(n) full-memory comparisons.
+ *
+ * @author niraj
+ *
+ */
+public class StateIndex {
+  /**
+   * View used to read eight bytes of a state at once.
+   */
+  private static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * Mixing constants (taken from xxHash64).
+   */
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+
+  /**
+   * Initial table capacity (must be a power of two).
+   */
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * Hash of each occupied slot, where zero marks an empty slot.
+   */
+  private long[] hashes;
+
+  /**
+   * State stored in each occupied slot, used to resolve hash collisions.
+   */
+  private byte[][] states;
+
+  /**
+   * Number of occupied slots.
+   */
+  private int size;
+
+  /**
+   * Number of times the state in each occupied slot has been added.
+   */
+  private int[] counts;
+
+  /**
+   * Create an empty state index.
+   */
+  public StateIndex() {
+    this.hashes = new long[INITIAL_CAPACITY];
+    this.states = new byte[INITIAL_CAPACITY][];
+    this.counts = new int[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Add a given state to this index, unless an equal state is already present
+   * (in which case the number of times that state was added is incremented).
+   *
+   * @param state The state being added.
+   * @return True if the state was not previously in the index, false otherwise.
+   */
+  public boolean add(byte[] state) {
+    long hash = hash(state);
+    int mask = this.hashes.length - 1;
+    int slot = (int) hash & mask;
+    while (this.hashes[slot] != 0) {
+      if (this.hashes[slot] == hash && Arrays.equals(this.states[slot], state)) {
+        this.counts[slot]++;
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    this.counts[slot] = 1;
+    this.hashes[slot] = hash;
+    this.states[slot] = state;
+    this.size++;
+    // Keep load factor below one half so probe sequences stay short
+    if (this.size * 2 > this.hashes.length) {
+      resize();
+    }
+    return true;
+  }
+
+  /**
+   * Check whether a state equal to the given state has been added.
+   *
+   * @param state The state being checked.
+   * @return True if an equal state is in the index, false otherwise.
+   */
+  public boolean contains(byte[] state) {
+    long hash = hash(state);
+    int mask = this.hashes.length - 1;
+    for (int slot = (int) hash & mask; this.hashes[slot] != 0; slot = (slot + 1) & mask) {
+      if (this.hashes[slot] == hash && Arrays.equals(this.states[slot], state)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the number of times a state equal to the given state has been added.
+   *
+   * @param state The state being checked.
+   * @return The number of times the state was added, or zero if it is not in the
+   *         index.
+   */
+  public int count(byte[] state) {
+    long hash = hash(state);
+    int mask = this.hashes.length - 1;
+    for (int slot = (int) hash & mask; this.hashes[slot] != 0; slot = (slot + 1) & mask) {
+      if (this.hashes[slot] == hash && Arrays.equals(this.states[slot], state)) {
+        return this.counts[slot];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Get the number of distinct states in this index.
+   *
+   * @return the number of distinct states.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Compute a 64-bit hash of a given state. The result is never zero, since
+   * zero is used to mark an empty slot.
+   *
+   * @param state The state to hash.
+   * @return A non-zero hash of the state.
+   */
+  public static long hash(byte[] state) {
+    long h = PRIME3 + state.length;
+    int i = 0;
+    for (; i + Long.BYTES <= state.length; i += Long.BYTES) {
+      long k = (long) LONGS.get(state, i);
+      h ^= Long.rotateLeft(k * PRIME2, 31) * PRIME1;
+      h = Long.rotateLeft(h, 27) * PRIME1 + PRIME3;
+    }
+    for (; i < state.length; i++) {
+      h ^= (state[i] & 0xFF) * PRIME3;
+      h = Long.rotateLeft(h, 11) * PRIME1;
+    }
+    // Final avalanche
+    h ^= h >>> 33;
+    h *= PRIME2;
+    h ^= h >>> 29;
+    h *= PRIME3;
+    h ^= h >>> 32;
+    return h == 0 ? 1 : h;
+  }
+
+  /**
+   * Double the capacity of the table, rehashing all occupied slots.
+   */
+  private void resize() {
+    long[] oldHashes = this.hashes;
+    byte[][] oldStates = this.states;
+    int[] oldCounts = this.counts;
+    this.hashes = new long[oldHashes.length * 2];
+    this.states = new byte[oldHashes.length * 2][];
+    this.counts = new int[oldHashes.length * 2];
+    int mask = this.hashes.length - 1;
+    for (int i = 0; i != oldHashes.length; i++) {
+      if (oldHashes[i] != 0) {
+        int slot = (int) oldHashes[i] & mask;
+        while (this.hashes[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        this.hashes[slot] = oldHashes[i];
+        this.states[slot] = oldStates[i];
+        this.counts[slot] = oldCounts[i];
+      }
+    }
+  }
+}
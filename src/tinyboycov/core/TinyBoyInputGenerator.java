@@ -1,44 +1,101 @@
 package tinyboycov.core;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.List;
-import java.util.Objects;
+import java.util.Iterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javr.io.HexFile;
 import org.eclipse.jdt.annotation.Nullable;
 import tinyboy.core.ControlPad;
-import tinyboy.core.TinyBoyInputSequence;
 import tinyboy.util.AutomatedTester;
+import tinyboycov.util.Generational;
 
 /**
  * The TinyBoy Input Generator is responsible for generating and refining inputs
- * to try and ensure that sufficient branch coverage is obtained.
+ * to try and ensure that sufficient branch coverage is obtained. The generator
+ * is thread-safe, so inputs can be generated and recorded by several worker
+ * threads at once.
  *
  * @author David J. Pearce
  *
  */
-public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<TinyBoyInputSequence> {
+public class TinyBoyInputGenerator
+    implements AutomatedTester.InputGenerator<InputNode.Cursor>, Generational {
   /**
    * Represents the number of buttons on the control pad.
    */
   private final static int NUM_BUTTONS = ControlPad.Button.values().length;
 
+  /**
+   * Number of inputs expanded in each generation. Expanding an input yields up
+   * to one child per button (and one with no button pressed), so this is one
+   * per that many worker threads: enough that every worker has something to do,
+   * but no more, since each extra input expanded costs a generation's worth of
+   * executions before the best of its children can be chosen.
+   */
+  private int expandPerGeneration;
+
+  /**
+   * Maximum number of inputs waiting to be expanded.
+   */
+  private final static int CORPUS_CAPACITY = 10_000;
+
+  /**
+   * Number of bits in the coverage of an input, one per byte of the TinyBoy's
+   * code memory.
+   */
+  private final static int COVERAGE_BITS = 8192;
+
+  /**
+   * Maximum number of seeds produced by concolic execution in each generation.
+   */
+  private final static int SEEDS_PER_GENERATION = 32;
+
+  /**
+   * Number of mutants produced from each input chosen for expansion.
+   */
+  private final static int MUTANTS_PER_SURVIVOR = 2;
+
+  /**
+   * Maximum number of inputs which found new coverage kept to splice with.
+   */
+  private final static int DONORS = 256;
+
   /**
    * The global input sequence length.
    */
   private int seqLength;
 
   /**
-   * Current batch being processed.
+   * Current batch being processed. Inputs in the batch are nodes of a prefix
+   * tree, so they share storage with the inputs they were derived from.
+   */
+  private ArrayList<InputNode> worklist = new ArrayList<>();
+
+  /**
+   * Inputs expanded to produce the current batch, whose snapshots are released
+   * once the batch has been executed.
+   */
+  private ArrayList<InputNode> expanded = new ArrayList<>();
+
+  /**
+   * Initial inputs which have not yet been generated, in the order they are
+   * generated. These are all executed before the first generation is expanded.
    */
-  private ArrayList<TinyBoyInputSequence> worklist = new ArrayList<>();
+  private final ArrayDeque<Iterator<InputNode>> seeds = new ArrayDeque<>();
 
   /**
    * Inputs that are recorded for pruning purposes.
    */
-  private ArrayList<Triple<TinyBoyInputSequence, BitSet, byte[]>> recordedInputs =
-      new ArrayList<>();
+  private ArrayList<CorpusEntry<InputNode>> recordedInputs = new ArrayList<>();
 
   /**
    * record what the number of inputs were before worklist is emptied.
@@ -46,109 +103,204 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
   private int numberOfInputs;
 
   /**
-   * Allows for easy storing of three elements, overidden functions are to conform
-   * to safety critical standards.
-   *
-   * @author niraj
-   *
-   * @param <T> element 1
-   * @param <U> element 2
-   * @param <V> element 3
-   */
-  public record Triple<T, U, V>(T first, U second, V third) {
-    @Override
-    public boolean equals(@Nullable Object obj) {
-      if (this == obj) {
-        return true;
-      }
-      if (obj == null || getClass() != obj.getClass()) {
-        return false;
-      }
-      Triple<?, ?, ?> other = (Triple<?, ?, ?>) obj;
-      return Objects.equals(this.first, other.first) && Objects.equals(this.second, other.second)
-          && Objects.equals(this.third, other.third);
-    }
+   * Number of generations whose inputs have all been recorded.
+   */
+  private int generation;
 
-    @Override
-    public int hashCode() {
-      return Objects.hash(this.first, this.second, this.third);
-    }
-  }
+  /**
+   * Number of new states reached by the last generation completed.
+   */
+  private int newStates;
 
   /**
-   * Create new input generator for the TinyBoy simulation.
+   * Final states of all inputs expanded so far, persisted across generations so
+   * that a state is never expanded twice.
    */
-  public TinyBoyInputGenerator() {
-    this.seqLength = 2;
-    this.worklist.clear();
+  private final StateIndex seenStates = new StateIndex();
 
-    for (int sequenceLength = this.seqLength; sequenceLength > 0; sequenceLength--) {
-      this.worklist.addAll(generateCombinations(NUM_BUTTONS + 1, sequenceLength));
-    }
+  /**
+   * Distance from each instruction to the nearest uncovered branch, or null if
+   * inputs are not directed towards uncovered branches.
+   */
+  private final @Nullable BranchDistance distance;
 
-    this.numberOfInputs = this.worklist.size();
+  /**
+   * Global coverage (in bits) when the distances were last updated.
+   */
+  private int distanceCovered;
+
+  /**
+   * Produces seeds by concolic execution whenever a generation finds no new
+   * coverage, or null if disabled.
+   */
+  private final @Nullable ConcolicSeeder seeder;
+
+  /**
+   * Runs the seeder on a background thread, so that the generator is never
+   * held whilst solving, or null if disabled. Only one solve runs at a time,
+   * since the seeder remembers what it has solved for. The thread exits when
+   * idle.
+   */
+  private final @Nullable ThreadPoolExecutor solver;
+
+  /**
+   * The solve running on {@link #solver}, whose seeds (best last) are added to
+   * whichever generation is running when it finishes, or null if none is
+   * running or its seeds have been added.
+   */
+  private @Nullable Future<ArrayList<InputNode>> solving;
+
+  /**
+   * Global coverage (in bits) at the end of the last generation.
+   */
+  private int generationCovered;
+
+  /**
+   * Inputs waiting to be expanded, scored by the new coverage they found.
+   */
+  private final CoverageCorpus<InputNode> corpus;
+
+  /**
+   * Persists interesting inputs between runs, or null if disabled.
+   */
+  private final @Nullable CorpusStore store;
+
+  /**
+   * Inputs which are saved to the store: those loaded from it, followed by every
+   * input which found new coverage in this run.
+   */
+  private final ArrayList<CorpusEntry<PackedSequence>> stored = new ArrayList<>();
+
+  /**
+   * Number of entries of {@link #stored} when the store was last written.
+   */
+  private int storedSaved;
+
+  /**
+   * Writes the store on a background thread, so that the generator is never
+   * held whilst writing, or null if inputs are not persisted. Only one write
+   * runs at a time, in the order requested, so a later snapshot is never
+   * overwritten by an earlier one. The thread exits when idle.
+   */
+  private final @Nullable ThreadPoolExecutor saver;
+
+  /**
+   * Mutates the inputs chosen for expansion, beyond appending a step.
+   */
+  private final MutationEngine mutations = new MutationEngine(StandardMutator.values());
+
+  /**
+   * Recent inputs which found new coverage, which mutants may be spliced with.
+   * Once full, each new one replaces the oldest.
+   */
+  private final ArrayList<InputNode> donors = new ArrayList<>();
+
+  /**
+   * Number of inputs ever added to {@link #donors}.
+   */
+  private int donated;
+
+  /**
+   * Create new input generator for the TinyBoy simulation.
+   */
+  public TinyBoyInputGenerator() {
+    this(1);
   }
 
   /**
-   * Retrieve all possible button presses, including no press.
+   * Create new input generator for the TinyBoy simulation, whose inputs will be
+   * executed by a given number of worker threads.
    *
-   * @return an array of ControlPad buttons, including null
+   * @param nThreads Number of worker threads executing the inputs.
    */
-  private static ControlPad.Button[] getValues() {
-    ControlPad.Button[] allButtons = ControlPad.Button.values();
-    ControlPad.Button[] buttonsWithNull = Arrays.copyOf(allButtons, allButtons.length + 1);
-    buttonsWithNull[allButtons.length] = null;
-    return buttonsWithNull;
+  public TinyBoyInputGenerator(int nThreads) {
+    this(nThreads, null, false, false, null);
   }
 
   /**
-   * Generates all possible combinations of button presses for a given number of
-   * buttons and sequence length.
+   * Create new input generator for the TinyBoy simulation which, given the
+   * firmware being tested, optionally directs inputs towards branches not yet
+   * covered and optionally seeds itself by concolic execution. When directed,
+   * amongst inputs which found the same new coverage, those which got closest to
+   * an uncovered branch (according to the firmware's control-flow graph) are
+   * expanded first. When seeding, each generation which finds no new coverage
+   * has the inputs chosen for expansion executed concolically, and the inputs
+   * solved for to flip their uncovered branches are executed in a later
+   * generation. Solving runs in the background, so the generator is not held
+   * whilst it does. Given a store, the generator resumes from the corpus saved
+   * by an earlier run against the same firmware. The inputs loaded are executed
+   * before any others. At the end of every generation, and when
+   * {@link #saveCorpus()} is called, a minimal set of inputs preserving the
+   * coverage found so far is saved back.
    *
-   * @param numButtons     the number of buttons available for pressing
-   * @param sequenceLength the length of each input sequence
-   * @return an ArrayList of TinyBoyInputSequence objects, each representing a
-   *         unique combination of button presses
-   */
-  public static ArrayList<TinyBoyInputSequence> generateCombinations(int numButtons,
-      int sequenceLength) {
-    ArrayList<TinyBoyInputSequence> combinations = new ArrayList<>();
-    int[] indexes = new int[sequenceLength];
-
-    while (true) {
-      ControlPad.Button[] sequence = new ControlPad.Button[sequenceLength];
-      for (int i = 0; i < sequenceLength; i++) {
-        sequence[i] = getValues()[indexes[i]];
+   * @param nThreads Number of worker threads executing the inputs.
+   * @param firmware The firmware being tested, or null to neither direct nor
+   *                 seed inputs.
+   * @param directed Whether to direct inputs towards uncovered branches (which
+   *                 requires the firmware).
+   * @param concolic Whether to seed inputs by concolic execution (which
+   *                 requires the firmware).
+   * @param store    The corpus of the firmware being tested, or null to not
+   *                 persist inputs.
+   */
+  public TinyBoyInputGenerator(int nThreads, @Nullable HexFile firmware, boolean directed,
+      boolean concolic, @Nullable CorpusStore store) {
+    this.expandPerGeneration = expansionsFor(nThreads);
+    BranchDistance d = firmware != null && directed ? new BranchDistance(firmware) : null;
+    this.distance = d;
+    this.seeder = firmware != null && concolic ? new ConcolicSeeder(firmware) : null;
+    this.solver = this.seeder == null ? null : background();
+    this.corpus = new CoverageCorpus<>(CORPUS_CAPACITY, d == null ? null : d::distanceOf,
+        COVERAGE_BITS);
+    this.seqLength = 2;
+    this.worklist.clear();
+    this.store = store;
+    this.saver = store == null ? null : background();
+
+    // Seed first with the inputs which were interesting last time
+    long seeded = 0;
+    if (store != null) {
+      this.stored.addAll(store.load());
+      this.storedSaved = this.stored.size();
+      ArrayList<InputNode> loaded = new ArrayList<>();
+      for (CorpusEntry<PackedSequence> e : this.stored) {
+        loaded.add(toNode(e.input()));
       }
-      combinations.add(new TinyBoyInputSequence(sequence));
-
-      // Move to the next combination
-      int i;
-      for (i = sequenceLength - 1; i >= 0; i--) {
-        if (indexes[i] < numButtons - 1) {
-          indexes[i]++;
-          break;
-        }
-        indexes[i] = 0;
+      if (!loaded.isEmpty()) {
+        seeded += loaded.size();
+        this.seeds.add(loaded.iterator());
       }
+    }
 
-      if (i < 0) {
-        break;
-      }
+    // Seed with every sequence up to the initial length, shortest first and with
+    // no press tried first. These are produced lazily, rather than built up front.
+    for (int sequenceLength = 1; sequenceLength <= this.seqLength; sequenceLength++) {
+      Combinations combinations = new Combinations(NUM_BUTTONS + 1, sequenceLength, true);
+      seeded += combinations.estimateSize();
+      this.seeds.add(Spliterators.iterator(combinations));
     }
-    return combinations;
+
+    this.numberOfInputs = Math.toIntExact(seeded);
   }
 
   @Override
-  public boolean hasMore() {
-    return this.worklist.size() > 0;
+  public synchronized boolean hasMore() {
+    return this.worklist.size() > 0 || !this.seeds.isEmpty();
   }
 
   @Override
-  public @Nullable TinyBoyInputSequence generate() {
-    if (!this.worklist.isEmpty()) {
+  public synchronized InputNode.@Nullable Cursor generate() {
+    takeSeeds();
+    Iterator<InputNode> seed = this.seeds.peek();
+    if (seed != null) {
+      InputNode next = seed.next();
+      if (!seed.hasNext()) {
+        this.seeds.remove();
+      }
+      return next.cursor();
+    } else if (!this.worklist.isEmpty()) {
       // remove last item from worklist
-      return this.worklist.remove(this.worklist.size() - 1);
+      return this.worklist.remove(this.worklist.size() - 1).cursor();
     }
     return null;
   }
@@ -158,148 +310,354 @@ public class TinyBoyInputGenerator implements AutomatedTester.InputGenerator<Tin
    * obtained for a given input sequence.
    */
   @Override
-  public void record(TinyBoyInputSequence input, BitSet coverage, byte[] state) {
-
-    this.recordedInputs.add(new Triple<>(input, coverage, state));
+  public synchronized void record(InputNode.Cursor input, BitSet coverage, byte[] state) {
+    // A new direction of a branch is as good as a new instruction
+    int newBits = this.corpus.record(coverage) + input.newEdges();
+    this.recordedInputs.add(
+        new CorpusEntry<>(input.node(), coverage, state, newBits, input.newCounts(), 1));
+    this.mutations.record(input.node(), newBits != 0 || input.newCounts() != 0);
+    if (newBits != 0) {
+      donate(input.node());
+      if (this.store != null) {
+        this.stored.add(new CorpusEntry<>(input.node().pack(), coverage, state, newBits, 1));
+      }
+    }
     if (this.numberOfInputs == this.recordedInputs.size()) {
-      this.worklist = addOneToAllSequences(
-          convertTripleToSequence(pruneInputs(this.recordedInputs)));
-      if (this.worklist.size() > 300) {
-        randomSample(this.worklist, 300);
+      scheduleSave();
+      ArrayList<CorpusEntry<InputNode>> pruned =
+          pruneInputs(this.recordedInputs, this.seenStates);
+      this.generation++;
+      this.newStates = pruned.size();
+      boolean plateau = this.corpus.getCovered() == this.generationCovered;
+      this.generationCovered = this.corpus.getCovered();
+      updateDistances();
+      // Favour the smallest set of inputs preserving this generation's coverage
+      BitSet cover = CoverageMinimiser.cover(pruned);
+      ArrayList<CorpusEntry<InputNode>> favoured = new ArrayList<>();
+      ArrayList<CorpusEntry<InputNode>> reserve = new ArrayList<>();
+      for (int i = 0; i != pruned.size(); i++) {
+        if (cover.get(i)) {
+          favoured.add(pruned.get(i));
+        } else {
+          reserve.add(pruned.get(i));
+        }
+      }
+      this.corpus.addAll(favoured, true);
+      this.corpus.addAll(reserve, false);
+      ArrayList<CorpusEntry<InputNode>> survivors =
+          this.corpus.schedule(this.expandPerGeneration);
+      for (CorpusEntry<InputNode> survivor : survivors) {
+        this.seenStates.add(survivor.state());
+      }
+      // The worklist is consumed from the end, so put the best inputs last
+      Collections.reverse(survivors);
+      ArrayList<InputNode> parents = toSequences(survivors);
+      // The children of the last inputs expanded now hold their own snapshots
+      for (InputNode parent : this.expanded) {
+        parent.release();
+      }
+      this.expanded = parents;
+      this.worklist = addOneToAllSequences(parents);
+      // Mutants go first in the list, so are executed after the extensions
+      if (!parents.isEmpty()) {
+        this.worklist.addAll(0, this.mutations.mutate(parents,
+            this.donors.isEmpty() ? parents : this.donors,
+            MUTANTS_PER_SURVIVOR * parents.size()));
+      }
+      if (plateau) {
+        seed(survivors);
       }
       this.recordedInputs.clear();
       this.numberOfInputs = this.worklist.size();
+    }
+  }
 
+  /**
+   * Keep an input which found new coverage to splice mutants with, replacing the
+   * oldest once {@link #DONORS} are kept.
+   *
+   * @param input The input.
+   */
+  private void donate(InputNode input) {
+    if (this.donors.size() < DONORS) {
+      this.donors.add(input);
+    } else {
+      this.donors.set(this.donated % DONORS, input);
     }
+    this.donated++;
   }
 
   /**
-   * Prunes the given list of inputs by removing any input that has the same state
-   * as another input in the list. The method compares the byte arrays (the third
-   * element in each Triple) to check for equality. Inputs are considered
-   * duplicates if their byte arrays are equal.
+   * Get the mutation engine, whose statistics show how successful each operator
+   * has been.
    *
-   * @param inputs An ArrayList of Triple objects, where each Triple contains a
-   *               TinyBoyInputSequence, a BitSet, and a byte array representing
-   *               the input state.
-   * @return An ArrayList of pruned Triple objects, where each Triple contains a
-   *         TinyBoyInputSequence, a BitSet, and a byte array representing the
-   *         input state with duplicates removed.
-   */
-  public static ArrayList<Triple<TinyBoyInputSequence, BitSet, byte[]>> pruneInputs(
-      ArrayList<Triple<TinyBoyInputSequence, BitSet, byte[]>> inputs) {
-
-    ArrayList<Triple<TinyBoyInputSequence, BitSet, byte[]>> prunedInputs = new ArrayList<>();
-    outerLoop: for (Triple<TinyBoyInputSequence, BitSet, byte[]> input1 : inputs) {
-      byte[] recordedState1 = input1.third();
-      for (Triple<TinyBoyInputSequence, BitSet, byte[]> input2 : inputs) {
-        if (input1 != input2) {
-          byte[] recordedState2 = input2.third();
-          if (Arrays.equals(recordedState1, recordedState2)) {
-            continue outerLoop;
-          }
-        }
-      }
-      prunedInputs.add(input1);
+   * @return the mutation engine.
+   */
+  public MutationEngine getMutations() {
+    return this.mutations;
+  }
+
+  /**
+   * Update the distance to the nearest uncovered branch if the global coverage
+   * has grown, since some targets may then have been covered.
+   */
+  private void updateDistances() {
+    BranchDistance d = this.distance;
+    if (d != null && this.corpus.getCovered() != this.distanceCovered) {
+      d.update(this.corpus.getCoverage());
+      this.corpus.reprioritise();
+      this.distanceCovered = this.corpus.getCovered();
+    }
+  }
+
+  /**
+   * Save the inputs which found new coverage to the store (if enabled), and wait
+   * for this to finish. This should be called once the run has ended, since a
+   * run usually stops part way through a generation, and is also done in the
+   * background at the end of every generation. The generator is not held whilst
+   * writing.
+   *
+   * @throws InterruptedException If the calling thread is interrupted.
+   * @throws ExecutionException   If writing fails unexpectedly.
+   */
+  public void saveCorpus() throws InterruptedException, ExecutionException {
+    Future<?> f;
+    synchronized (this) {
+      f = scheduleSave();
+    }
+    if (f != null) {
+      f.get();
     }
+  }
 
-    // Subsumption
-    Collections.sort(inputs, (a, b) -> {
-      if (subsumedBy(a.second(), b.second())) {
-        return -1;
+  /**
+   * Start writing a snapshot of the inputs which found new coverage to the
+   * store, if any have been found since it was last written. Failing to write
+   * does not stop the run, since the store only ever speeds up later runs. This
+   * must be called whilst holding the generator's lock.
+   *
+   * @return the write, or null if none was needed.
+   */
+  private @Nullable Future<?> scheduleSave() {
+    CorpusStore s = this.store;
+    ThreadPoolExecutor e = this.saver;
+    if (s == null || e == null || this.stored.size() == this.storedSaved) {
+      return null;
+    }
+    ArrayList<CorpusEntry<PackedSequence>> snapshot = new ArrayList<>(this.stored);
+    this.storedSaved = snapshot.size();
+    return e.submit(() -> {
+      try {
+        s.save(snapshot);
+      } catch (IOException x) {
+        System.err.println("Failed to save corpus to " + s.getFile() + ": " + x); //$NON-NLS-1$ //$NON-NLS-2$
       }
-      return 1;
     });
-    
-    
-    // Keep only the first 5 elements
-    int elementsToKeep = 5;
-    if (prunedInputs.size() > elementsToKeep) {
-      prunedInputs = new ArrayList<>(prunedInputs.subList(0, elementsToKeep));
+  }
+
+  /**
+   * Build the input node for a packed sequence.
+   *
+   * @param steps The packed sequence.
+   * @return a new node with the same steps.
+   */
+  private static InputNode toNode(PackedSequence steps) {
+    InputNode node = InputNode.ROOT;
+    for (int i = 0; i != steps.length(); i++) {
+      node = node.append(steps.getButton(i));
+    }
+    return node;
+  }
+
+  /**
+   * Start producing seeds by executing inputs concolically in the background,
+   * if enabled and not already doing so. The inputs and the global coverage are
+   * captured now, whilst holding the generator's lock, since the seeder only
+   * reads the steps of the inputs, which never change.
+   *
+   * @param inputs The inputs to execute, best last.
+   */
+  private void seed(ArrayList<CorpusEntry<InputNode>> inputs) {
+    ConcolicSeeder s = this.seeder;
+    ThreadPoolExecutor e = this.solver;
+    if (s == null || e == null || this.solving != null) {
+      return;
+    }
+    ArrayList<InputNode> best = new ArrayList<>();
+    for (int i = inputs.size() - 1; i >= 0; i--) {
+      best.add(inputs.get(i).input());
+    }
+    BitSet coverage = (BitSet) this.corpus.getCoverage().clone();
+    this.solving = e.submit(() -> {
+      ArrayList<InputNode> seeds = s.solve(best, coverage, SEEDS_PER_GENERATION);
+      Collections.reverse(seeds);
+      return seeds;
+    });
+  }
+
+  /**
+   * Add the seeds produced by the background solve to the current generation,
+   * if it has finished. They go last in the worklist, so are executed next.
+   * This must be called whilst holding the generator's lock.
+   */
+  private void takeSeeds() {
+    Future<ArrayList<InputNode>> f = this.solving;
+    if (f == null || !f.isDone()) {
+      return;
     }
-    
+    this.solving = null;
+    ArrayList<InputNode> seeds;
+    try {
+      seeds = f.get();
+    } catch (InterruptedException | ExecutionException x) {
+      throw new IllegalStateException("concolic seeding failed", x); //$NON-NLS-1$
+    }
+    this.worklist.addAll(seeds);
+    this.numberOfInputs += seeds.size();
+  }
+
+  /**
+   * Create an executor running tasks one at a time, in the order submitted, on
+   * a daemon thread which exits when idle.
+   *
+   * @return the executor.
+   */
+  private static ThreadPoolExecutor background() {
+    return new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r);
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @Override
+  public synchronized int getGeneration() {
+    return this.generation;
+  }
+
+  @Override
+  public synchronized int getNewStates() {
+    return this.newStates;
+  }
+
+  @Override
+  public synchronized void setThreads(int threads) {
+    this.expandPerGeneration = expansionsFor(threads);
+  }
 
-    
+  /**
+   * Work out how many inputs to expand in each generation, given the number of
+   * worker threads.
+   *
+   * @param threads Number of worker threads.
+   * @return the number of inputs to expand.
+   */
+  private static int expansionsFor(int threads) {
+    return Math.max(1, (threads + NUM_BUTTONS) / (NUM_BUTTONS + 1));
+  }
+
+  /**
+   * Prunes the given list of inputs by removing any input that has the same state
+   * as an earlier input in the list. States are compared by hashing the byte
+   * arrays, so this takes time linear in the number of inputs.
+   *
+   * @param <T>    type of input
+   * @param inputs A list of executed inputs, along with their coverage and final
+   *               state.
+   * @return A list of the inputs with duplicates removed.
+   */
+  public static <T> ArrayList<CorpusEntry<T>> pruneInputs(ArrayList<CorpusEntry<T>> inputs) {
+    return pruneInputs(inputs, new StateIndex());
+  }
+
+  /**
+   * Prunes the given list of inputs by removing any input whose state was reached
+   * by an earlier input in the list, or is in the given index because it was
+   * expanded in a previous generation. Each surviving input is annotated with the
+   * number of inputs in the list which reached the same state.
+   *
+   * @param <T>        type of input
+   * @param inputs     A list of executed inputs, along with their coverage and
+   *                   final state.
+   * @param seenStates Index of states which have already been expanded.
+   * @return A list of the inputs with duplicates removed.
+   */
+  public static <T> ArrayList<CorpusEntry<T>> pruneInputs(ArrayList<CorpusEntry<T>> inputs,
+      StateIndex seenStates) {
+    StateIndex batchStates = new StateIndex();
+    ArrayList<CorpusEntry<T>> prunedInputs = new ArrayList<>();
+    for (CorpusEntry<T> input : inputs) {
+      byte[] state = input.state();
+      if (!seenStates.contains(state) && batchStates.add(state)) {
+        prunedInputs.add(input);
+      }
+    }
+    // Record how many inputs reached each surviving state
+    for (int i = 0; i != prunedInputs.size(); i++) {
+      CorpusEntry<T> input = prunedInputs.get(i);
+      prunedInputs.set(i, input.withStateHits(batchStates.count(input.state())));
+    }
     return prunedInputs;
   }
 
   /**
-   * Converts a list of Triple objects containing TinyBoyInputSequence, BitSet,
-   * and byte array into a list of TinyBoyInputSequence objects. The method
-   * extracts the first element of each Triple (the TinyBoyInputSequence) and adds
-   * it to a new ArrayList.
+   * Extracts the input from each of a list of corpus entries.
    *
-   * @param inputs An ArrayList of Triple objects, where each Triple contains a
-   *               TinyBoyInputSequence, a BitSet, and a byte array representing
-   *               the input state.
-   * @return An ArrayList of TinyBoyInputSequence objects extracted from the input
-   *         list of Triple objects.
-   */
-  public static ArrayList<TinyBoyInputSequence> convertTripleToSequence(
-      ArrayList<Triple<TinyBoyInputSequence, BitSet, byte[]>> inputs) {
-    ArrayList<TinyBoyInputSequence> output = new ArrayList<>();
-
-    for (Triple<TinyBoyInputSequence, BitSet, byte[]> input : inputs) {
-      output.add(input.first);
+   * @param <T>    type of input
+   * @param inputs A list of executed inputs, along with their coverage and final
+   *               state.
+   * @return An ArrayList of the inputs, in the same order.
+   */
+  public static <T> ArrayList<T> toSequences(ArrayList<CorpusEntry<T>> inputs) {
+    ArrayList<T> output = new ArrayList<>();
+    for (CorpusEntry<T> input : inputs) {
+      output.add(input.input());
     }
     return output;
   }
 
   /**
    * Appends one additional ControlPad.Button value to each input sequence in the
-   * given list and returns a new list of TinyBoyInputSequence objects. This
-   * method also increments the sequence length by 1. The appended button values
-   * are taken from the ControlPad.Button enumeration.
+   * given list and returns a new list of InputNode objects. This method also
+   * increments the sequence length by 1. The appended button values are those
+   * the firmware was waiting on when it polled the buttons after the sequence
+   * (see {@link InputNode#nextButtons()}), or every ControlPad.Button value if
+   * that is not known. Each child only stores the appended button, and shares
+   * the rest of its sequence with its parent.
    *
-   * @param inputs An ArrayList of TinyBoyInputSequence objects to be extended by
-   *               one additional button value.
-   * @return An ArrayList of TinyBoyInputSequence objects with one additional
-   *         button value appended to each input sequence.
+   * @param inputs An ArrayList of InputNode objects to be extended by one
+   *               additional button value.
+   * @return An ArrayList of InputNode objects with one additional button value
+   *         appended to each input sequence.
    */
-  public ArrayList<TinyBoyInputSequence> addOneToAllSequences(
-      ArrayList<TinyBoyInputSequence> inputs) {
+  public ArrayList<InputNode> addOneToAllSequences(ArrayList<InputNode> inputs) {
     this.seqLength++;
-    ArrayList<TinyBoyInputSequence> output = new ArrayList<>();
+    ArrayList<InputNode> output = new ArrayList<>();
 
-    for (TinyBoyInputSequence sequence : inputs) {
-      for (int i = 0; i < NUM_BUTTONS; i++) {
-        output.add(sequence.append(ControlPad.Button.values()[i]));
+    for (InputNode sequence : inputs) {
+      for (ControlPad.@Nullable Button b : sequence.nextButtons()) {
+        output.add(sequence.append(b));
       }
     }
     return output;
   }
 
   /**
-   * Check whether a given input sequence is completely subsumed by another.
+   * Check whether a given input sequence is completely subsumed by another. This
+   * walks the runs of set bits in lhs, and does not allocate.
    *
    * @param lhs The one which may be subsumed.
    * @param rhs The one which may be subsuming.
    * @return True if lhs subsumed by rhs, false otherwise.
    */
   public static boolean subsumedBy(BitSet lhs, BitSet rhs) {
-    BitSet rhsWithoutLhs = (BitSet) rhs.clone();
-    rhsWithoutLhs.andNot(lhs);
     for (int i = lhs.nextSetBit(0); i >= 0; i = lhs.nextSetBit(i + 1)) {
-      if (!rhsWithoutLhs.get(i)) {
+      int end = lhs.nextClearBit(i);
+      if (rhs.nextClearBit(i) < end) {
         return false;
       }
+      i = end;
     }
     return true;
   }
-
-  /**
-   * Reduce a given set of items to at most <code>n</code> inputs by randomly
-   * sampling.
-   *
-   * @param inputs List of inputs to sample from.
-   * @param n      Size of inputs after reduction.
-   */
-  private static <T> void randomSample(List<T> inputs, int n) {
-    // Randomly shuffle inputs
-    Collections.shuffle(inputs);
-    // Remove inputs until only n remain
-    while (inputs.size() > n) {
-      inputs.remove(inputs.size() - 1);
-    }
-  }
 }
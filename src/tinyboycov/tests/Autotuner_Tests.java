@@ -0,0 +1,162 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.function.IntBinaryOperator;
+
+import org.junit.Test;
+
+import tinyboycov.util.Autotuner;
+
+/**
+ * Tests of the tuner of thread count and batch size, which drive it with
+ * synthetic throughput functions (with noise added to each window) and check
+ * where it settles, and that it climbs again once the throughput changes.
+ *
+ * @author niraj
+ *
+ */
+public class Autotuner_Tests {
+	/**
+	 * Largest number of threads the tuner may use.
+	 */
+	private static final int MAX_THREADS = 8;
+
+	/**
+	 * Largest number of windows to wait for the tuner to settle.
+	 */
+	private static final int MAX_WINDOWS = 1000;
+
+	/**
+	 * Throughput which grows with the number of threads up to three and then
+	 * levels off, and is highest for a batch size of 64.
+	 */
+	private static final IntBinaryOperator PEAKED = (threads, batchSize) -> (int) (1000 * Math.min(threads, 3)
+			* (1 - 0.1 * Math.abs(Math.log(batchSize / 64.0) / Math.log(2))));
+
+	/**
+	 * With a little noise in each window, the tuner settles on the fewest threads
+	 * and the batch size giving the most throughput.
+	 */
+	@Test
+	public void test_01() {
+		Random random = new Random(1);
+		Autotuner tuner = new Autotuner(MAX_THREADS, 1, 128);
+		assertTrue(settle(tuner, PEAKED, random, 0.1));
+		assertEquals(3, tuner.getThreads());
+		assertEquals(64, tuner.getBatchSize());
+	}
+
+	/**
+	 * Throughput which varies by less than the margin between configurations is
+	 * not worth moving for, so the tuner stays where it started.
+	 */
+	@Test
+	public void test_02() {
+		Random random = new Random(2);
+		Autotuner tuner = new Autotuner(MAX_THREADS, 2, 128);
+		assertTrue(settle(tuner, (threads, batchSize) -> 1000 + threads + batchSize % 7, random, 0));
+		assertEquals(2, tuner.getThreads());
+		assertEquals(128, tuner.getBatchSize());
+	}
+
+	/**
+	 * A single window skewed by more than the margin does not, on its own, make
+	 * the tuner accept a move.
+	 */
+	@Test
+	public void test_03() {
+		Autotuner tuner = new Autotuner(MAX_THREADS, 1, 128);
+		// The starting configuration
+		while (tuner.getThreads() == 1) {
+			tuner.sample(1000);
+		}
+		// The first move, whose first window is 15% faster
+		assertEquals(2, tuner.getThreads());
+		tuner.sample(1150);
+		while (tuner.getThreads() == 2) {
+			tuner.sample(1000);
+		}
+		assertEquals(1, tuner.getThreads());
+		assertEquals(1000, tuner.getRate(), 0);
+	}
+
+	/**
+	 * Once settled, a large change in throughput makes the tuner climb again,
+	 * and it settles on the new best configuration.
+	 */
+	@Test
+	public void test_04() {
+		Random random = new Random(4);
+		Autotuner tuner = new Autotuner(MAX_THREADS, 1, 128);
+		assertTrue(settle(tuner, PEAKED, random, 0.1));
+		assertEquals(3, tuner.getThreads());
+		// Now every extra thread slows things down
+		IntBinaryOperator contended = (threads, batchSize) -> PEAKED.applyAsInt(1, batchSize) / threads;
+		assertTrue(unsettle(tuner, contended, random, 0.1));
+		assertTrue(settle(tuner, contended, random, 0.1));
+		assertEquals(1, tuner.getThreads());
+		assertEquals(64, tuner.getBatchSize());
+	}
+
+	/**
+	 * Once settled for long enough, the tuner tries its neighbours again even if
+	 * throughput has not changed, and settles back where it was.
+	 */
+	@Test
+	public void test_05() {
+		Random random = new Random(5);
+		Autotuner tuner = new Autotuner(MAX_THREADS, 1, 128);
+		assertTrue(settle(tuner, PEAKED, random, 0.1));
+		assertTrue(unsettle(tuner, PEAKED, random, 0.1));
+		assertTrue(settle(tuner, PEAKED, random, 0.1));
+		assertEquals(3, tuner.getThreads());
+		assertEquals(64, tuner.getBatchSize());
+	}
+
+	/**
+	 * Feed a settled tuner the throughput of its configuration until it climbs
+	 * again.
+	 *
+	 * @param tuner      The tuner.
+	 * @param throughput Throughput for a given number of threads and batch size.
+	 * @param random     Source of randomness.
+	 * @param noise      Largest relative error added to each window.
+	 * @return true if the tuner started climbing again.
+	 */
+	private static boolean unsettle(Autotuner tuner, IntBinaryOperator throughput, Random random,
+			double noise) {
+		for (int i = 0; i != MAX_WINDOWS; i++) {
+			double rate = throughput.applyAsInt(tuner.getThreads(), tuner.getBatchSize());
+			tuner.sample(rate * (1 + noise * (2 * random.nextDouble() - 1)));
+			if (!tuner.isConverged()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Feed the tuner the throughput of each configuration it asks for until it
+	 * settles.
+	 *
+	 * @param tuner      The tuner.
+	 * @param throughput Throughput for a given number of threads and batch size.
+	 * @param random     Source of randomness.
+	 * @param noise      Largest relative error added to each window.
+	 * @return true if the tuner settled.
+	 */
+	private static boolean settle(Autotuner tuner, IntBinaryOperator throughput, Random random,
+			double noise) {
+		for (int i = 0; i != MAX_WINDOWS; i++) {
+			if (tuner.isConverged()) {
+				return true;
+			}
+			double rate = throughput.applyAsInt(tuner.getThreads(), tuner.getBatchSize());
+			tuner.sample(rate * (1 + noise * (2 * random.nextDouble() - 1)));
+		}
+		return false;
+	}
+}
@@ -0,0 +1,181 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.junit.Test;
+
+import tinyboy.core.ControlPad;
+import tinyboycov.core.Combinations;
+import tinyboycov.core.InputNode;
+import tinyboycov.core.PackedSequence;
+
+/**
+ * Tests of the lazy traversal over every input sequence of a given length,
+ * which check that it produces each combination exactly once and in order,
+ * however it is split.
+ *
+ * @author niraj
+ *
+ */
+public class Combinations_Tests {
+	/**
+	 * Numbers of buttons and lengths tried, as pairs.
+	 */
+	private static final int[][] SIZES = { { 1, 0 }, { 1, 5 }, { 2, 1 }, { 2, 7 }, { 3, 5 }, { 4, 4 },
+			{ 5, 3 } };
+
+	/**
+	 * Every combination is produced exactly once, in order with the first step
+	 * varying slowest, and the reverse order when descending.
+	 */
+	@Test
+	public void test_01() {
+		for (int[] size : SIZES) {
+			List<PackedSequence> expected = expected(size[0], size[1]);
+			assertEquals(Combinations.count(size[0], size[1]), expected.size());
+			assertEquals(expected, traverse(new Combinations(size[0], size[1])));
+			Collections.reverse(expected);
+			assertEquals(expected, traverse(new Combinations(size[0], size[1], true)));
+		}
+	}
+
+	/**
+	 * Splitting repeatedly, at random points of the traversal, and consuming the
+	 * pieces in order gives the same combinations as a full traversal.
+	 */
+	@Test
+	public void test_02() {
+		Random random = new Random(2);
+		for (int[] size : SIZES) {
+			for (boolean descending : new boolean[] { false, true }) {
+				List<PackedSequence> expected = traverse(new Combinations(size[0], size[1], descending));
+				ArrayList<PackedSequence> actual = new ArrayList<>();
+				split(new Combinations(size[0], size[1], descending), random, actual);
+				assertEquals(expected, actual);
+			}
+		}
+	}
+
+	/**
+	 * A parallel stream over the combinations gives the same set as a full
+	 * traversal.
+	 */
+	@Test
+	public void test_03() {
+		for (int[] size : SIZES) {
+			HashSet<PackedSequence> expected = new HashSet<>(expected(size[0], size[1]));
+			HashSet<PackedSequence> actual = StreamSupport
+					.stream(new Combinations(size[0], size[1]), true).map(InputNode::pack)
+					.collect(Collectors.toCollection(HashSet::new));
+			assertEquals(expected, actual);
+		}
+	}
+
+	/**
+	 * A traversal with a single combination left cannot be split, and the sizes
+	 * of the two halves of a split add up.
+	 */
+	@Test
+	public void test_04() {
+		Combinations c = new Combinations(2, 3);
+		assertEquals(8, c.estimateSize());
+		Spliterator<InputNode> prefix = c.trySplit();
+		assertTrue(prefix != null);
+		assertEquals(4, prefix.estimateSize());
+		assertEquals(4, c.estimateSize());
+		for (int i = 0; i != 3; i++) {
+			c.tryAdvance(n -> {
+				// Skip
+			});
+		}
+		assertNull(c.trySplit());
+	}
+
+	/**
+	 * A number of buttons which is not between one and the number of buttons
+	 * plus no press is rejected.
+	 */
+	@Test
+	public void test_05() {
+		for (int numButtons : new int[] { 0, ControlPad.Button.values().length + 2 }) {
+			try {
+				new Combinations(numButtons, 1);
+				fail("expected invalid number of buttons to be rejected"); //$NON-NLS-1$
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Consume a traversal, splitting it at random points and consuming both
+	 * pieces in order.
+	 *
+	 * @param s      The traversal.
+	 * @param random Source of randomness.
+	 * @param out    The combinations produced, flattened.
+	 */
+	private static void split(Spliterator<InputNode> s, Random random, List<PackedSequence> out) {
+		while (true) {
+			if (random.nextInt(3) == 0) {
+				Spliterator<InputNode> prefix = s.trySplit();
+				if (prefix != null) {
+					split(prefix, random, out);
+				}
+			}
+			if (!s.tryAdvance(n -> out.add(n.pack()))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Consume a whole traversal.
+	 *
+	 * @param s The traversal.
+	 * @return The combinations produced, flattened.
+	 */
+	private static List<PackedSequence> traverse(Spliterator<InputNode> s) {
+		ArrayList<PackedSequence> out = new ArrayList<>();
+		s.forEachRemaining(n -> out.add(n.pack()));
+		return out;
+	}
+
+	/**
+	 * Enumerate the combinations of a given length by counting in base
+	 * <code>numButtons</code>, with the first step as the most significant digit.
+	 *
+	 * @param numButtons Number of choices at each step.
+	 * @param length     Number of steps in each combination.
+	 * @return the combinations, in order.
+	 */
+	private static List<PackedSequence> expected(int numButtons, int length) {
+		ControlPad.Button[] buttons = ControlPad.Button.values();
+		ArrayList<PackedSequence> out = new ArrayList<>();
+		long count = Combinations.count(numButtons, length);
+		for (long i = 0; i != count; i++) {
+			ControlPad.@Nullable Button[] steps = new ControlPad.@Nullable Button[length];
+			long n = i;
+			for (int d = length - 1; d >= 0; d--) {
+				int digit = (int) (n % numButtons);
+				steps[d] = digit < buttons.length ? buttons[digit] : null;
+				n /= numButtons;
+			}
+			out.add(PackedSequence.of(steps));
+		}
+		return out;
+	}
+}
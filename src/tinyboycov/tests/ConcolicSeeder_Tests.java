@@ -0,0 +1,159 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import javr.core.AvrInstruction;
+import javr.io.HexFile;
+import tinyboy.core.ControlPad;
+import tinyboycov.core.ConcolicSeeder;
+import tinyboycov.core.InputNode;
+import tinyboycov.core.PackedSequence;
+
+/**
+ * Tests of seeding by concolic execution, which run a small program comparing
+ * the buttons pressed against a constant, and check that the seeder solves for
+ * an input taking the branch no input has taken yet.
+ *
+ * @author niraj
+ *
+ */
+public class ConcolicSeeder_Tests {
+	/**
+	 * I/O address of the port the buttons are read from.
+	 */
+	private static final int PINB = 0x16;
+
+	/**
+	 * Bits of the port the buttons are read from.
+	 */
+	private static final int BUTTON_MASK = 0b00111010;
+
+	/**
+	 * Bit of the port read from the down button.
+	 */
+	private static final int BUTTON_DOWN = 0b00001000;
+
+	/**
+	 * Word address of the branch taken when down is pressed.
+	 */
+	private static final int BRANCH = 3;
+
+	/**
+	 * Word address reached only when down is pressed.
+	 */
+	private static final int TARGET = 5;
+
+	/**
+	 * A program which polls the buttons until down alone is pressed, and then
+	 * stops.
+	 */
+	private static final AvrInstruction[] PROGRAM = {
+			new AvrInstruction.IN(16, PINB),
+			new AvrInstruction.ANDI(16, BUTTON_MASK),
+			new AvrInstruction.CPI(16, BUTTON_DOWN),
+			new AvrInstruction.BREQ(TARGET - BRANCH - 1),
+			new AvrInstruction.RJMP(-5),
+			new AvrInstruction.RJMP(-1) };
+
+	/**
+	 * Starting from an input pressing nothing, the seeder solves for an input
+	 * pressing down, which is the only way to reach the end of the program.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_01() throws Exception {
+		ConcolicSeeder seeder = new ConcolicSeeder(firmware());
+		ArrayList<InputNode> seeds = seeder.solve(List.of(InputNode.ROOT.append(null)), covered(),
+				1);
+		assertEquals(1, seeds.size());
+		assertTrue(presses(seeds.get(0), ControlPad.Button.DOWN));
+	}
+
+	/**
+	 * Nothing is solved for when the branch has already been taken, or when no
+	 * seeds are wanted.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_02() throws Exception {
+		ConcolicSeeder seeder = new ConcolicSeeder(firmware());
+		BitSet coverage = covered();
+		assertTrue(seeder.solve(List.of(InputNode.ROOT.append(null)), coverage, 0).isEmpty());
+		coverage.set(TARGET * 2, TARGET * 2 + 2);
+		assertTrue(seeder.solve(List.of(InputNode.ROOT.append(null)), coverage, 1).isEmpty());
+	}
+
+	/**
+	 * A branch solved for once is not solved for again by the same seeder, even
+	 * from another input, since its seed is already on its way to the fuzzer.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_03() throws Exception {
+		ConcolicSeeder seeder = new ConcolicSeeder(firmware());
+		InputNode input = InputNode.ROOT.append(null);
+		assertEquals(1, seeder.solve(List.of(input), covered(), 1).size());
+		assertTrue(seeder.solve(List.of(input.append(ControlPad.Button.UP)), covered(), 1).isEmpty());
+		assertEquals(1, new ConcolicSeeder(firmware()).solve(List.of(input), covered(), 1).size());
+	}
+
+	/**
+	 * Check whether an input presses a given button at some step.
+	 *
+	 * @param input  The input.
+	 * @param button The button.
+	 * @return true if the button is pressed.
+	 */
+	private static boolean presses(InputNode input, ControlPad.Button button) {
+		PackedSequence steps = input.pack();
+		for (int i = 0; i != steps.length(); i++) {
+			if (steps.getButton(i) == button) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the code covered by polling without pressing down, which is every
+	 * instruction up to the end of the program.
+	 *
+	 * @return the coverage, as bytes of code memory read.
+	 */
+	private static BitSet covered() {
+		BitSet coverage = new BitSet();
+		coverage.set(0, TARGET * 2);
+		return coverage;
+	}
+
+	/**
+	 * Assemble the program.
+	 *
+	 * @return The firmware.
+	 * @throws Exception If something goes wrong.
+	 */
+	private static HexFile firmware() throws Exception {
+		int total = 0;
+		for (AvrInstruction insn : PROGRAM) {
+			total += insn.getBytes().length;
+		}
+		byte[] bytes = new byte[total];
+		int j = 0;
+		for (AvrInstruction insn : PROGRAM) {
+			byte[] b = insn.getBytes();
+			System.arraycopy(b, 0, bytes, j, b.length);
+			j += b.length;
+		}
+		return HexFile.toHexFile(bytes, 16);
+	}
+}
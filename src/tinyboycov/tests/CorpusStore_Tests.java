@@ -0,0 +1,216 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javr.io.HexFile;
+import tinyboy.core.ControlPad;
+import tinyboycov.core.CorpusEntry;
+import tinyboycov.core.CorpusStore;
+import tinyboycov.core.PackedSequence;
+
+/**
+ * Tests of the corpus persisted between runs, which check that what is saved
+ * is loaded back, and that a file saved for other firmware, or which has been
+ * cut short, extended or corrupted, is ignored rather than loaded.
+ *
+ * @author niraj
+ *
+ */
+public class CorpusStore_Tests {
+	/**
+	 * Size of the header of a corpus file (magic number, version, firmware hash
+	 * and number of entries), after which the first entry starts.
+	 */
+	private static final int HEADER = 4 + 4 + 32 + 4;
+
+	/**
+	 * Directory holding the corpus files of each test.
+	 */
+	private @Nullable File dir;
+
+	/**
+	 * Create an empty directory for the corpus files.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		this.dir = Files.createTempDirectory("corpus").toFile(); //$NON-NLS-1$
+	}
+
+	/**
+	 * Remove the corpus files, and their directory.
+	 */
+	@After
+	public void tearDown() {
+		File d = this.dir;
+		if (d != null) {
+			for (File f : d.listFiles()) {
+				f.delete();
+			}
+			d.delete();
+		}
+	}
+
+	/**
+	 * Saving some inputs and loading them back gives the same steps and coverage,
+	 * in the same order, except that an input whose coverage is subsumed by
+	 * another is not kept.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_01() throws Exception {
+		CorpusStore store = new CorpusStore(dir(), firmware("blocks_1.hex")); //$NON-NLS-1$
+		assertTrue(store.load().isEmpty());
+		ArrayList<CorpusEntry<PackedSequence>> entries = entries(new Random(1));
+		// Covers nothing the first entry does not
+		BitSet subsumed = new BitSet();
+		subsumed.set(0);
+		ArrayList<CorpusEntry<PackedSequence>> saved = new ArrayList<>(entries);
+		saved.add(1, new CorpusEntry<>(PackedSequence.of(ControlPad.Button.UP), subsumed, new byte[0], 0, 1));
+		store.save(saved);
+		ArrayList<CorpusEntry<PackedSequence>> loaded = store.load();
+		assertEquals(entries.size(), loaded.size());
+		for (int i = 0; i != entries.size(); i++) {
+			assertEquals(entries.get(i).input(), loaded.get(i).input());
+			assertEquals(entries.get(i).coverage(), loaded.get(i).coverage());
+		}
+		// Saving again replaces what was there
+		store.save(entries.subList(0, 2));
+		assertEquals(2, store.load().size());
+	}
+
+	/**
+	 * Other firmware has its own file, which starts empty, and a corpus saved for
+	 * other firmware is not loaded even when it is given the right name.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_02() throws Exception {
+		CorpusStore store = new CorpusStore(dir(), firmware("blocks_1.hex")); //$NON-NLS-1$
+		CorpusStore other = new CorpusStore(dir(), firmware("blocks_2.hex")); //$NON-NLS-1$
+		assertNotEquals(store.getFile(), other.getFile());
+		store.save(entries(new Random(2)));
+		assertTrue(other.load().isEmpty());
+		Files.copy(store.getFile().toPath(), other.getFile().toPath());
+		assertTrue(other.load().isEmpty());
+		assertEquals(entries(new Random(2)).size(), store.load().size());
+	}
+
+	/**
+	 * A corpus cut short anywhere, or followed by anything else, is not loaded.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_03() throws Exception {
+		CorpusStore store = new CorpusStore(dir(), firmware("blocks_1.hex")); //$NON-NLS-1$
+		store.save(entries(new Random(3)));
+		byte[] bytes = Files.readAllBytes(store.getFile().toPath());
+		for (int n = 0; n < bytes.length; n++) {
+			Files.write(store.getFile().toPath(), Arrays.copyOf(bytes, n));
+			assertTrue(store.load().isEmpty());
+		}
+		Files.write(store.getFile().toPath(), Arrays.copyOf(bytes, bytes.length + 1));
+		assertTrue(store.load().isEmpty());
+		Files.write(store.getFile().toPath(), bytes);
+		assertEquals(entries(new Random(3)).size(), store.load().size());
+	}
+
+	/**
+	 * A corpus whose sizes claim more than the file holds is not loaded, and
+	 * nothing that large is allocated.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_04() throws Exception {
+		CorpusStore store = new CorpusStore(dir(), firmware("blocks_1.hex")); //$NON-NLS-1$
+		ArrayList<CorpusEntry<PackedSequence>> entries = entries(new Random(4));
+		store.save(entries);
+		byte[] bytes = Files.readAllBytes(store.getFile().toPath());
+		// The number of steps and size of the coverage of the first entry, whose
+		// single step takes one word
+		assertEquals(1, entries.get(0).input().length());
+		int length = HEADER;
+		int count = length + 4 + 8;
+		for (int offset : new int[] { length, count, HEADER - 4 }) {
+			for (int value : new int[] { Integer.MAX_VALUE, Integer.MIN_VALUE, -1, bytes.length }) {
+				byte[] corrupt = bytes.clone();
+				ByteBuffer.wrap(corrupt).putInt(offset, value);
+				Files.write(store.getFile().toPath(), corrupt);
+				assertTrue(store.load().isEmpty());
+			}
+		}
+	}
+
+	/**
+	 * Create some inputs with random steps, each covering something no other
+	 * does, so none is subsumed by another.
+	 *
+	 * @param random Source of randomness.
+	 * @return the inputs.
+	 */
+	private static ArrayList<CorpusEntry<PackedSequence>> entries(Random random) {
+		ArrayList<CorpusEntry<PackedSequence>> entries = new ArrayList<>();
+		ControlPad.Button[] buttons = ControlPad.Button.values();
+		int[] lengths = { 1, 20, 21, 22, 64, 100 };
+		for (int i = 0; i != lengths.length; i++) {
+			PackedSequence steps = PackedSequence.EMPTY;
+			for (int j = 0; j != lengths[i]; j++) {
+				int b = random.nextInt(buttons.length + 1);
+				steps = steps.append(b == buttons.length ? null : buttons[b]);
+			}
+			BitSet coverage = new BitSet();
+			coverage.set(0, 10);
+			coverage.set(1000 + i);
+			coverage.set(random.nextInt(8192));
+			entries.add(new CorpusEntry<>(steps, coverage, new byte[0], 0, 1));
+		}
+		return entries;
+	}
+
+	/**
+	 * Get the directory holding the corpus files.
+	 *
+	 * @return the directory.
+	 */
+	private File dir() {
+		File d = this.dir;
+		assert d != null;
+		return d;
+	}
+
+	/**
+	 * Load a firmware image from the tests directory.
+	 *
+	 * @param name Name of the image.
+	 * @return the image.
+	 * @throws Exception If something goes wrong.
+	 */
+	private static HexFile firmware(String name) throws Exception {
+		try (FileReader fr = new FileReader("tests/" + name)) { //$NON-NLS-1$
+			HexFile firmware = new HexFile.Reader(fr).readAll();
+			assert firmware != null;
+			return firmware;
+		}
+	}
+}
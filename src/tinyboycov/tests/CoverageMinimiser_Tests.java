@@ -0,0 +1,183 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import tinyboycov.core.CorpusEntry;
+import tinyboycov.core.CoverageMinimiser;
+import tinyboycov.core.TinyBoyInputGenerator;
+
+/**
+ * Tests of the greedy coverage minimiser, which check that the cover it picks
+ * really covers everything the inputs covered, and of the subsumption check
+ * used alongside it.
+ *
+ * @author niraj
+ *
+ */
+public class CoverageMinimiser_Tests {
+	/**
+	 * Number of random sets of inputs tried.
+	 */
+	private static final int TRIALS = 200;
+
+	/**
+	 * Number of coverage bits, which spans several words.
+	 */
+	private static final int WIDTH = 300;
+
+	/**
+	 * The cover of random inputs covers exactly the union of all their coverage,
+	 * is listed in the original order and includes no input which covers nothing.
+	 */
+	@Test
+	public void test_01() {
+		Random random = new Random(1);
+		for (int t = 0; t != TRIALS; t++) {
+			ArrayList<CorpusEntry<Integer>> inputs = randomInputs(random, 1 + random.nextInt(40));
+			ArrayList<CorpusEntry<Integer>> cover = CoverageMinimiser.minimise(inputs);
+			assertEquals(union(inputs), union(cover));
+			int last = -1;
+			for (CorpusEntry<Integer> entry : cover) {
+				assertTrue(entry.input().intValue() > last);
+				assertFalse(entry.coverage().isEmpty());
+				last = entry.input().intValue();
+			}
+			// The indices agree with the entries
+			BitSet chosen = CoverageMinimiser.cover(inputs);
+			assertEquals(cover.size(), chosen.cardinality());
+			for (CorpusEntry<Integer> entry : cover) {
+				assertTrue(chosen.get(entry.input().intValue()));
+			}
+		}
+	}
+
+	/**
+	 * Inputs which are subsumed by another are left out, and of two inputs with
+	 * the same coverage only the earliest is kept.
+	 */
+	@Test
+	public void test_02() {
+		ArrayList<CorpusEntry<Integer>> inputs = new ArrayList<>();
+		inputs.add(entry(0, 1, 2));
+		inputs.add(entry(1, 0, 1, 2, 3, 200));
+		inputs.add(entry(2, 3));
+		inputs.add(entry(3, 64, 65, 200));
+		inputs.add(entry(4, 64, 65, 200));
+		inputs.add(entry(5));
+		BitSet chosen = CoverageMinimiser.cover(inputs);
+		assertEquals(bits(1, 3), chosen);
+	}
+
+	/**
+	 * An empty list has an empty cover.
+	 */
+	@Test
+	public void test_03() {
+		assertTrue(CoverageMinimiser.minimise(new ArrayList<CorpusEntry<Integer>>()).isEmpty());
+	}
+
+	/**
+	 * One input is subsumed by another exactly when its coverage is a subset, for
+	 * random coverage with long runs of set bits crossing word boundaries.
+	 */
+	@Test
+	public void test_04() {
+		Random random = new Random(4);
+		for (int t = 0; t != TRIALS * 10; t++) {
+			BitSet lhs = randomRuns(random);
+			BitSet rhs = random.nextBoolean() ? randomRuns(random) : (BitSet) lhs.clone();
+			if (random.nextBoolean()) {
+				rhs.or(randomRuns(random));
+			}
+			BitSet rest = (BitSet) lhs.clone();
+			rest.andNot(rhs);
+			assertEquals(rest.isEmpty(), TinyBoyInputGenerator.subsumedBy(lhs, rhs));
+		}
+		assertTrue(TinyBoyInputGenerator.subsumedBy(new BitSet(), bits(1)));
+		assertFalse(TinyBoyInputGenerator.subsumedBy(bits(1), new BitSet()));
+	}
+
+	/**
+	 * Create a number of inputs with random coverage, each identified by its
+	 * index.
+	 *
+	 * @param random Source of randomness.
+	 * @param n      Number of inputs.
+	 * @return the inputs.
+	 */
+	private static ArrayList<CorpusEntry<Integer>> randomInputs(Random random, int n) {
+		ArrayList<CorpusEntry<Integer>> inputs = new ArrayList<>();
+		for (int i = 0; i != n; i++) {
+			BitSet coverage = new BitSet();
+			int k = random.nextInt(20);
+			for (int j = 0; j != k; j++) {
+				coverage.set(random.nextInt(WIDTH));
+			}
+			inputs.add(new CorpusEntry<>(Integer.valueOf(i), coverage, new byte[0], 0, 1));
+		}
+		return inputs;
+	}
+
+	/**
+	 * Create a set of bits made up of a few random runs.
+	 *
+	 * @param random Source of randomness.
+	 * @return the bits.
+	 */
+	private static BitSet randomRuns(Random random) {
+		BitSet bits = new BitSet();
+		int k = random.nextInt(4);
+		for (int j = 0; j != k; j++) {
+			int from = random.nextInt(WIDTH);
+			bits.set(from, Math.min(WIDTH, from + random.nextInt(100)));
+		}
+		return bits;
+	}
+
+	/**
+	 * Create an input covering the given bits.
+	 *
+	 * @param id   Identifier of the input.
+	 * @param bits The bits covered.
+	 * @return the input.
+	 */
+	private static CorpusEntry<Integer> entry(int id, int... bits) {
+		return new CorpusEntry<>(Integer.valueOf(id), bits(bits), new byte[0], 0, 1);
+	}
+
+	/**
+	 * Create a set of the given bits.
+	 *
+	 * @param bits The bits.
+	 * @return the set.
+	 */
+	private static BitSet bits(int... bits) {
+		BitSet set = new BitSet();
+		for (int b : bits) {
+			set.set(b);
+		}
+		return set;
+	}
+
+	/**
+	 * Compute the union of the coverage of some inputs.
+	 *
+	 * @param inputs The inputs.
+	 * @return the union.
+	 */
+	private static BitSet union(ArrayList<CorpusEntry<Integer>> inputs) {
+		BitSet union = new BitSet();
+		for (CorpusEntry<Integer> entry : inputs) {
+			union.or(entry.coverage());
+		}
+		return union;
+	}
+}
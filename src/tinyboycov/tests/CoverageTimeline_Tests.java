@@ -0,0 +1,146 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+import javr.core.AvrInstruction;
+import javr.io.HexFile;
+import tinyboycov.util.CoverageTimeline;
+
+/**
+ * Tests of the coverage timeline, which check the rows it exports as CSV and
+ * JSON, including the branch coverage worked out from each point.
+ *
+ * @author niraj
+ *
+ */
+public class CoverageTimeline_Tests {
+	/**
+	 * Header of the CSV export.
+	 */
+	private static final String HEADER =
+			"generation,millis,inputs,cycles,newStates,newBranches,branches,branchCoverage\n"; //$NON-NLS-1$
+
+	/**
+	 * A timeline with no points exports just the header, or an empty array.
+	 */
+	@Test
+	public void test_01() {
+		CoverageTimeline timeline = new CoverageTimeline(firmware());
+		assertEquals(HEADER, timeline.toCsv());
+		assertEquals("[\n]\n", timeline.toJson()); //$NON-NLS-1$
+	}
+
+	/**
+	 * Each point exports one row, in the order added, with the branches covered
+	 * so far and those newly covered since the previous point.
+	 */
+	@Test
+	public void test_02() {
+		CoverageTimeline timeline = timeline();
+		assertEquals(HEADER
+				+ "0,5,1,10,1,0,0,0.00\n" //$NON-NLS-1$
+				+ "1,20,4,300,2,1,1,50.00\n" //$NON-NLS-1$
+				+ "2,45,9,800,0,1,2,100.00\n", //$NON-NLS-1$
+				timeline.toCsv());
+	}
+
+	/**
+	 * The JSON export holds the same values as the CSV, with one object per
+	 * point.
+	 */
+	@Test
+	public void test_03() {
+		CoverageTimeline timeline = timeline();
+		assertEquals("[\n" //$NON-NLS-1$
+				+ "  {\"generation\": 0, \"millis\": 5, \"inputs\": 1, \"cycles\": 10, \"newStates\": 1, " //$NON-NLS-1$
+				+ "\"newBranches\": 0, \"branches\": 0, \"branchCoverage\": 0.00},\n" //$NON-NLS-1$
+				+ "  {\"generation\": 1, \"millis\": 20, \"inputs\": 4, \"cycles\": 300, \"newStates\": 2, " //$NON-NLS-1$
+				+ "\"newBranches\": 1, \"branches\": 1, \"branchCoverage\": 50.00},\n" //$NON-NLS-1$
+				+ "  {\"generation\": 2, \"millis\": 45, \"inputs\": 9, \"cycles\": 800, \"newStates\": 0, " //$NON-NLS-1$
+				+ "\"newBranches\": 1, \"branches\": 2, \"branchCoverage\": 100.00}\n" //$NON-NLS-1$
+				+ "]\n", timeline.toJson()); //$NON-NLS-1$
+	}
+
+	/**
+	 * A timeline is written as JSON to a file whose name ends in
+	 * <code>.json</code>, and as CSV otherwise.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_04() throws Exception {
+		CoverageTimeline timeline = timeline();
+		File dir = Files.createTempDirectory("timeline").toFile(); //$NON-NLS-1$
+		try {
+			File json = new File(dir, "t.json"); //$NON-NLS-1$
+			File csv = new File(dir, "t.csv"); //$NON-NLS-1$
+			timeline.write(json.getPath());
+			timeline.write(csv.getPath());
+			assertEquals(timeline.toJson(), new String(Files.readAllBytes(json.toPath())));
+			assertEquals(timeline.toCsv(), new String(Files.readAllBytes(csv.toPath())));
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Create a timeline of three points, over which the two branches of the
+	 * firmware are covered one after the other.
+	 *
+	 * @return the timeline.
+	 */
+	private static CoverageTimeline timeline() {
+		CoverageTimeline timeline = new CoverageTimeline(firmware());
+		timeline.add(new CoverageTimeline.Point(0, 5, 1, 10, 1, instructions(0, 1)));
+		timeline.add(new CoverageTimeline.Point(1, 20, 4, 300, 2, instructions(0, 1, 2, 3)));
+		timeline.add(new CoverageTimeline.Point(2, 45, 9, 800, 0, instructions(0, 1, 2, 3, 4, 5)));
+		return timeline;
+	}
+
+	/**
+	 * Create a firmware image with two conditional branches, each of which is
+	 * covered once both the instruction after it and its target are covered.
+	 *
+	 * @return the firmware image.
+	 */
+	private static HexFile firmware() {
+		AvrInstruction[] instructions = {
+				new AvrInstruction.LDI(16, 3),
+				new AvrInstruction.BREQ(1),
+				new AvrInstruction.DEC(16),
+				new AvrInstruction.BRNE(-2),
+				new AvrInstruction.NOP(),
+				new AvrInstruction.RJMP(-1) };
+		byte[] bytes = new byte[2 * instructions.length];
+		for (int i = 0; i != instructions.length; i++) {
+			System.arraycopy(instructions[i].getBytes(), 0, bytes, 2 * i, 2);
+		}
+		HexFile firmware = HexFile.toHexFile(bytes, 16);
+		assert firmware != null;
+		return firmware;
+	}
+
+	/**
+	 * Create the coverage of the given instructions, which is indexed by byte
+	 * address.
+	 *
+	 * @param pcs The (word) addresses of the instructions covered.
+	 * @return the coverage.
+	 */
+	private static BitSet instructions(int... pcs) {
+		BitSet set = new BitSet();
+		for (int pc : pcs) {
+			set.set(2 * pc);
+		}
+		return set;
+	}
+}
@@ -0,0 +1,192 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import javr.core.AVR;
+import javr.core.AvrInstruction;
+import javr.io.HexFile;
+import tinyboycov.util.EdgeCoverage;
+import tinyboycov.util.FuzzEmulator;
+
+/**
+ * Tests of the edge coverage bitmap, which check that each direction of a
+ * conditional branch has its own bit, and that indirect jumps, calls and
+ * returns are hashed into the other half of the bitmap.
+ *
+ * @author niraj
+ *
+ */
+public class EdgeCoverage_Tests {
+	/**
+	 * Number of instructions in code memory, whose first two bits per
+	 * instruction are for conditional branches.
+	 */
+	private static final int INSTRUCTIONS = EdgeCoverage.SIZE / 4;
+
+	/**
+	 * Number of instructions executed by each program.
+	 */
+	private static final int STEPS = 100;
+
+	/**
+	 * Conditional branches and skips record their outcome exactly, and other
+	 * instructions whose successor varies are hashed, whilst the rest record
+	 * nothing.
+	 */
+	@Test
+	public void test_01() {
+		assertEquals(EdgeCoverage.CONDITIONAL, EdgeCoverage.kindOf(new AvrInstruction.BREQ(3)));
+		assertEquals(EdgeCoverage.CONDITIONAL, EdgeCoverage.kindOf(new AvrInstruction.SBIS(0x16, 1)));
+		assertEquals(EdgeCoverage.CONDITIONAL, EdgeCoverage.kindOf(new AvrInstruction.SBRS(16, 0)));
+		assertEquals(EdgeCoverage.INDIRECT, EdgeCoverage.kindOf(new AvrInstruction.IJMP()));
+		assertEquals(EdgeCoverage.INDIRECT, EdgeCoverage.kindOf(new AvrInstruction.ICALL()));
+		assertEquals(EdgeCoverage.INDIRECT, EdgeCoverage.kindOf(new AvrInstruction.RET()));
+		assertEquals(EdgeCoverage.NONE, EdgeCoverage.kindOf(new AvrInstruction.RJMP(-1)));
+		assertEquals(EdgeCoverage.NONE, EdgeCoverage.kindOf(new AvrInstruction.NOP()));
+	}
+
+	/**
+	 * Falling through to the next instruction sets the first bit of a branch,
+	 * and anything else (a taken branch, or a skip over one or two words) sets
+	 * the second, without touching any other branch.
+	 */
+	@Test
+	public void test_02() {
+		for (int pc : new int[] { 0, 31, 32, 1000, INSTRUCTIONS - 1 }) {
+			long[] edges = new long[EdgeCoverage.SIZE / Long.SIZE];
+			EdgeCoverage.record(edges, EdgeCoverage.CONDITIONAL, pc, pc + 1);
+			BitSet bits = BitSet.valueOf(edges);
+			assertTrue(EdgeCoverage.notTaken(bits, pc));
+			assertFalse(EdgeCoverage.taken(bits, pc));
+			assertEquals(1, bits.cardinality());
+			for (int to : new int[] { pc + 2, pc + 3, pc - 5 }) {
+				edges = new long[EdgeCoverage.SIZE / Long.SIZE];
+				EdgeCoverage.record(edges, EdgeCoverage.CONDITIONAL, pc, to);
+				bits = BitSet.valueOf(edges);
+				assertTrue(EdgeCoverage.taken(bits, pc));
+				assertFalse(EdgeCoverage.notTaken(bits, pc));
+				assertEquals(1, bits.cardinality());
+			}
+		}
+	}
+
+	/**
+	 * Indirect edges land in the hashed half of the bitmap, and the same call
+	 * returning to different callers gives different edges.
+	 */
+	@Test
+	public void test_03() {
+		BitSet seen = new BitSet();
+		for (int from = 0; from < INSTRUCTIONS; from += 97) {
+			for (int to = 0; to < INSTRUCTIONS; to += 89) {
+				long[] edges = new long[EdgeCoverage.SIZE / Long.SIZE];
+				EdgeCoverage.record(edges, EdgeCoverage.INDIRECT, from, to);
+				BitSet bits = BitSet.valueOf(edges);
+				assertEquals(1, bits.cardinality());
+				int bit = bits.nextSetBit(0);
+				assertTrue(bit >= 2 * INSTRUCTIONS && bit < EdgeCoverage.SIZE);
+				seen.set(bit);
+			}
+		}
+		// Very few of the pairs collide
+		assertTrue(seen.cardinality() > 0.9 * (INSTRUCTIONS / 97 + 1) * (INSTRUCTIONS / 89 + 1));
+	}
+
+	/**
+	 * A loop counting down from three takes its branch twice and falls through
+	 * once, which records exactly the two directions of that branch.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_04() throws Exception {
+		long[] edges = execute(
+				new AvrInstruction.LDI(16, 3),
+				new AvrInstruction.DEC(16),
+				new AvrInstruction.BRNE(-2),
+				new AvrInstruction.RJMP(-1));
+		BitSet bits = BitSet.valueOf(edges);
+		assertTrue(EdgeCoverage.taken(bits, 2));
+		assertTrue(EdgeCoverage.notTaken(bits, 2));
+		assertEquals(2, bits.cardinality());
+	}
+
+	/**
+	 * An indirect call and its return each record one hashed edge, and nothing
+	 * is recorded for the conditional branches.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_05() throws Exception {
+		long[] edges = execute(
+				// Set the stack pointer to the top of SRAM
+				new AvrInstruction.LDI(16, 0x02),
+				new AvrInstruction.OUT(0x3E, 16),
+				new AvrInstruction.LDI(16, 0x5F),
+				new AvrInstruction.OUT(0x3D, 16),
+				// Call address 8 through Z, which returns to address 7
+				new AvrInstruction.LDI(30, 8),
+				new AvrInstruction.LDI(31, 0),
+				new AvrInstruction.ICALL(),
+				new AvrInstruction.RJMP(-1),
+				new AvrInstruction.RET());
+		BitSet bits = BitSet.valueOf(edges);
+		long[] expected = new long[EdgeCoverage.SIZE / Long.SIZE];
+		EdgeCoverage.record(expected, EdgeCoverage.INDIRECT, 6, 8);
+		EdgeCoverage.record(expected, EdgeCoverage.INDIRECT, 8, 7);
+		assertEquals(BitSet.valueOf(expected), bits);
+		assertEquals(-1, bits.previousSetBit(2 * INSTRUCTIONS - 1));
+	}
+
+	/**
+	 * Execute a program from reset, with no buttons pressed.
+	 *
+	 * @param instructions The program.
+	 * @return The edges recorded.
+	 * @throws Exception If something goes wrong.
+	 */
+	private static long[] execute(AvrInstruction... instructions) throws Exception {
+		int total = 0;
+		for (AvrInstruction insn : instructions) {
+			total += insn.getBytes().length;
+		}
+		byte[] bytes = new byte[total];
+		int j = 0;
+		for (AvrInstruction insn : instructions) {
+			byte[] b = insn.getBytes();
+			System.arraycopy(b, 0, bytes, j, b.length);
+			j += b.length;
+		}
+		HexFile firmware = HexFile.toHexFile(bytes, 16);
+		FuzzEmulator tinyBoy = new FuzzEmulator(false);
+		tinyBoy.upload(firmware);
+		tinyBoy.reset();
+		tinyBoy.bind(new Iterator<Boolean>() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Boolean next() {
+				return Boolean.FALSE;
+			}
+		});
+		try {
+			for (int i = 0; i != STEPS; i++) {
+				tinyBoy.clock();
+			}
+		} catch (AVR.HaltedException e) {
+			// Fine
+		}
+		return tinyBoy.getEdges();
+	}
+}
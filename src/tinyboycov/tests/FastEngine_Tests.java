@@ -0,0 +1,154 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import javr.core.AVR;
+import javr.io.HexFile;
+import tinyboycov.util.FuzzEmulator;
+import tinyboycov.util.Snapshot;
+
+/**
+ * Differential tests of the pre-decoded execution engine, which check that
+ * every firmware image executes exactly as it does on the javr interpreter.
+ *
+ * @author niraj
+ *
+ */
+public class FastEngine_Tests {
+	/**
+	 * Number of instructions executed on each firmware image.
+	 */
+	private static final int STEPS = 200_000;
+
+	/**
+	 * Number of batches executed between restoring a snapshot.
+	 */
+	private static final int RESTORE_INTERVAL = 1_000;
+
+	/**
+	 * Maximum length of a batch of instructions.
+	 */
+	private static final int BATCH = 1_000;
+
+	/**
+	 * Execute every firmware image on both engines with the same random input,
+	 * comparing the state after every batch of instructions and the coverage (and
+	 * hit counts and edges) at the end. Batches are of random length, so include
+	 * single instructions and runs up to a read of the buttons. Periodically, both
+	 * are restored to an earlier snapshot, so the instructions must be read from
+	 * code memory again.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_01() throws Exception {
+		File[] files = new File("tests").listFiles((dir, name) -> name.endsWith(".hex")); //$NON-NLS-1$ //$NON-NLS-2$
+		assert files != null;
+		for (File file : files) {
+			try (FileReader fr = new FileReader(file)) {
+				HexFile firmware = new HexFile.Reader(fr).readAll();
+				assert firmware != null;
+				check(file.getName(), firmware);
+			}
+		}
+	}
+
+	/**
+	 * Execute a firmware image on both engines, comparing them as they go.
+	 *
+	 * @param name     Name of the firmware image, for reporting.
+	 * @param firmware The firmware image.
+	 * @throws Exception If something goes wrong.
+	 */
+	private static void check(String name, HexFile firmware) throws Exception {
+		FuzzEmulator expected = create(firmware, false);
+		FuzzEmulator actual = create(firmware, true);
+		Snapshot e = expected.snapshot();
+		Snapshot a = actual.snapshot();
+		Random random = new Random(1);
+		for (int i = 0; actual.getCycles() < STEPS; i++) {
+			String where = name + " after " + actual.getCycles() + " instructions"; //$NON-NLS-1$ //$NON-NLS-2$
+			if (i % RESTORE_INTERVAL == RESTORE_INTERVAL - 1) {
+				expected.restore(e);
+				actual.restore(a);
+			} else if (i % RESTORE_INTERVAL == RESTORE_INTERVAL / 2) {
+				e = expected.snapshot();
+				a = actual.snapshot();
+			}
+			long cycles = actual.getCycles();
+			boolean halted = run(actual, random.nextBoolean() ? 1 : random.nextInt(BATCH) + 1);
+			boolean stopped = false;
+			for (long j = cycles; j != actual.getCycles(); j++) {
+				stopped = run(expected, 1);
+			}
+			assertEquals(where, Boolean.valueOf(stopped), Boolean.valueOf(halted));
+			if (halted) {
+				expected.reset();
+				actual.reset();
+			}
+			AVR x = expected.getAVR();
+			AVR y = actual.getAVR();
+			assertEquals(where, x.getPC(), y.getPC());
+			assertEquals(where, x.getStatusRegister(), y.getStatusRegister());
+			assertEquals(where, expected.getReads(), actual.getReads());
+			assertEquals(where, expected.getFingerprint(), actual.getFingerprint());
+		}
+		assertEquals(name, expected.getCoverage(), actual.getCoverage());
+		assertEquals(name, expected.getLastPoll(), actual.getLastPoll());
+		assertArrayEquals(name, expected.getState(), actual.getState());
+		assertArrayEquals(name, expected.getHits(), actual.getHits());
+		assertArrayEquals(name, expected.getEdges(), actual.getEdges());
+	}
+
+	/**
+	 * Create an emulator running a given firmware image, whose buttons are driven
+	 * by a random input (the same for every emulator).
+	 *
+	 * @param firmware The firmware image.
+	 * @param fast     Flag to execute pre-decoded instructions.
+	 * @return the emulator.
+	 */
+	private static FuzzEmulator create(HexFile firmware, boolean fast) {
+		FuzzEmulator tinyBoy = new FuzzEmulator(false, false, fast);
+		tinyBoy.upload(firmware);
+		tinyBoy.reset();
+		Random random = new Random(0);
+		tinyBoy.bind(new Iterator<Boolean>() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Boolean next() {
+				return Boolean.valueOf(random.nextInt(8) == 0);
+			}
+		});
+		return tinyBoy;
+	}
+
+	/**
+	 * Execute instructions until one reads the buttons, or a given number have
+	 * been executed.
+	 *
+	 * @param tinyBoy The emulator.
+	 * @param limit   The maximum number of instructions to execute.
+	 * @return True if the firmware halted, false otherwise.
+	 */
+	private static boolean run(FuzzEmulator tinyBoy, int limit) {
+		try {
+			tinyBoy.run(limit);
+			return false;
+		} catch (AVR.HaltedException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.FileReader;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import javr.core.AVR;
+import javr.io.HexFile;
+import tinyboycov.util.FuzzEmulator;
+
+/**
+ * Tests of the fingerprint of data memory kept by the emulator, which check
+ * that it depends only on the bytes held, however and whenever they were
+ * written.
+ *
+ * @author niraj
+ *
+ */
+public class Fingerprint_Tests {
+	/**
+	 * Data memory address of the first byte of SRAM, after the registers and I/O
+	 * registers.
+	 */
+	private static final int SRAM = 0x60;
+
+	/**
+	 * Number of writes made by each random trial.
+	 */
+	private static final int WRITES = 200;
+
+	/**
+	 * Writing a byte changes the fingerprint, and writing back what was there
+	 * before restores it, for both a register and SRAM.
+	 */
+	@Test
+	public void test_01() {
+		FuzzEmulator tinyBoy = new FuzzEmulator(false);
+		AVR.Memory data = tinyBoy.getAVR().getData();
+		long initial = tinyBoy.getFingerprint();
+		for (int address : new int[] { 3, SRAM, data.size() - 1 }) {
+			byte old = data.peek(address);
+			data.poke(address, (byte) (old + 1));
+			assertNotEquals(initial, tinyBoy.getFingerprint());
+			data.poke(address, old);
+			assertEquals(initial, tinyBoy.getFingerprint());
+		}
+	}
+
+	/**
+	 * Two emulators given the same final bytes, by different sequences of
+	 * writes and with the fingerprint taken at different times along the way,
+	 * have equal fingerprints, and a difference in any one byte makes them
+	 * differ.
+	 */
+	@Test
+	public void test_02() {
+		Random random = new Random(2);
+		for (int t = 0; t != 20; t++) {
+			FuzzEmulator a = new FuzzEmulator(false);
+			FuzzEmulator b = new FuzzEmulator(false);
+			AVR.Memory da = a.getAVR().getData();
+			AVR.Memory db = b.getAVR().getData();
+			int[] addresses = new int[WRITES];
+			byte[] values = new byte[WRITES];
+			for (int i = 0; i != WRITES; i++) {
+				addresses[i] = random.nextBoolean() ? random.nextInt(32)
+						: SRAM + random.nextInt(da.size() - SRAM);
+				values[i] = (byte) random.nextInt(4);
+				da.poke(addresses[i], values[i]);
+				if (random.nextInt(10) == 0) {
+					a.getFingerprint();
+				}
+			}
+			// Write the same bytes the other way round, via some other values
+			for (int i = WRITES - 1; i >= 0; i--) {
+				db.poke(addresses[i], (byte) random.nextInt());
+				if (random.nextInt(10) == 0) {
+					b.getFingerprint();
+				}
+			}
+			for (int i = 0; i != WRITES; i++) {
+				db.poke(addresses[i], values[i]);
+			}
+			assertEquals(a.getFingerprint(), b.getFingerprint());
+			int i = random.nextInt(WRITES);
+			db.poke(addresses[i], (byte) (values[i] + 1));
+			assertNotEquals(a.getFingerprint(), b.getFingerprint());
+		}
+	}
+
+	/**
+	 * Two emulators running the same firmware with the same input reach equal
+	 * fingerprints, whether or not the fingerprint was taken along the way, and
+	 * after a reset the fingerprint is that of a fresh emulator.
+	 *
+	 * @throws Exception If something goes wrong.
+	 */
+	@Test
+	public void test_03() throws Exception {
+		try (FileReader fr = new FileReader("tests/blocks_1.hex")) { //$NON-NLS-1$
+			HexFile firmware = new HexFile.Reader(fr).readAll();
+			assert firmware != null;
+			FuzzEmulator a = create(firmware);
+			FuzzEmulator b = create(firmware);
+			long initial = a.getFingerprint();
+			for (int i = 0; i != 100; i++) {
+				for (int j = 0; j != 500; j++) {
+					a.clock();
+					b.clock();
+				}
+				if (i % 7 == 0) {
+					b.getFingerprint();
+				}
+			}
+			assertEquals(a.getFingerprint(), b.getFingerprint());
+			assertNotEquals(initial, a.getFingerprint());
+			a.reset();
+			assertEquals(initial, a.getFingerprint());
+		}
+	}
+
+	/**
+	 * Create an emulator running a given firmware image from reset, with a
+	 * button pressed every few reads.
+	 *
+	 * @param firmware The firmware image.
+	 * @return the emulator.
+	 */
+	private static FuzzEmulator create(HexFile firmware) {
+		FuzzEmulator tinyBoy = new FuzzEmulator(false);
+		tinyBoy.upload(firmware);
+		tinyBoy.reset();
+		tinyBoy.bind(new Iterator<Boolean>() {
+			private int reads;
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Boolean next() {
+				return Boolean.valueOf(this.reads++ % 5 == 0);
+			}
+		});
+		return tinyBoy;
+	}
+}
@@ -0,0 +1,102 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import tinyboycov.util.HitCountMap;
+
+/**
+ * Tests of the map of hit count buckets, which check that hit counts are
+ * placed into the same buckets as AFL, so that only a change in the order of
+ * magnitude counts as new.
+ *
+ * @author niraj
+ *
+ */
+public class HitCountMap_Tests {
+	/**
+	 * The first hit count of each bucket, with the last entry one past the
+	 * largest count.
+	 */
+	private static final int[] BUCKETS = { 1, 2, 3, 4, 8, 16, 32, 128, 256 };
+
+	/**
+	 * Every count within a bucket lands in that bucket, so only the first count
+	 * of each bucket is new, and a count of zero is never new.
+	 */
+	@Test
+	public void test_01() {
+		HitCountMap map = new HitCountMap(1);
+		assertEquals(0, map.merge(hits(0)));
+		for (int b = 0; b != BUCKETS.length - 1; b++) {
+			for (int count = BUCKETS[b]; count != BUCKETS[b + 1]; count++) {
+				assertEquals("count " + count, count == BUCKETS[b] ? 1 : 0, map.merge(hits(count))); //$NON-NLS-1$
+			}
+		}
+	}
+
+	/**
+	 * Counts either side of each bucket boundary land in different buckets, and
+	 * those on the same side do not, in whichever order they are merged.
+	 */
+	@Test
+	public void test_02() {
+		for (int b = 1; b != BUCKETS.length - 1; b++) {
+			int first = BUCKETS[b];
+			int last = BUCKETS[b + 1] - 1;
+			HitCountMap map = new HitCountMap(1);
+			assertEquals(1, map.merge(hits(last)));
+			assertEquals(0, map.merge(hits(first)));
+			assertEquals(1, map.merge(hits(first - 1)));
+			if (last != 255) {
+				assertEquals(1, map.merge(hits(last + 1)));
+			}
+		}
+	}
+
+	/**
+	 * Instructions are tracked separately, including those which share a word of
+	 * the map and those at the end of a partial word.
+	 */
+	@Test
+	public void test_03() {
+		HitCountMap map = new HitCountMap(11);
+		byte[] hits = new byte[11];
+		for (int i = 0; i != hits.length; i++) {
+			hits[i] = 1;
+		}
+		assertEquals(11, map.merge(hits));
+		assertEquals(0, map.merge(hits));
+		hits[7] = 2;
+		hits[8] = 2;
+		hits[10] = (byte) 200;
+		assertEquals(3, map.merge(hits));
+		// A count of 200 is an unsigned byte, so in the top bucket
+		hits[10] = (byte) 255;
+		assertEquals(0, map.merge(hits));
+	}
+
+	/**
+	 * Instructions beyond the size of the map are ignored.
+	 */
+	@Test
+	public void test_04() {
+		HitCountMap map = new HitCountMap(8);
+		byte[] hits = new byte[9];
+		hits[8] = 1;
+		assertEquals(0, map.merge(hits));
+		hits[7] = 1;
+		assertEquals(1, map.merge(hits));
+	}
+
+	/**
+	 * Create the hit counts of a single instruction.
+	 *
+	 * @param count The number of times it was executed.
+	 * @return the hit counts, as unsigned bytes.
+	 */
+	private static byte[] hits(int count) {
+		return new byte[] { (byte) count };
+	}
+}
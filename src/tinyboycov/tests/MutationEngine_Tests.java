@@ -0,0 +1,330 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import tinyboy.core.ControlPad;
+import tinyboycov.core.InputNode;
+import tinyboycov.core.MutationEngine;
+import tinyboycov.core.Mutator;
+import tinyboycov.core.PackedSequence;
+import tinyboycov.core.StandardMutator;
+
+/**
+ * Tests of the mutation operators and the engine choosing between them, which
+ * check that each operator makes the change it describes and that the engine
+ * keeps an accurate record of how successful each operator has been.
+ *
+ * @author niraj
+ *
+ */
+public class MutationEngine_Tests {
+	/**
+	 * Number of mutants tried for each operator.
+	 */
+	private static final int TRIALS = 2_000;
+
+	/**
+	 * Maximum number of steps duplicated, or frames held, by a single mutation.
+	 */
+	private static final int MAX_BLOCK = 16;
+
+	/**
+	 * Maximum length of the inputs mutated.
+	 */
+	private static final int MAX_LENGTH = 50;
+
+	/**
+	 * Substituting changes exactly one step, and the mutant is built on the input
+	 * up to that step.
+	 */
+	@Test
+	public void test_01() {
+		check(StandardMutator.SUBSTITUTE, (input, steps, other, mutant) -> {
+			int[] m = steps(mutant);
+			assertEquals(steps.length, m.length);
+			int i = 0;
+			while (steps[i] == m[i]) {
+				i++;
+			}
+			assertArrayEquals(Arrays.copyOfRange(steps, i + 1, steps.length),
+					Arrays.copyOfRange(m, i + 1, m.length));
+			assertSame(input.prefix(i), mutant.prefix(i));
+			return true;
+		});
+	}
+
+	/**
+	 * Inserting adds a single step.
+	 */
+	@Test
+	public void test_02() {
+		check(StandardMutator.INSERT, (input, steps, other, mutant) -> {
+			int[] m = steps(mutant);
+			for (int i = 0; i != m.length; i++) {
+				if (Arrays.equals(steps, concat(Arrays.copyOfRange(m, 0, i),
+						Arrays.copyOfRange(m, i + 1, m.length)))) {
+					return true;
+				}
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Deleting removes a single step other than the last, and never gives back a
+	 * prefix of the input.
+	 */
+	@Test
+	public void test_03() {
+		check(StandardMutator.DELETE, (input, steps, other, mutant) -> {
+			int[] m = steps(mutant);
+			assertTrue(mutant != input.prefix(mutant.length()));
+			for (int i = 0; i != steps.length - 1; i++) {
+				if (Arrays.equals(m, concat(Arrays.copyOfRange(steps, 0, i),
+						Arrays.copyOfRange(steps, i + 1, steps.length)))) {
+					return true;
+				}
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Duplicating repeats a block of up to {@link #MAX_BLOCK} steps straight after
+	 * itself.
+	 */
+	@Test
+	public void test_04() {
+		check(StandardMutator.DUPLICATE, (input, steps, other, mutant) -> {
+			int[] m = steps(mutant);
+			for (int i = 0; i != steps.length; i++) {
+				for (int end = i + 1; end <= Math.min(steps.length, i + MAX_BLOCK); end++) {
+					if (Arrays.equals(m, concat(Arrays.copyOfRange(steps, 0, end),
+							Arrays.copyOfRange(steps, i, end), Arrays.copyOfRange(steps, end, steps.length)))) {
+						return true;
+					}
+				}
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Splicing joins the start of the input to a non-empty end of the other input.
+	 */
+	@Test
+	public void test_05() {
+		check(StandardMutator.SPLICE, (input, steps, other, mutant) -> {
+			int[] m = steps(mutant);
+			int[] o = steps(other);
+			for (int i = 0; i <= steps.length; i++) {
+				for (int j = 0; j != o.length; j++) {
+					if (Arrays.equals(m,
+							concat(Arrays.copyOfRange(steps, 0, i), Arrays.copyOfRange(o, j, o.length)))) {
+						return true;
+					}
+				}
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Holding repeats a single step for up to {@link #MAX_BLOCK} further frames.
+	 */
+	@Test
+	public void test_06() {
+		check(StandardMutator.HOLD, (input, steps, other, mutant) -> {
+			int[] m = steps(mutant);
+			for (int i = 0; i != steps.length; i++) {
+				for (int frames = 1; frames <= MAX_BLOCK; frames++) {
+					int[] held = new int[frames];
+					Arrays.fill(held, steps[i]);
+					if (Arrays.equals(m, concat(Arrays.copyOfRange(steps, 0, i + 1), held,
+							Arrays.copyOfRange(steps, i + 1, steps.length)))) {
+						return true;
+					}
+				}
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Operators which cannot apply to an input say so, rather than producing an
+	 * empty or unchanged mutant.
+	 */
+	@Test
+	public void test_07() {
+		Random random = new Random(7);
+		InputNode empty = InputNode.ROOT;
+		InputNode one = InputNode.ROOT.append(null);
+		assertNull(StandardMutator.SUBSTITUTE.mutate(empty, empty.pack(), one, random));
+		assertNull(StandardMutator.DELETE.mutate(one, one.pack(), one, random));
+		assertNull(StandardMutator.DUPLICATE.mutate(empty, empty.pack(), one, random));
+		assertNull(StandardMutator.HOLD.mutate(empty, empty.pack(), one, random));
+		assertNull(StandardMutator.SPLICE.mutate(one, one.pack(), one, random));
+		assertNull(StandardMutator.SPLICE.mutate(one, one.pack(), empty, random));
+	}
+
+	/**
+	 * Every reported outcome is counted against the operator which produced the
+	 * mutant, exactly once, and inputs which are not pending mutants are ignored.
+	 * Every mutant is a new node, so none can be confused with another.
+	 */
+	@Test
+	public void test_08() {
+		Random random = new Random(8);
+		MutationEngine engine = new MutationEngine(StandardMutator.values());
+		List<InputNode> inputs = randomInputs(random, 10);
+		ArrayList<InputNode> mutants = engine.mutate(inputs, inputs, 500);
+		assertTrue(!mutants.isEmpty());
+		int successes = 0;
+		for (int k = 0; k != mutants.size(); k++) {
+			boolean success = k % 3 == 0;
+			successes += success ? 1 : 0;
+			engine.record(mutants.get(k), success);
+			// Reporting the same mutant again has no effect
+			engine.record(mutants.get(k), true);
+		}
+		for (InputNode input : inputs) {
+			engine.record(input, true);
+		}
+		int trials = 0;
+		int succeeded = 0;
+		for (int m = 0; m != StandardMutator.values().length; m++) {
+			trials += engine.getTrials(m);
+			succeeded += engine.getSuccesses(m);
+			assertTrue(engine.getSuccesses(m) <= engine.getTrials(m));
+			assertTrue(engine.toString().contains(StandardMutator.values()[m] + " " //$NON-NLS-1$
+					+ engine.getSuccesses(m) + "/" + engine.getTrials(m))); //$NON-NLS-1$
+		}
+		assertEquals(mutants.size(), trials);
+		assertEquals(successes, succeeded);
+	}
+
+	/**
+	 * An operator whose mutants keep finding something new comes to be chosen far
+	 * more often than one whose mutants never do.
+	 */
+	@Test
+	public void test_09() {
+		// The operators are told apart by the step they append
+		Mutator good = (input, steps, other, random) -> input.append(null);
+		Mutator bad = (input, steps, other, random) -> input.append(ControlPad.Button.values()[0]);
+		MutationEngine engine = new MutationEngine(good, bad);
+		List<InputNode> inputs = randomInputs(new Random(9), 10);
+		for (int round = 0; round != 20; round++) {
+			for (InputNode mutant : engine.mutate(inputs, inputs, 50)) {
+				engine.record(mutant, mutant.getButton() == null);
+			}
+		}
+		assertEquals(engine.getTrials(0), engine.getSuccesses(0));
+		assertEquals(0, engine.getSuccesses(1));
+		assertTrue(engine.getTrials(0) > 10 * engine.getTrials(1));
+	}
+
+	/**
+	 * A check of a single mutant against the input it was derived from.
+	 */
+	private interface MutantCheck {
+		/**
+		 * Check a mutant.
+		 *
+		 * @param input  The input mutated.
+		 * @param steps  The steps of the input.
+		 * @param other  The other input, for operators which combine two.
+		 * @param mutant The mutant.
+		 * @return True if the mutant is one the operator could have produced.
+		 */
+		boolean check(InputNode input, int[] steps, InputNode other, InputNode mutant);
+	}
+
+	/**
+	 * Mutate random inputs with an operator, checking every mutant produced.
+	 *
+	 * @param mutator The operator.
+	 * @param check   The check of each mutant.
+	 */
+	private static void check(StandardMutator mutator, MutantCheck check) {
+		Random random = new Random(mutator.ordinal());
+		List<InputNode> inputs = randomInputs(random, TRIALS);
+		int produced = 0;
+		for (int t = 0; t != TRIALS; t++) {
+			InputNode input = inputs.get(t);
+			InputNode other = inputs.get(random.nextInt(TRIALS));
+			InputNode mutant = mutator.mutate(input, input.pack(), other, random);
+			if (mutant != null) {
+				produced++;
+				assertTrue(mutant.length() != 0);
+				assertTrue(mutator + " produced " + mutant + " from " + input, //$NON-NLS-1$ //$NON-NLS-2$
+						check.check(input, steps(input), other, mutant));
+			}
+		}
+		assertTrue(produced > TRIALS / 2);
+	}
+
+	/**
+	 * Create random inputs, of up to {@link #MAX_LENGTH} steps.
+	 *
+	 * @param random Source of randomness.
+	 * @param n      Number of inputs.
+	 * @return the inputs.
+	 */
+	private static List<InputNode> randomInputs(Random random, int n) {
+		ArrayList<InputNode> inputs = new ArrayList<>();
+		ControlPad.Button[] buttons = ControlPad.Button.values();
+		for (int i = 0; i != n; i++) {
+			InputNode node = InputNode.ROOT;
+			int length = random.nextInt(MAX_LENGTH + 1);
+			for (int k = 0; k != length; k++) {
+				int step = random.nextInt(buttons.length + 1);
+				node = node.append(step == 0 ? null : buttons[step - 1]);
+			}
+			inputs.add(node);
+		}
+		return inputs;
+	}
+
+	/**
+	 * Get the encoded steps of an input.
+	 *
+	 * @param input The input.
+	 * @return the steps.
+	 */
+	private static int[] steps(InputNode input) {
+		PackedSequence packed = input.pack();
+		int[] steps = new int[packed.length()];
+		for (int i = 0; i != steps.length; i++) {
+			steps[i] = packed.get(i);
+		}
+		return steps;
+	}
+
+	/**
+	 * Join some arrays of steps.
+	 *
+	 * @param parts The arrays.
+	 * @return the steps of every array, in order.
+	 */
+	private static int[] concat(int[]... parts) {
+		int[] out = new int[0];
+		for (int[] part : parts) {
+			int n = out.length;
+			out = Arrays.copyOf(out, n + part.length);
+			System.arraycopy(part, 0, out, n, part.length);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,153 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.junit.Test;
+
+import tinyboy.core.ControlPad;
+import tinyboycov.core.InputNode;
+import tinyboycov.core.PackedSequence;
+
+/**
+ * Tests of packed input sequences, which check that steps survive packing and
+ * unpacking, in particular either side of the boundary between two words.
+ *
+ * @author niraj
+ *
+ */
+public class PackedSequence_Tests {
+	/**
+	 * Sequence lengths tried, which sit either side of one, two and three words
+	 * of 21 steps each.
+	 */
+	private static final int[] LENGTHS = { 0, 1, 20, 21, 22, 41, 42, 43, 62, 63, 64, 100 };
+
+	/**
+	 * Number of random sequences tried for each length.
+	 */
+	private static final int TRIALS = 50;
+
+	/**
+	 * The buttons which can be pressed at each step, including none.
+	 */
+	private static final ControlPad.@Nullable Button[] STEPS = steps();
+
+	/**
+	 * Packing buttons and reading them back gives the same buttons.
+	 */
+	@Test
+	public void test_01() {
+		Random random = new Random(1);
+		for (int length : LENGTHS) {
+			for (int t = 0; t != TRIALS; t++) {
+				ControlPad.@Nullable Button[] buttons = randomButtons(random, length);
+				PackedSequence packed = PackedSequence.of(buttons);
+				assertEquals(length, packed.length());
+				for (int i = 0; i != length; i++) {
+					assertSame(buttons[i], packed.getButton(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appending buttons one at a time gives the same sequence as packing them all
+	 * at once, including when an append starts a new word.
+	 */
+	@Test
+	public void test_02() {
+		Random random = new Random(2);
+		for (int length : LENGTHS) {
+			ControlPad.@Nullable Button[] buttons = randomButtons(random, length);
+			PackedSequence packed = PackedSequence.EMPTY;
+			for (ControlPad.@Nullable Button b : buttons) {
+				packed = packed.append(b);
+			}
+			PackedSequence expected = PackedSequence.of(buttons);
+			assertEquals(expected, packed);
+			assertEquals(expected.hashCode(), packed.hashCode());
+		}
+	}
+
+	/**
+	 * Flattening an input tree node and rebuilding it from the packed steps gives
+	 * the same steps.
+	 */
+	@Test
+	public void test_03() {
+		Random random = new Random(3);
+		for (int length : LENGTHS) {
+			for (int t = 0; t != TRIALS; t++) {
+				ControlPad.@Nullable Button[] buttons = randomButtons(random, length);
+				InputNode node = InputNode.ROOT;
+				for (ControlPad.@Nullable Button b : buttons) {
+					node = node.append(b);
+				}
+				PackedSequence packed = node.pack();
+				assertEquals(PackedSequence.of(buttons), packed);
+				InputNode rebuilt = InputNode.ROOT.append(packed, 0, packed.length());
+				assertEquals(length, rebuilt.length());
+				assertEquals(packed, rebuilt.pack());
+				// Rebuilding from a prefix keeps the prefix and copies the rest
+				int split = random.nextInt(length + 1);
+				InputNode resumed = node.prefix(split).append(packed, split, length);
+				assertSame(node.prefix(split), resumed.prefix(split));
+				assertEquals(packed, resumed.pack());
+			}
+		}
+	}
+
+	/**
+	 * Sequences which differ only in their last step, or only in their length,
+	 * are not equal.
+	 */
+	@Test
+	public void test_04() {
+		Random random = new Random(4);
+		for (int length : LENGTHS) {
+			if (length == 0) {
+				continue;
+			}
+			ControlPad.@Nullable Button[] buttons = randomButtons(random, length);
+			ControlPad.@Nullable Button[] other = buttons.clone();
+			other[length - 1] = other[length - 1] == null ? ControlPad.Button.values()[0] : null;
+			assertNotEquals(PackedSequence.of(buttons), PackedSequence.of(other));
+			// A trailing step of no button is still a step
+			ControlPad.@Nullable Button[] shorter = new ControlPad.@Nullable Button[length - 1];
+			System.arraycopy(buttons, 0, shorter, 0, length - 1);
+			assertNotEquals(PackedSequence.of(shorter).append(null), PackedSequence.of(shorter));
+		}
+	}
+
+	/**
+	 * Create a random sequence of buttons.
+	 *
+	 * @param random Source of randomness.
+	 * @param length Number of steps.
+	 * @return the buttons pressed at each step.
+	 */
+	private static ControlPad.@Nullable Button[] randomButtons(Random random, int length) {
+		ControlPad.@Nullable Button[] buttons = new ControlPad.@Nullable Button[length];
+		for (int i = 0; i != length; i++) {
+			buttons[i] = STEPS[random.nextInt(STEPS.length)];
+		}
+		return buttons;
+	}
+
+	/**
+	 * Determine the buttons which can be pressed at each step.
+	 *
+	 * @return every button, followed by <code>null</code> for no button.
+	 */
+	private static ControlPad.@Nullable Button[] steps() {
+		ControlPad.Button[] buttons = ControlPad.Button.values();
+		ControlPad.@Nullable Button[] steps = new ControlPad.@Nullable Button[buttons.length + 1];
+		System.arraycopy(buttons, 0, steps, 0, buttons.length);
+		return steps;
+	}
+}
@@ -0,0 +1,166 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import tinyboycov.util.ProcessTimerMethod;
+
+/**
+ * Tests of the output retained from methods executed in another JVM, which
+ * check that only the most recent output is kept once there is too much, and
+ * that whatever was printed before a timeout is kept, both for a fresh JVM and
+ * for a pooled worker.
+ *
+ * @author niraj
+ *
+ */
+public class ProcessTimerMethod_Tests {
+	/**
+	 * Number of bytes of output retained by these tests.
+	 */
+	private static final int MAX_OUTPUT = 1000;
+
+	/**
+	 * Time limit (in ms) for a method which never finishes, which allows plenty
+	 * of time for the JVM to start.
+	 */
+	private static final long TIMEOUT = 5000;
+
+	/**
+	 * The number of bytes retained before these tests.
+	 */
+	private int maxOutput;
+
+	/**
+	 * Whether output was echoed before these tests.
+	 */
+	private boolean echo;
+
+	/**
+	 * Retain little output, and echo none of it.
+	 */
+	@Before
+	public void setUp() {
+		this.maxOutput = ProcessTimerMethod.MAX_OUTPUT;
+		this.echo = ProcessTimerMethod.ECHO;
+		ProcessTimerMethod.MAX_OUTPUT = MAX_OUTPUT;
+		ProcessTimerMethod.ECHO = false;
+	}
+
+	/**
+	 * Restore the settings.
+	 */
+	@After
+	public void tearDown() {
+		ProcessTimerMethod.MAX_OUTPUT = this.maxOutput;
+		ProcessTimerMethod.ECHO = this.echo;
+	}
+
+	/**
+	 * Output beyond the limit from a fresh JVM keeps the most recent bytes, after
+	 * a note of how many were dropped.
+	 *
+	 * @throws Throwable If something goes wrong.
+	 */
+	@Test
+	public void test_01() throws Throwable {
+		checkTail(ProcessTimerMethod.exec(TIMEOUT * 4, getClass().getName(), "print", //$NON-NLS-1$
+				Integer.valueOf(500), Integer.valueOf(0)));
+	}
+
+	/**
+	 * Output beyond the limit from a pooled worker keeps the most recent bytes,
+	 * after a note of how many were dropped.
+	 *
+	 * @throws Throwable If something goes wrong.
+	 */
+	@Test
+	public void test_02() throws Throwable {
+		checkTail(ProcessTimerMethod.execPooled(TIMEOUT * 4, getClass().getName(), "print", //$NON-NLS-1$
+				Integer.valueOf(500), Integer.valueOf(0)));
+	}
+
+	/**
+	 * Output printed by a fresh JVM before it times out is kept.
+	 *
+	 * @throws Throwable If something goes wrong.
+	 */
+	@Test
+	public void test_03() throws Throwable {
+		checkTimeout(ProcessTimerMethod.exec(TIMEOUT, getClass().getName(), "print", //$NON-NLS-1$
+				Integer.valueOf(3), Integer.valueOf(Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * Output printed by a pooled worker before it times out is kept.
+	 *
+	 * @throws Throwable If something goes wrong.
+	 */
+	@Test
+	public void test_04() throws Throwable {
+		checkTimeout(ProcessTimerMethod.execPooled(TIMEOUT, getClass().getName(), "print", //$NON-NLS-1$
+				Integer.valueOf(3), Integer.valueOf(Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * Print a number of numbered lines on standard output, and then one on
+	 * standard error, and then sleep. This is executed in the other JVM.
+	 *
+	 * @param lines  Number of lines to print.
+	 * @param millis Time to sleep afterwards (in ms).
+	 * @throws InterruptedException If interrupted whilst sleeping.
+	 */
+	public void print(Integer lines, Integer millis) throws InterruptedException {
+		for (int i = 0; i != lines.intValue(); i++) {
+			System.out.println(line(i));
+		}
+		System.err.println("done"); //$NON-NLS-1$
+		Thread.sleep(millis.intValue());
+	}
+
+	/**
+	 * Check the outcome of printing 500 lines, which is more than is retained.
+	 *
+	 * @param r The outcome.
+	 */
+	private static void checkTail(ProcessTimerMethod.Outcome r) {
+		assertEquals(Integer.valueOf(0), r.exitCode());
+		String out = new String(r.getStdout());
+		StringBuilder all = new StringBuilder();
+		for (int i = 0; i != 500; i++) {
+			all.append(line(i)).append(System.lineSeparator());
+		}
+		String tail = all.substring(all.length() - MAX_OUTPUT);
+		String note = "... (" + (all.length() - MAX_OUTPUT) + " bytes omitted)\n"; //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals(note + tail, out);
+		assertEquals("done" + System.lineSeparator(), new String(r.getStderr())); //$NON-NLS-1$
+	}
+
+	/**
+	 * Check the outcome of printing three lines and then never finishing.
+	 *
+	 * @param r The outcome.
+	 */
+	private static void checkTimeout(ProcessTimerMethod.Outcome r) {
+		assertNull(r.exitCode());
+		String out = new String(r.getStdout());
+		String nl = System.lineSeparator();
+		assertEquals(line(0) + nl + line(1) + nl + line(2) + nl, out);
+		assertTrue(new String(r.getStderr()).startsWith("done")); //$NON-NLS-1$
+	}
+
+	/**
+	 * Get a numbered line of output.
+	 *
+	 * @param i The line number.
+	 * @return the line.
+	 */
+	private static String line(int i) {
+		return "line " + i; //$NON-NLS-1$
+	}
+}
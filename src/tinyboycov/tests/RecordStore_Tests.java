@@ -0,0 +1,193 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import tinyboycov.core.RecordStore;
+
+/**
+ * Tests of the off-heap store of coverage bitmaps and final states, which check
+ * that records are read back as written, that the slots of removed records are
+ * reused without leaving anything of the old record behind, and that the store
+ * keeps working as it grows by several segments.
+ *
+ * @author niraj
+ *
+ */
+public class RecordStore_Tests {
+	/**
+	 * Number of bits in each coverage bitmap, which is not a whole number of
+	 * words.
+	 */
+	private static final int COVERAGE_BITS = 1000;
+
+	/**
+	 * Maximum length of each state.
+	 */
+	private static final int STATE_BYTES = 45;
+
+	/**
+	 * Number of records added when checking growth, which spans several segments.
+	 */
+	private static final int RECORDS = 10_000;
+
+	/**
+	 * Records are read back as written, including an empty bitmap and states
+	 * shorter than the maximum.
+	 */
+	@Test
+	public void test_01() {
+		Random random = new Random(1);
+		RecordStore store = new RecordStore(COVERAGE_BITS, STATE_BYTES);
+		ArrayList<BitSet> coverages = new ArrayList<>();
+		ArrayList<byte[]> states = new ArrayList<>();
+		coverages.add(new BitSet());
+		states.add(new byte[0]);
+		for (int i = 0; i != 20; i++) {
+			coverages.add(randomCoverage(random));
+			states.add(randomState(random, random.nextInt(STATE_BYTES + 1)));
+		}
+		int[] slots = new int[coverages.size()];
+		for (int i = 0; i != slots.length; i++) {
+			slots[i] = store.add(coverages.get(i), states.get(i));
+		}
+		assertEquals(slots.length, store.size());
+		for (int i = 0; i != slots.length; i++) {
+			assertEquals(coverages.get(i), store.getCoverage(slots[i]));
+			assertArrayEquals(states.get(i), store.getState(slots[i]));
+		}
+	}
+
+	/**
+	 * The slot of a removed record is reused by the next record added, which is
+	 * read back without any of the bits or bytes of the record removed, and the
+	 * other records are untouched.
+	 */
+	@Test
+	public void test_02() {
+		Random random = new Random(2);
+		RecordStore store = new RecordStore(COVERAGE_BITS, STATE_BYTES);
+		BitSet full = new BitSet();
+		full.set(0, COVERAGE_BITS);
+		int a = store.add(full, randomState(random, STATE_BYTES));
+		BitSet other = randomCoverage(random);
+		byte[] otherState = randomState(random, STATE_BYTES);
+		int b = store.add(other, otherState);
+		int c = store.add(full, randomState(random, STATE_BYTES));
+		store.remove(a);
+		store.remove(c);
+		assertEquals(1, store.size());
+		// The most recently freed slot is reused first
+		BitSet small = new BitSet();
+		small.set(3);
+		byte[] smallState = randomState(random, 2);
+		assertEquals(c, store.add(small, smallState));
+		assertEquals(a, store.add(new BitSet(), new byte[0]));
+		assertEquals(3, store.size());
+		assertEquals(small, store.getCoverage(c));
+		assertArrayEquals(smallState, store.getState(c));
+		assertEquals(new BitSet(), store.getCoverage(a));
+		assertArrayEquals(new byte[0], store.getState(a));
+		assertEquals(other, store.getCoverage(b));
+		assertArrayEquals(otherState, store.getState(b));
+		// Only once every freed slot is reused is a new one taken
+		int d = store.add(small, smallState);
+		assertEquals(4, new HashSet<>(
+				List.of(Integer.valueOf(a), Integer.valueOf(b), Integer.valueOf(c), Integer.valueOf(d))).size());
+	}
+
+	/**
+	 * Every record is still read back correctly after the store has grown by
+	 * several segments, and after many records have been removed and their slots
+	 * reused, without the store growing any further.
+	 */
+	@Test
+	public void test_03() {
+		Random random = new Random(3);
+		RecordStore store = new RecordStore(COVERAGE_BITS, STATE_BYTES);
+		BitSet[] coverages = new BitSet[RECORDS];
+		byte[][] states = new byte[RECORDS][];
+		int[] slots = new int[RECORDS];
+		for (int i = 0; i != RECORDS; i++) {
+			coverages[i] = randomCoverage(random);
+			states[i] = randomState(random, STATE_BYTES);
+			slots[i] = store.add(coverages[i], states[i]);
+			assertEquals(i, slots[i]);
+		}
+		// Replace every other record
+		for (int i = 0; i < RECORDS; i += 2) {
+			store.remove(slots[i]);
+		}
+		for (int i = 0; i < RECORDS; i += 2) {
+			coverages[i] = randomCoverage(random);
+			states[i] = randomState(random, random.nextInt(STATE_BYTES + 1));
+			slots[i] = store.add(coverages[i], states[i]);
+			assertTrue(slots[i] < RECORDS);
+		}
+		assertEquals(RECORDS, store.size());
+		for (int i = 0; i != RECORDS; i++) {
+			assertEquals(coverages[i], store.getCoverage(slots[i]));
+			assertArrayEquals(states[i], store.getState(slots[i]));
+		}
+	}
+
+	/**
+	 * A record wider than the store was created for is rejected.
+	 */
+	@Test
+	public void test_04() {
+		RecordStore store = new RecordStore(COVERAGE_BITS, STATE_BYTES);
+		BitSet wide = new BitSet();
+		wide.set(COVERAGE_BITS + Long.SIZE);
+		try {
+			store.add(wide, new byte[0]);
+			fail("coverage too wide"); //$NON-NLS-1$
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			store.add(new BitSet(), new byte[STATE_BYTES + 1]);
+			fail("state too wide"); //$NON-NLS-1$
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(0, store.size());
+	}
+
+	/**
+	 * Create a random coverage bitmap within the width of the store.
+	 *
+	 * @param random Source of randomness.
+	 * @return the bitmap.
+	 */
+	private static BitSet randomCoverage(Random random) {
+		BitSet coverage = new BitSet();
+		for (int j = random.nextInt(100); j > 0; j--) {
+			coverage.set(random.nextInt(COVERAGE_BITS));
+		}
+		return coverage;
+	}
+
+	/**
+	 * Create a state of random bytes.
+	 *
+	 * @param random Source of randomness.
+	 * @param length Length of the state.
+	 * @return the state.
+	 */
+	private static byte[] randomState(Random random, int length) {
+		byte[] state = new byte[length];
+		random.nextBytes(state);
+		return state;
+	}
+}
@@ -0,0 +1,154 @@
+package tinyboycov.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import tinyboycov.core.StateIndex;
+
+/**
+ * Tests of the index of final machine states, which check that states are
+ * compared by content, including when they land in the same slot of the table
+ * and after the table has grown.
+ *
+ * @author niraj
+ *
+ */
+public class StateIndex_Tests {
+	/**
+	 * Size of each state, which is not a multiple of eight so that both loops of
+	 * the hash are exercised.
+	 */
+	private static final int STATE_SIZE = 45;
+
+	/**
+	 * Number of states added when checking growth, which is several times the
+	 * initial capacity of the table.
+	 */
+	private static final int STATES = 10_000;
+
+	/**
+	 * A state equal to one already added (but a different array) is found, and
+	 * its count goes up instead of the size.
+	 */
+	@Test
+	public void test_01() {
+		StateIndex index = new StateIndex();
+		byte[] state = randomState(new Random(1));
+		assertFalse(index.contains(state));
+		assertEquals(0, index.count(state));
+		assertTrue(index.add(state));
+		assertFalse(index.add(state.clone()));
+		assertFalse(index.add(state.clone()));
+		assertTrue(index.contains(state.clone()));
+		assertEquals(3, index.count(state));
+		assertEquals(1, index.size());
+	}
+
+	/**
+	 * States which differ in a single byte are distinct, wherever that byte is.
+	 */
+	@Test
+	public void test_02() {
+		StateIndex index = new StateIndex();
+		byte[] state = randomState(new Random(2));
+		assertTrue(index.add(state));
+		for (int i = 0; i != STATE_SIZE; i++) {
+			byte[] other = state.clone();
+			other[i] ^= 1;
+			assertFalse(index.contains(other));
+			assertTrue(index.add(other));
+		}
+		assertEquals(STATE_SIZE + 1, index.size());
+		assertEquals(1, index.count(state));
+	}
+
+	/**
+	 * States whose hashes map to the same slot of the table are kept apart, by
+	 * probing past the occupied slot.
+	 */
+	@Test
+	public void test_03() {
+		Random random = new Random(3);
+		// Find states whose hashes agree in the bits used to pick a slot
+		int mask = 1023;
+		byte[] first = randomState(random);
+		ArrayList<byte[]> colliding = new ArrayList<>();
+		colliding.add(first);
+		while (colliding.size() != 4) {
+			byte[] state = randomState(random);
+			if ((StateIndex.hash(state) & mask) == (StateIndex.hash(first) & mask)) {
+				colliding.add(state);
+			}
+		}
+		StateIndex index = new StateIndex();
+		for (byte[] state : colliding) {
+			assertTrue(index.add(state));
+		}
+		for (byte[] state : colliding) {
+			assertTrue(index.contains(state.clone()));
+			assertFalse(index.add(state.clone()));
+			assertEquals(2, index.count(state));
+		}
+		assertEquals(colliding.size(), index.size());
+	}
+
+	/**
+	 * Every state added is still found, with the right count, after the table has
+	 * grown several times, and states never added are not.
+	 */
+	@Test
+	public void test_04() {
+		Random random = new Random(4);
+		StateIndex index = new StateIndex();
+		ArrayList<byte[]> states = new ArrayList<>();
+		for (int i = 0; i != STATES; i++) {
+			byte[] state = randomState(random);
+			states.add(state);
+			assertTrue(index.add(state));
+			if (i % 2 == 0) {
+				assertFalse(index.add(state.clone()));
+			}
+		}
+		assertEquals(STATES, index.size());
+		for (int i = 0; i != STATES; i++) {
+			byte[] state = states.get(i);
+			assertTrue(index.contains(state.clone()));
+			assertEquals(i % 2 == 0 ? 2 : 1, index.count(state));
+		}
+		for (int i = 0; i != STATES; i++) {
+			assertFalse(index.contains(randomState(random)));
+		}
+	}
+
+	/**
+	 * The hash is never zero, since zero marks an empty slot, even for an empty
+	 * state.
+	 */
+	@Test
+	public void test_05() {
+		StateIndex index = new StateIndex();
+		assertTrue(StateIndex.hash(new byte[0]) != 0);
+		assertTrue(index.add(new byte[0]));
+		assertTrue(index.add(new byte[1]));
+		assertFalse(index.add(new byte[0]));
+		assertEquals(2, index.size());
+	}
+
+	/**
+	 * Create a state of random bytes.
+	 *
+	 * @param random Source of randomness.
+	 * @return the state.
+	 */
+	private static byte[] randomState(Random random) {
+		byte[] state = new byte[STATE_SIZE];
+		random.nextBytes(state);
+		return state;
+	}
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.BitSet;
 
 import org.eclipse.jdt.annotation.Nullable;
 
@@ -13,9 +14,11 @@ import javr.core.AvrDecoder;
 import javr.core.AvrInstruction;
 import javr.io.HexFile;
 import javr.memory.ByteMemory;
-import tinyboy.util.AutomatedTester;
 import tinyboy.util.CoverageAnalysis;
+import tinyboycov.core.CorpusStore;
 import tinyboycov.core.TinyBoyInputGenerator;
+import tinyboycov.util.EdgeCoverage;
+import tinyboycov.util.FuzzDriver;
 import tinyboycov.util.ProcessTimerMethod;
 
 /**
@@ -33,6 +36,43 @@ public class TestUtils {
 	 * will do.
 	 */
 	private static final long TIMEOUT = 300_000; // 5mins
+	/**
+	 * Number of threads which indicates that the number of threads and batch size
+	 * should be tuned automatically, rather than fixed. In this case, the batch
+	 * size given is only used as a starting point.
+	 */
+	public static final int AUTOTUNE = 0;
+	/**
+	 * System property which, if set to <code>false</code>, starts a fresh JVM for
+	 * each test with a timeout. Otherwise, such tests share a pool of long-lived
+	 * JVMs.
+	 */
+	public static final String POOLED = "tinyboycov.pooled"; //$NON-NLS-1$
+	/**
+	 * Flag to indicate whether the input generator should be directed towards
+	 * branches which have not yet been covered, using the firmware's control-flow
+	 * graph. This is off by default, since it made no difference to the number of
+	 * inputs needed on any of the firmware images tested, yet recomputes the
+	 * distances every time coverage grows.
+	 */
+	private static final boolean DIRECTED = false;
+	/**
+	 * Flag to indicate whether the input generator should also be seeded by
+	 * concolic execution whenever it stops finding new coverage.
+	 */
+	private static final boolean CONCOLIC = true;
+	/**
+	 * System property naming a directory into which the coverage timeline of each
+	 * test is written (as both CSV and JSON), along with which the success of each
+	 * mutation operator is printed. If unset, neither is produced.
+	 */
+	public static final String TIMELINE_DIR = "tinyboycov.timeline"; //$NON-NLS-1$
+	/**
+	 * System property naming a directory in which the corpus of interesting inputs
+	 * found for each firmware image is kept, so that later runs against the same
+	 * firmware resume from it. If unset, every run starts from scratch.
+	 */
+	public static final String CORPUS_DIR = "tinyboycov.corpus"; //$NON-NLS-1$
 	/**
 	 * Specifies where to find the firmware images.
 	 */
@@ -72,7 +112,8 @@ public class TestUtils {
 	 * @param filename  File name of firmware image
 	 * @param timeout   Time limit
 	 * @param gui       Flag to show Graphical User Interface.
-	 * @param nThreads  Number of threads to use.
+	 * @param nThreads  Number of threads to use, or {@link #AUTOTUNE} to tune the
+	 *                  number of threads and batch size automatically.
 	 * @param batchSize Batch size of jobs for each thread.
 	 * @throws Exception If something goes wrong.
 	 */
@@ -97,7 +138,8 @@ public class TestUtils {
 	 * @param target    The target coverage (as a percentage).
 	 * @param timeout   Time limit
 	 * @param gui       Flag to show Graphical User Interface.
-	 * @param nThreads  Number of threads to use.
+	 * @param nThreads  Number of threads to use, or {@link #AUTOTUNE} to tune the
+	 *                  number of threads and batch size automatically.
 	 * @param batchSize Batch size of jobs for each thread.
 	 * @throws Exception If something goes wrong.
 	 */
@@ -116,12 +158,15 @@ public class TestUtils {
 			String testClassName = TestUtils.class.getName();
 			assert testClassName != null;
 			try {
-				ProcessTimerMethod.Outcome r = ProcessTimerMethod.exec(TIMEOUT, testClassName,
-						"checkCoverageWithTimeout", name, firmware, _target, _gui, //$NON-NLS-1$
-						_nThreads, _batchSize);
-				//
-				System.out.println(new String(r.getStdout()));
-				System.out.println(new String(r.getStderr()));
+				Object[] args = { name, firmware, _target, _gui, _nThreads, _batchSize };
+				ProcessTimerMethod.Outcome r = Boolean.parseBoolean(System.getProperty(POOLED, "true")) //$NON-NLS-1$
+						? ProcessTimerMethod.execPooled(TIMEOUT, testClassName, "checkCoverageWithTimeout", args) //$NON-NLS-1$
+						: ProcessTimerMethod.exec(TIMEOUT, testClassName, "checkCoverageWithTimeout", args); //$NON-NLS-1$
+				// Print the output, unless it was already echoed as it was produced
+				if (!ProcessTimerMethod.ECHO) {
+					System.out.println(new String(r.getStdout()));
+					System.out.println(new String(r.getStderr()));
+				}
 				@Nullable Integer r_exitcode = r.exitCode();
 				//
 				if (r_exitcode == null) {
@@ -147,22 +192,45 @@ public class TestUtils {
 	 * @param firmware The firmware image being used
 	 * @param target    The target coverage (as a percentage).
 	 * @param gui       Flag to show Graphical User Interface.
-	 * @param nThreads  Number of threads to use.
+	 * @param nThreads  Number of threads to use, or {@link #AUTOTUNE} to tune the
+	 *                  number of threads and batch size automatically.
 	 * @param batchSize Batch size of jobs for each thread.
 	 * @throws Exception If something goes wrong.
 	 */
 	public static void checkCoverageWithTimeout(String name, HexFile firmware, Double target, Boolean gui, Integer nThreads, Integer batchSize) throws Exception {
 		long time = System.currentTimeMillis();
-		// Construct the input generator
-		AutomatedTester.InputGenerator<?> generator = new TinyBoyInputGenerator();
+		// When autotuning, allow up to one thread per core
+		boolean autotune = nThreads.intValue() == AUTOTUNE;
+		int threads = autotune ? Runtime.getRuntime().availableProcessors() : nThreads.intValue();
+		// Construct the input generator, resuming from an earlier corpus (if requested)
+		String corpus = System.getProperty(CORPUS_DIR);
+		CorpusStore store = corpus == null ? null : new CorpusStore(new File(corpus), firmware);
+		TinyBoyInputGenerator generator = new TinyBoyInputGenerator(threads, firmware, DIRECTED, CONCOLIC, store);
 		// Construct the fuzz tester
-		AutomatedTester<?> tester = new AutomatedTester<>(firmware, generator, gui.booleanValue(), nThreads.intValue(), batchSize.intValue());
-		// Run the fuzz tester for 50 inputs.
-		CoverageAnalysis coverage = tester.run(target.doubleValue());
-		// Record time
-		time = System.currentTimeMillis() - time;
-		// Destroy GUI (if present)
-		tester.destroy();
+		FuzzDriver<?> tester = new FuzzDriver<>(firmware, generator, gui.booleanValue(), threads, batchSize.intValue(), autotune);
+		CoverageAnalysis coverage;
+		BitSet edges;
+		try {
+			// Run the fuzz tester for 50 inputs.
+			coverage = tester.run(target.doubleValue());
+			// Record time
+			time = System.currentTimeMillis() - time;
+			// Save what was found for the next run (if requested)
+			generator.saveCorpus();
+			edges = tester.getEdges();
+		} finally {
+			// Destroy GUI (if present), even if running or saving failed
+			tester.destroy();
+		}
+		// Export the coverage timeline, and how successful each mutation operator
+		// was (if requested)
+		String dir = System.getProperty(TIMELINE_DIR);
+		if (dir != null) {
+			String file = dir + File.separator + name.replace(':', '_');
+			tester.getTimeline().write(file + ".csv"); //$NON-NLS-1$
+			tester.getTimeline().write(file + ".json"); //$NON-NLS-1$
+			System.out.println("MUTATIONS: " + generator.getMutations()); //$NON-NLS-1$
+		}
 		// Check whether the target was reached.
 		if (coverage.getBranchCoverage() < target.doubleValue()) {
 			// Indicates a fail
@@ -170,10 +238,10 @@ public class TestUtils {
 			System.out.println(name + " (" + String.format("%.2f", Double.valueOf(coverage.getInstructionCoverage())) //$NON-NLS-1$ //$NON-NLS-2$
 					+ "% instructions, " + String.format("%.2f", Double.valueOf(coverage.getBranchCoverage())) + "% branches, " + time + "ms)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
 			System.out.println("==============================================="); //$NON-NLS-1$
-			printDisassembly(firmware, coverage);
+			printDisassembly(firmware, coverage, edges);
 			fail("Branch coverage failed to meet target of " + target + "%"); //$NON-NLS-1$ //$NON-NLS-2$
 		} else {
-			printDisassembly(firmware, coverage);
+			printDisassembly(firmware, coverage, edges);
 			System.out.println("TIME: " + time + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
 		}
 
@@ -237,6 +305,20 @@ public class TestUtils {
 	 * @param coverage The computed coverage which is included in the output.
 	 */
 	public static void printDisassembly(HexFile firmware, CoverageAnalysis coverage) {
+		printDisassembly(firmware, coverage, null);
+	}
+
+	/**
+	 * Disassemble the firmware image in order to provide useful feedback, as
+	 * above. If the edges taken are given, then each conditional branch also
+	 * shows which of its directions were actually taken, and which were not.
+	 *
+	 * @param firmware The firmware file to be disassembled.
+	 * @param coverage The computed coverage which is included in the output.
+	 * @param edges    The edges taken (see {@link EdgeCoverage}), or null to only
+	 *                 show whether each branch was covered.
+	 */
+	public static void printDisassembly(HexFile firmware, CoverageAnalysis coverage, @Nullable BitSet edges) {
 		AvrDecoder decoder = new AvrDecoder();
 		AVR.Memory code = new ByteMemory(8192);
 		firmware.uploadTo(code);
@@ -246,6 +328,7 @@ public class TestUtils {
 		int coveredInstructions = 0;
 		int branches = 0;
 		int coveredBranches = 0;
+		int takenDirections = 0;
 		for (int i = 0; i != size;) {
 			if (coverage.isReachableInstruction(i)) {
 				AvrInstruction insn = decoder.decode(code, i);
@@ -258,11 +341,17 @@ public class TestUtils {
 					System.out.print(" [ ] "); //$NON-NLS-1$
 				}
 				System.out.print(insn.toString());
+				String directions = edges == null ? "" //$NON-NLS-1$
+						: (EdgeCoverage.taken(edges, i) ? " taken" : " [ ] taken") //$NON-NLS-1$ //$NON-NLS-2$
+								+ (EdgeCoverage.notTaken(edges, i) ? ", not taken" : ", [ ] not taken"); //$NON-NLS-1$ //$NON-NLS-2$
+				if (edges != null && coverage.isConditionalBranch(i)) {
+					takenDirections += (EdgeCoverage.taken(edges, i) ? 1 : 0) + (EdgeCoverage.notTaken(edges, i) ? 1 : 0);
+				}
 				if (coverage.isConditionalBranchCovered(i)) {
-					System.out.println("\t<<<<<<<<<<<<<<<<<<<< (" + branches++ + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+					System.out.println("\t<<<<<<<<<<<<<<<<<<<< (" + branches++ + ")" + directions); //$NON-NLS-1$ //$NON-NLS-2$
 					coveredBranches++;
 				} else if (coverage.isConditionalBranch(i)) {
-					System.out.println("\t<<<<<<<<<<<<<<<<<<<< UNCOVERED (" + branches++ + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+					System.out.println("\t<<<<<<<<<<<<<<<<<<<< UNCOVERED (" + branches++ + ")" + directions); //$NON-NLS-1$ //$NON-NLS-2$
 				} else {
 					System.out.println();
 				}
@@ -279,6 +368,9 @@ public class TestUtils {
 		System.out.println(
 				"Instruction Coverage = " + coveredInstructions + " / " + instructions + " (" + code.size() + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
 		System.out.println("Branch Coverage = " + coveredBranches + " / " + branches + " (" + coverage.getBranchCoverage() + "%)"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		if (edges != null) {
+			System.out.println("Branch Directions Taken = " + takenDirections + " / " + (2 * branches)); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 	}
 
 }
@@ -0,0 +1,243 @@
+package tinyboycov.util;
+
+/**
+ * Tunes the number of worker threads and the batch size used by a
+ * {@link FuzzDriver} whilst it runs. The driver measures its throughput (in
+ * inputs per second) over short windows, and reports each measurement to the
+ * tuner. Since a single window is easily skewed by the scheduler, each
+ * configuration is judged by its average over several windows. The
+ * tuner performs a simple hill climb: starting from the best configuration seen
+ * so far, it tries one more or one less thread, and then double or half the
+ * batch size. A move is kept only if it improves throughput by a clear margin,
+ * otherwise the next move is tried. Once no move improves on the best
+ * configuration, the tuner settles on it, but keeps measuring it. If its
+ * throughput then drifts well away from what it was (for instance, because the
+ * inputs being executed have changed), or it has been settled for long enough,
+ * the climb starts again from there.
+ *
+ * @author niraj
+ *
+ */
+public final class Autotuner {
+  /**
+   * Number of windows averaged to measure the throughput of a configuration.
+   */
+  private static final int WINDOWS = 4;
+
+  /**
+   * Relative improvement in throughput needed to accept a move, which stops the
+   * tuner chasing noise.
+   */
+  private static final double MARGIN = 0.05;
+
+  /**
+   * Relative change in the throughput of the settled configuration which makes
+   * the tuner climb again.
+   */
+  private static final double DRIFT = 0.25;
+
+  /**
+   * Number of measurements of the settled configuration after which the tuner
+   * climbs again anyway, in case a move which did not pay off before now does.
+   */
+  private static final int SETTLED_MEASUREMENTS = 60;
+
+  /**
+   * Number of distinct moves which can be tried from a configuration.
+   */
+  private static final int NUM_MOVES = 4;
+
+  /**
+   * Largest batch size which will be tried.
+   */
+  private static final int MAX_BATCH_SIZE = 1024;
+
+  /**
+   * Largest number of threads which will be tried.
+   */
+  private final int maxThreads;
+
+  /**
+   * Number of threads in the configuration currently being measured.
+   */
+  private int threads;
+
+  /**
+   * Batch size in the configuration currently being measured.
+   */
+  private int batchSize;
+
+  /**
+   * Number of threads in the best configuration seen so far.
+   */
+  private int bestThreads;
+
+  /**
+   * Batch size in the best configuration seen so far.
+   */
+  private int bestBatchSize;
+
+  /**
+   * Throughput of the best configuration when last measured, or negative if
+   * nothing has been measured yet.
+   */
+  private double bestRate = -1;
+
+  /**
+   * Sum of the throughput of the windows measured so far for the current
+   * configuration.
+   */
+  private double total;
+
+  /**
+   * Number of windows measured so far for the current configuration.
+   */
+  private int windows;
+
+  /**
+   * The move which produced the configuration currently being measured.
+   */
+  private int move;
+
+  /**
+   * Number of moves tried from the best configuration without improvement.
+   */
+  private int failures;
+
+  /**
+   * Set once no move improves on the best configuration, and cleared when the
+   * tuner climbs again.
+   */
+  private boolean converged;
+
+  /**
+   * Number of measurements of the best configuration since the tuner settled on
+   * it.
+   */
+  private int settled;
+
+  /**
+   * Construct a new tuner.
+   *
+   * @param maxThreads Largest number of threads which can be used.
+   * @param threads    Initial number of threads.
+   * @param batchSize  Initial batch size.
+   */
+  public Autotuner(int maxThreads, int threads, int batchSize) {
+    this.maxThreads = Math.max(1, maxThreads);
+    this.threads = Math.max(1, Math.min(threads, this.maxThreads));
+    this.batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+    this.bestThreads = this.threads;
+    this.bestBatchSize = this.batchSize;
+  }
+
+  /**
+   * Get the number of threads to use now.
+   *
+   * @return the number of threads.
+   */
+  public int getThreads() {
+    return this.threads;
+  }
+
+  /**
+   * Get the batch size to use now.
+   *
+   * @return the batch size.
+   */
+  public int getBatchSize() {
+    return this.batchSize;
+  }
+
+  /**
+   * Get the throughput of the best configuration, when last measured.
+   *
+   * @return the throughput (in inputs per second).
+   */
+  public double getRate() {
+    return Math.max(0, this.bestRate);
+  }
+
+  /**
+   * Check whether the tuner has settled on a configuration.
+   *
+   * @return True if converged, false otherwise.
+   */
+  public boolean isConverged() {
+    return this.converged;
+  }
+
+  /**
+   * Report the throughput measured over one window for the current
+   * configuration. Once enough windows have been measured, this moves to the
+   * next configuration to be measured.
+   *
+   * @param rate Throughput measured (in inputs per second).
+   */
+  public void sample(double rate) {
+    this.total += rate;
+    this.windows++;
+    if (this.windows < WINDOWS) {
+      return;
+    }
+    double average = this.total / this.windows;
+    this.total = 0;
+    this.windows = 0;
+    if (this.converged) {
+      this.settled++;
+      if (Math.abs(average - this.bestRate) <= this.bestRate * DRIFT
+          && this.settled < SETTLED_MEASUREMENTS) {
+        return;
+      }
+      // Climb again from the settled configuration, as it performs now
+      this.converged = false;
+      this.settled = 0;
+      this.bestRate = average;
+      this.failures = 0;
+    } else if (this.bestRate < 0 || average > this.bestRate * (1 + MARGIN)) {
+      // Keep going in the same direction
+      this.bestThreads = this.threads;
+      this.bestBatchSize = this.batchSize;
+      this.bestRate = average;
+      this.failures = 0;
+    } else {
+      this.failures++;
+      this.move = (this.move + 1) % NUM_MOVES;
+    }
+    // Find the next valid move from the best configuration
+    while (this.failures < NUM_MOVES) {
+      this.threads = this.bestThreads;
+      this.batchSize = this.bestBatchSize;
+      switch (this.move) {
+        case 0:
+          this.threads++;
+          break;
+        case 1:
+          this.threads--;
+          break;
+        case 2:
+          this.batchSize *= 2;
+          break;
+        default:
+          this.batchSize /= 2;
+          break;
+      }
+      if (this.threads >= 1 && this.threads <= this.maxThreads && this.batchSize >= 1
+          && this.batchSize <= MAX_BATCH_SIZE) {
+        return;
+      }
+      this.failures++;
+      this.move = (this.move + 1) % NUM_MOVES;
+    }
+    this.threads = this.bestThreads;
+    this.batchSize = this.bestBatchSize;
+    this.converged = true;
+  }
+
+  @Override
+  public String toString() {
+    return this.bestThreads + " threads, batch size " + this.bestBatchSize + " @ " //$NON-NLS-1$ //$NON-NLS-2$
+        + Math.round(getRate() * 10) / 10.0 + " inputs/s" //$NON-NLS-1$
+        + (this.converged ? "" : " (not converged)"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
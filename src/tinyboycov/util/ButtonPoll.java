@@ -0,0 +1,40 @@
+package tinyboycov.util;
+
+/**
+ * A single read of the buttons by the firmware. Since every read of the input
+ * port reads each button once, each poll consumes exactly one step of the
+ * input. Buttons are identified by bitmasks, where bit <code>i</code> stands
+ * for the button with ordinal <code>i</code>.
+ *
+ * @author niraj
+ *
+ * @param step    The step of the input which was read.
+ * @param address The (word) address of the instruction which read the buttons.
+ * @param tested  The buttons the instruction tested. This is a single button
+ *                for an instruction which tests one bit of the port (e.g.
+ *                <code>SBIS</code>), and all of them otherwise since the value
+ *                read could be tested in any way afterwards.
+ * @param pressed The buttons which were pressed when read.
+ */
+public record ButtonPoll(int step, int address, int tested, int pressed) {
+  /**
+   * Check whether the instruction tested a single button, in which case the
+   * branch taken depends only on that button.
+   *
+   * @return True if a single button was tested, false otherwise.
+   */
+  public boolean isSingleButton() {
+    return Integer.bitCount(this.tested) == 1;
+  }
+
+  /**
+   * Get the buttons which must change to take the other branch, when a single
+   * button was tested.
+   *
+   * @return the buttons which must be pressed, or zero if the tested button
+   *         must instead be released.
+   */
+  public int needed() {
+    return this.tested & ~this.pressed;
+  }
+}
@@ -0,0 +1,580 @@
+package tinyboycov.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import javr.core.AVR;
+import javr.core.AvrDecoder;
+import javr.core.AvrInstruction;
+import javr.io.HexFile;
+import javr.memory.ByteMemory;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A TinyBoy emulator which executes inputs concolically. The buttons are still
+ * driven by a concrete input, but each step of the input is also treated as a
+ * symbolic variable. Alongside the concrete state, every register, byte of data
+ * memory and the status register carry the set of steps their value depends on
+ * (as a bitmask). These sets are propagated by a shadow interpretation of each
+ * instruction executed. Addresses are concretised, but a load through a pointer
+ * depends on the pointer as well as the byte loaded, since firmware commonly
+ * looks up what a button does in a table. Whenever a conditional
+ * branch whose condition depends on the input is executed, the branch and the
+ * steps it depends on are recorded as a path constraint. Flipping a constraint
+ * then only requires changing those steps. The concrete operands of the last
+ * comparison are also kept, so each constraint records how far its condition
+ * was from flipping, which guides the search for inputs that flip it. Only the
+ * first {@link #MAX_STEPS} steps of an input are treated as symbolic.
+ *
+ * @author niraj
+ *
+ */
+public class ConcolicEmulator extends FuzzEmulator {
+  /**
+   * Number of steps of an input which are treated as symbolic.
+   */
+  public static final int MAX_STEPS = Long.SIZE;
+
+  /**
+   * Number of bytes in the code memory of a TinyBoy.
+   */
+  private static final int CODE_SIZE = 8192;
+
+  /**
+   * Data memory address of the stack pointer (low byte first).
+   */
+  private static final int SPL = 0x5D;
+
+  /**
+   * Offset of the I/O registers in data memory.
+   */
+  private static final int IO_BASE = 0x20;
+
+  /**
+   * Distance recorded for a condition which was not made by comparing two
+   * values, such as testing a single bit.
+   */
+  public static final int UNKNOWN_DISTANCE = 1;
+
+  /**
+   * A conditional branch executed whose condition depended on the input. When
+   * the branch is executed several times, the execution closest to flipping is
+   * kept (the earliest, on a tie).
+   *
+   * @param address  The (word) address of the branch.
+   * @param step     The last step read before the branch was executed, or -1 if
+   *                 none had been read.
+   * @param other    The (word) address of the outcome which was not taken.
+   * @param inputs   The steps the condition depended on, as a bitmask.
+   * @param distance The absolute difference between the values last compared,
+   *                 or {@link #UNKNOWN_DISTANCE}.
+   */
+  public record Constraint(int address, int step, int other, long inputs, int distance) {
+  }
+
+  /**
+   * The firmware, decoded as needed.
+   */
+  private final @Nullable AvrInstruction[] decoded = new AvrInstruction[CODE_SIZE / 2];
+
+  /**
+   * The code memory, used for decoding.
+   */
+  private final ByteMemory code = new ByteMemory(CODE_SIZE);
+
+  /**
+   * Decoder for the code memory.
+   */
+  private final AvrDecoder decoder = new AvrDecoder();
+
+  /**
+   * Steps on which each byte of data memory (including the registers) depends.
+   */
+  private final long[] taint;
+
+  /**
+   * Steps on which the status register depends.
+   */
+  private long flags;
+
+  /**
+   * Concrete difference between the values last compared, where a compare with
+   * carry extends the previous difference by another byte.
+   */
+  private int difference = UNKNOWN_DISTANCE;
+
+  /**
+   * Most recent constraint for each branch outcome not taken, in the order they
+   * were first recorded.
+   */
+  private final LinkedHashMap<Long, Constraint> constraints = new LinkedHashMap<>();
+
+  /**
+   * Construct a new emulator.
+   */
+  public ConcolicEmulator() {
+    // Skipping steps would lose track of which ones values depend on
+    super(false, false);
+    this.taint = new long[getAVR().getData().size()];
+  }
+
+  @Override
+  public void upload(HexFile firmware) {
+    super.upload(firmware);
+    this.code.reset();
+    firmware.uploadTo(this.code);
+    Arrays.fill(this.decoded, null);
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    Arrays.fill(this.taint, 0);
+    this.flags = 0;
+    this.difference = UNKNOWN_DISTANCE;
+    this.constraints.clear();
+  }
+
+  /**
+   * Get the path constraints recorded since reset. For each branch outcome not
+   * taken, only the constraint from the execution of the branch closest to
+   * flipping is kept.
+   *
+   * @return the constraints, in the order first recorded.
+   */
+  public List<Constraint> getConstraints() {
+    return new ArrayList<>(this.constraints.values());
+  }
+
+  @Override
+  public void clock() throws AVR.HaltedException {
+    AVR avr = getAVR();
+    AVR.Memory data = avr.getData();
+    int pc = avr.getPC();
+    AvrInstruction insn = decode(pc);
+    // Addresses must be worked out before registers are incremented
+    int address = effectiveAddress(insn, data);
+    compare(insn, data);
+    int reads = getReads();
+    super.clock();
+    int step = reads / READS_PER_STEP;
+    long input = getReads() != reads && step < MAX_STEPS ? 1L << step : 0;
+    propagate(insn, pc, address, input, avr.getPC());
+  }
+
+  @Override
+  public void run(int limit) throws AVR.HaltedException {
+    // Every instruction must be shadowed, so none can be executed in a batch
+    int reads = getReads();
+    for (int i = 0; i != limit && getReads() == reads; i++) {
+      clock();
+    }
+  }
+
+  /**
+   * Decode the instruction at a given address.
+   *
+   * @param pc The (word) address.
+   * @return the instruction.
+   */
+  private AvrInstruction decode(int pc) {
+    @Nullable AvrInstruction insn = this.decoded[pc];
+    if (insn == null) {
+      insn = this.decoder.decode(this.code, pc);
+      this.decoded[pc] = insn;
+    }
+    return insn;
+  }
+
+  /**
+   * Work out the data memory address accessed by an instruction, before it is
+   * executed.
+   *
+   * @param insn The instruction.
+   * @param data The data memory.
+   * @return the address, or -1 if the instruction accesses no fixed address.
+   */
+  private static int effectiveAddress(AvrInstruction insn, AVR.Memory data) {
+    switch (insn.getOpcode()) {
+    case LD_X:
+    case LD_X_INC:
+    case ST_X:
+    case ST_X_INC:
+      return word(data, 26);
+    case LD_X_DEC:
+    case ST_X_DEC:
+      return word(data, 26) - 1;
+    case LD_Y:
+    case LD_Y_INC:
+    case ST_Y:
+    case ST_Y_INC:
+      return word(data, 28);
+    case LD_Y_DEC:
+    case ST_Y_DEC:
+      return word(data, 28) - 1;
+    case LD_Z:
+    case LD_Z_INC:
+    case ST_Z:
+    case ST_Z_INC:
+      return word(data, 30);
+    case LD_Z_DEC:
+    case ST_Z_DEC:
+      return word(data, 30) - 1;
+    case LDD_Y_Q:
+    case STD_Y_Q:
+      return word(data, 28) + ((AvrInstruction.RegisterDisplacement) insn).q;
+    case LDD_Z_Q:
+    case STD_Z_Q:
+      return word(data, 30) + ((AvrInstruction.RegisterDisplacement) insn).q;
+    case LDS:
+    case STS_DATA_WIDE:
+      return ((AvrInstruction.RegisterAbsoluteAddress) insn).k;
+    case PUSH:
+    case CALL:
+    case RCALL:
+    case ICALL:
+      return word(data, SPL);
+    case POP:
+      return word(data, SPL) + 1;
+    default:
+      return -1;
+    }
+  }
+
+  /**
+   * Record the concrete difference between the values compared by an
+   * instruction, before it is executed.
+   *
+   * @param insn The instruction.
+   * @param data The data memory.
+   */
+  private void compare(AvrInstruction insn, AVR.Memory data) {
+    switch (insn.getOpcode()) {
+    case CP:
+    case SUB: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      this.difference = (data.peek(rr.Rd) & 0xFF) - (data.peek(rr.Rr) & 0xFF);
+      break;
+    }
+    case CPI:
+    case SUBI: {
+      AvrInstruction.RegisterImmediate ri = (AvrInstruction.RegisterImmediate) insn;
+      this.difference = (data.peek(ri.Rd) & 0xFF) - (ri.K & 0xFF);
+      break;
+    }
+    case CPC:
+    case SBC: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      int high = (data.peek(rr.Rd) & 0xFF) - (data.peek(rr.Rr) & 0xFF);
+      this.difference = high * 256 + this.difference;
+      break;
+    }
+    case SBCI: {
+      AvrInstruction.RegisterImmediate ri = (AvrInstruction.RegisterImmediate) insn;
+      int high = (data.peek(ri.Rd) & 0xFF) - (ri.K & 0xFF);
+      this.difference = high * 256 + this.difference;
+      break;
+    }
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Read a little-endian word from data memory, without side effects.
+   *
+   * @param data    The data memory.
+   * @param address Address of the low byte.
+   * @return the word.
+   */
+  private static int word(AVR.Memory data, int address) {
+    return (data.peek(address) & 0xFF) | ((data.peek(address + 1) & 0xFF) << 8);
+  }
+
+  /**
+   * Propagate the steps on which values depend through an instruction which has
+   * just been executed, and record a constraint if it was a conditional branch
+   * depending on the input.
+   *
+   * @param insn    The instruction.
+   * @param pc      Its (word) address.
+   * @param address The data memory address it accessed, or -1.
+   * @param input   The step read by the instruction (as a bitmask), or zero if
+   *                it read none.
+   * @param next    The (word) address executed next.
+   */
+  private void propagate(AvrInstruction insn, int pc, int address, long input, int next) {
+    long[] t = this.taint;
+    boolean valid = address >= 0 && address < t.length;
+    switch (insn.getOpcode()) {
+    case IN: {
+      AvrInstruction.RegisterIo io = (AvrInstruction.RegisterIo) insn;
+      t[io.Rd] = input != 0 ? input : t[IO_BASE + io.A];
+      break;
+    }
+    case OUT: {
+      AvrInstruction.IoRegister io = (AvrInstruction.IoRegister) insn;
+      t[IO_BASE + io.A] = t[io.Rr];
+      break;
+    }
+    case LDI:
+    case SER:
+    case LPM_Z:
+    case LPM_Z_INC:
+      t[destination(insn)] = 0;
+      break;
+    case ANDI:
+    case ORI:
+    case SUBI:
+    case SBR:
+    case CPI: {
+      AvrInstruction.RegisterImmediate ri = (AvrInstruction.RegisterImmediate) insn;
+      this.flags = t[ri.Rd];
+      break;
+    }
+    case SBCI: {
+      AvrInstruction.RegisterImmediate ri = (AvrInstruction.RegisterImmediate) insn;
+      t[ri.Rd] |= this.flags;
+      this.flags = t[ri.Rd];
+      break;
+    }
+    case ADIW:
+    case SBIW: {
+      AvrInstruction.RegisterImmediate ri = (AvrInstruction.RegisterImmediate) insn;
+      long v = t[ri.Rd] | t[ri.Rd + 1];
+      t[ri.Rd] = v;
+      t[ri.Rd + 1] = v;
+      this.flags = v;
+      break;
+    }
+    case MOV: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      t[rr.Rd] = t[rr.Rr];
+      break;
+    }
+    case MOVW: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      t[rr.Rd] = t[rr.Rr];
+      t[rr.Rd + 1] = t[rr.Rr + 1];
+      break;
+    }
+    case CP: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      this.flags = t[rr.Rd] | t[rr.Rr];
+      break;
+    }
+    case CPC: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      this.flags |= t[rr.Rd] | t[rr.Rr];
+      break;
+    }
+    case ADD:
+    case SUB:
+    case AND:
+    case OR:
+    case EOR: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      // Exclusive or of a register with itself clears it
+      long v = insn.getOpcode() == AvrInstruction.Opcode.EOR && rr.Rd == rr.Rr ? 0
+          : t[rr.Rd] | t[rr.Rr];
+      t[rr.Rd] = v;
+      this.flags = v;
+      break;
+    }
+    case ADC:
+    case SBC: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      long v = t[rr.Rd] | t[rr.Rr] | this.flags;
+      t[rr.Rd] = v;
+      this.flags = v;
+      break;
+    }
+    case MUL:
+    case MULS:
+    case MULSU:
+    case FMUL:
+    case FMULS:
+    case FMULSU: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      long v = t[rr.Rd] | t[rr.Rr];
+      t[0] = v;
+      t[1] = v;
+      this.flags = v;
+      break;
+    }
+    case INC:
+    case DEC:
+    case COM:
+    case NEG:
+    case LSR:
+    case ASR:
+    case SWAP:
+      this.flags = t[((AvrInstruction.Register) insn).Rd];
+      break;
+    case ROR: {
+      int rd = ((AvrInstruction.Register) insn).Rd;
+      t[rd] |= this.flags;
+      this.flags = t[rd];
+      break;
+    }
+    case BST:
+      this.flags |= t[((AvrInstruction.RegisterBit) insn).Rd];
+      break;
+    case BLD:
+      t[((AvrInstruction.RegisterBit) insn).Rd] |= this.flags;
+      break;
+    case LD_X:
+    case LD_X_INC:
+    case LD_X_DEC:
+      t[((AvrInstruction.Register) insn).Rd] = (valid ? t[address] : 0) | t[26] | t[27];
+      break;
+    case LD_Y:
+    case LD_Y_INC:
+    case LD_Y_DEC:
+      t[((AvrInstruction.Register) insn).Rd] = (valid ? t[address] : 0) | t[28] | t[29];
+      break;
+    case LD_Z:
+    case LD_Z_INC:
+    case LD_Z_DEC:
+      t[((AvrInstruction.Register) insn).Rd] = (valid ? t[address] : 0) | t[30] | t[31];
+      break;
+    case POP:
+      t[((AvrInstruction.Register) insn).Rd] = valid ? t[address] : 0;
+      break;
+    case ST_X:
+    case ST_X_INC:
+    case ST_X_DEC:
+    case ST_Y:
+    case ST_Y_INC:
+    case ST_Y_DEC:
+    case ST_Z:
+    case ST_Z_INC:
+    case ST_Z_DEC:
+    case PUSH:
+      if (valid) {
+        t[address] = t[((AvrInstruction.Register) insn).Rd];
+      }
+      break;
+    case LDD_Y_Q:
+      t[((AvrInstruction.RegisterDisplacement) insn).Rd] = (valid ? t[address] : 0) | t[28] | t[29];
+      break;
+    case LDD_Z_Q:
+      t[((AvrInstruction.RegisterDisplacement) insn).Rd] = (valid ? t[address] : 0) | t[30] | t[31];
+      break;
+    case STD_Y_Q:
+    case STD_Z_Q:
+      if (valid) {
+        t[address] = t[((AvrInstruction.RegisterDisplacement) insn).Rd];
+      }
+      break;
+    case LDS:
+      t[((AvrInstruction.RegisterAbsoluteAddress) insn).Rd] = valid ? t[address] : 0;
+      break;
+    case STS_DATA_WIDE:
+      if (valid) {
+        t[address] = t[((AvrInstruction.RegisterAbsoluteAddress) insn).Rd];
+      }
+      break;
+    case CALL:
+    case RCALL:
+    case ICALL:
+      // The return address pushed does not depend on the input
+      if (valid && address > 0) {
+        t[address] = 0;
+        t[address - 1] = 0;
+      }
+      break;
+    case CPSE: {
+      AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+      skip(pc, next, t[rr.Rd] | t[rr.Rr]);
+      break;
+    }
+    case SBRC:
+    case SBRS:
+      skip(pc, next, t[((AvrInstruction.RegisterBit) insn).Rd]);
+      break;
+    case SBIC:
+    case SBIS: {
+      AvrInstruction.IoBit io = (AvrInstruction.IoBit) insn;
+      skip(pc, next, input != 0 ? input : t[IO_BASE + io.A]);
+      break;
+    }
+    case BRBC:
+    case BRBS:
+      branch(pc, next, pc + 1 + ((AvrInstruction.FlagRelativeAddress) insn).k);
+      break;
+    default:
+      if (insn instanceof AvrInstruction.RelativeAddress r
+          && insn.getOpcode() != AvrInstruction.Opcode.RJMP) {
+        branch(pc, next, pc + 1 + r.k);
+      }
+    }
+  }
+
+  /**
+   * Get the register written by an instruction which loads a constant.
+   *
+   * @param insn The instruction.
+   * @return the destination register.
+   */
+  private static int destination(AvrInstruction insn) {
+    if (insn instanceof AvrInstruction.RegisterImmediate ri) {
+      return ri.Rd;
+    }
+    return ((AvrInstruction.Register) insn).Rd;
+  }
+
+  /**
+   * Record a relative branch which depends on the status register.
+   *
+   * @param pc     The (word) address of the branch.
+   * @param next   The (word) address executed next.
+   * @param target The (word) address of the branch target.
+   */
+  private void branch(int pc, int next, int target) {
+    int distance = Math.max(UNKNOWN_DISTANCE, Math.abs(this.difference));
+    if (next == pc + 1) {
+      constrain(pc, target, this.flags, distance);
+    } else if (next == target) {
+      constrain(pc, pc + 1, this.flags, distance);
+    }
+  }
+
+  /**
+   * Record a skip instruction, whose condition tests a single bit or equality
+   * and so has no useful distance.
+   *
+   * @param pc     The (word) address of the instruction.
+   * @param next   The (word) address executed next.
+   * @param inputs The steps its condition depends on.
+   */
+  private void skip(int pc, int next, long inputs) {
+    int skipped = pc + 1 + decode(pc + 1).getWidth();
+    if (next == pc + 1) {
+      constrain(pc, skipped, inputs, UNKNOWN_DISTANCE);
+    } else if (next == skipped) {
+      constrain(pc, pc + 1, inputs, UNKNOWN_DISTANCE);
+    }
+  }
+
+  /**
+   * Record a constraint, if the branch depends on the input.
+   *
+   * @param pc       The (word) address of the branch.
+   * @param other    The (word) address of the outcome not taken.
+   * @param inputs   The steps the condition depends on.
+   * @param distance How far the condition was from flipping.
+   */
+  private void constrain(int pc, int other, long inputs, int distance) {
+    if (inputs != 0) {
+      Long key = Long.valueOf(((long) pc << 32) | other);
+      Constraint c = this.constraints.get(key);
+      if (c == null || distance < c.distance()) {
+        // Replacing a constraint keeps its original position
+        int step = getReads() / READS_PER_STEP - 1;
+        this.constraints.put(key, new Constraint(pc, step, other, inputs, distance));
+      }
+    }
+  }
+}
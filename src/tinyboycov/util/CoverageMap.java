@@ -0,0 +1,75 @@
+package tinyboycov.util;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A coverage bitmap which can be merged into by many threads at once without
+ * locking. Each word is updated with a compare-and-set loop, which also tells
+ * the caller exactly which of its bits were new. Thus, the thread which first
+ * covers an instruction is always the one to find out about it.
+ *
+ * @author niraj
+ *
+ */
+public final class CoverageMap {
+  /**
+   * The bitmap, in the same word layout as <code>BitSet.toLongArray()</code>.
+   */
+  private final AtomicLongArray words;
+
+  /**
+   * Create an empty map able to hold a given number of bits.
+   *
+   * @param size Number of bits.
+   */
+  public CoverageMap(int size) {
+    this.words = new AtomicLongArray((size + 63) >>> 6);
+  }
+
+  /**
+   * Merge a given set of bits into this map. Any bits beyond the size of the map
+   * are ignored.
+   *
+   * @param bits The bits to merge.
+   * @return The number of bits which were not previously in the map.
+   */
+  public int merge(BitSet bits) {
+    return merge(bits.toLongArray());
+  }
+
+  /**
+   * Merge a given set of bits into this map, as above. This does not allocate.
+   *
+   * @param ws The bits to merge, in the same word layout as
+   *           <code>BitSet.toLongArray()</code>.
+   * @return The number of bits which were not previously in the map.
+   */
+  public int merge(long[] ws) {
+    int added = 0;
+    int n = Math.min(ws.length, this.words.length());
+    for (int i = 0; i != n; i++) {
+      long w = ws[i];
+      if (w != 0) {
+        long old = this.words.getAndAccumulate(i, w, (a, b) -> a | b);
+        added += Long.bitCount(w & ~old);
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Get a copy of the bits currently in this map. This is not an atomic snapshot
+   * of the map as a whole, but every bit merged before this is called is
+   * included.
+   *
+   * @return the bits in this map.
+   */
+  public BitSet toBitSet() {
+    long[] ws = new long[this.words.length()];
+    for (int i = 0; i != ws.length; i++) {
+      ws[i] = this.words.get(i);
+    }
+    return BitSet.valueOf(ws);
+  }
+}
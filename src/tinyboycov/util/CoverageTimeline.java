@@ -0,0 +1,161 @@
+package tinyboycov.util;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import javr.io.HexFile;
+import tinyboy.util.CoverageAnalysis;
+
+/**
+ * Records how coverage progresses whilst a {@link FuzzDriver} runs, with one
+ * point at the end of each generation of inputs (and one when the run ends).
+ * This shows where the fuzzer plateaus, and which changes to the generator
+ * actually move the curve. Points are cheap to record, since each only holds the
+ * coverage bitmap. Branch coverage is worked out when the timeline is exported.
+ *
+ * @author niraj
+ *
+ */
+public final class CoverageTimeline {
+  /**
+   * Column names, in the order exported.
+   */
+  private static final String[] COLUMNS = { "generation", "millis", "inputs", "cycles", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+    "newStates", "newBranches", "branches", "branchCoverage" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+  /**
+   * Number of instructions in the code memory of a TinyBoy (which holds 8K
+   * bytes), over which branches are counted.
+   */
+  private static final int INSTRUCTIONS = 4096;
+
+  /**
+   * A single point on the timeline.
+   *
+   * @param generation Number of generations completed.
+   * @param millis     Time since the run started (in ms).
+   * @param inputs     Number of inputs executed.
+   * @param cycles     Number of emulator cycles consumed.
+   * @param newStates  Number of new states reached by the last generation.
+   * @param coverage   Union of the coverage of every input executed.
+   */
+  public record Point(int generation, long millis, int inputs, long cycles, int newStates,
+      BitSet coverage) {
+  }
+
+  /**
+   * The firmware being tested, needed to work out branch coverage.
+   */
+  private final HexFile firmware;
+
+  /**
+   * The points recorded so far, in order.
+   */
+  private final ArrayList<Point> points = new ArrayList<>();
+
+  /**
+   * Create an empty timeline.
+   *
+   * @param firmware The firmware being tested.
+   */
+  public CoverageTimeline(HexFile firmware) {
+    this.firmware = firmware;
+  }
+
+  /**
+   * Add a point to the end of this timeline.
+   *
+   * @param point The point.
+   */
+  public synchronized void add(Point point) {
+    this.points.add(point);
+  }
+
+  /**
+   * Get the points recorded so far.
+   *
+   * @return a copy of the points, in order.
+   */
+  public synchronized List<Point> getPoints() {
+    return new ArrayList<>(this.points);
+  }
+
+  /**
+   * Work out the row exported for each point.
+   *
+   * @return the rows, each holding one value per column.
+   */
+  private List<Object[]> rows() {
+    CoverageAnalysis analysis = new CoverageAnalysis(this.firmware);
+    ArrayList<Object[]> rows = new ArrayList<>();
+    int last = 0;
+    for (Point p : getPoints()) {
+      analysis.record(p.coverage());
+      // Count branches in the same way as the analysis does
+      int branches = 0;
+      for (int i = 0; i != INSTRUCTIONS; i++) {
+        if (analysis.isConditionalBranch(i) && analysis.isConditionalBranchCovered(i)) {
+          branches++;
+        }
+      }
+      rows.add(new Object[] { Integer.valueOf(p.generation()), Long.valueOf(p.millis()),
+        Integer.valueOf(p.inputs()), Long.valueOf(p.cycles()), Integer.valueOf(p.newStates()),
+        Integer.valueOf(branches - last), Integer.valueOf(branches),
+        String.format(Locale.ROOT, "%.2f", Double.valueOf(analysis.getBranchCoverage())) }); //$NON-NLS-1$
+      last = branches;
+    }
+    return rows;
+  }
+
+  /**
+   * Export this timeline as CSV, with a header row.
+   *
+   * @return the CSV.
+   */
+  public String toCsv() {
+    StringBuilder sb = new StringBuilder(String.join(",", COLUMNS)).append('\n'); //$NON-NLS-1$
+    for (Object[] row : rows()) {
+      for (int i = 0; i != row.length; i++) {
+        sb.append(i == 0 ? "" : ",").append(row[i]); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Export this timeline as a JSON array, with one object per point.
+   *
+   * @return the JSON.
+   */
+  public String toJson() {
+    StringBuilder sb = new StringBuilder("["); //$NON-NLS-1$
+    List<Object[]> rows = rows();
+    for (int r = 0; r != rows.size(); r++) {
+      Object[] row = rows.get(r);
+      sb.append(r == 0 ? "\n  {" : ",\n  {"); //$NON-NLS-1$ //$NON-NLS-2$
+      for (int i = 0; i != row.length; i++) {
+        sb.append(i == 0 ? "\"" : ", \"").append(COLUMNS[i]).append("\": ").append(row[i]); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      }
+      sb.append('}');
+    }
+    return sb.append("\n]\n").toString(); //$NON-NLS-1$
+  }
+
+  /**
+   * Write this timeline to a file, as JSON if the file name ends in
+   * <code>.json</code> and as CSV otherwise.
+   *
+   * @param filename Name of the file.
+   * @throws IOException If something goes wrong.
+   */
+  public void write(String filename) throws IOException {
+    try (Writer w = new FileWriter(filename)) {
+      w.write(filename.endsWith(".json") ? toJson() : toCsv()); //$NON-NLS-1$
+    }
+  }
+}
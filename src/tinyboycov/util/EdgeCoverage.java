@@ -0,0 +1,140 @@
+package tinyboycov.util;
+
+import java.util.BitSet;
+import javr.core.AvrInstruction;
+
+/**
+ * The layout of the edge coverage bitmap, which records the transitions taken
+ * out of every instruction whose successor is not fixed. For a conditional
+ * branch or skip, the two outcomes are recorded exactly: bit <code>2 * pc</code>
+ * when it falls through to the next instruction, and bit <code>2 * pc + 1</code>
+ * when it is taken. This tells exactly which directions of each branch were
+ * exercised, which instruction coverage alone cannot (e.g. a branch whose target
+ * is also reached some other way). For an indirect jump, call or return, the
+ * (from, to) pair is hashed into the rest of the bitmap, as AFL does, so that
+ * returning to a different caller counts as a new edge. Edges into the hashed
+ * half may collide, but those of conditional branches never do.
+ *
+ * @author niraj
+ *
+ */
+public final class EdgeCoverage {
+  /**
+   * Number of instructions (in words) in code memory.
+   */
+  private static final int INSTRUCTIONS = 4096;
+
+  /**
+   * Number of bits in the bitmap: two per instruction for conditional branches,
+   * and the same again for hashed edges.
+   */
+  public static final int SIZE = 4 * INSTRUCTIONS;
+
+  /**
+   * Kind of an instruction whose successor is fixed, so has no edges recorded.
+   */
+  public static final byte NONE = 0;
+
+  /**
+   * Kind of a conditional branch or skip, whose outcome is recorded exactly.
+   */
+  public static final byte CONDITIONAL = 1;
+
+  /**
+   * Kind of an indirect jump, call or return, whose edges are hashed.
+   */
+  public static final byte INDIRECT = 2;
+
+  /**
+   * Utility class.
+   */
+  private EdgeCoverage() {
+  }
+
+  /**
+   * Determine the kind of edges recorded for an instruction.
+   *
+   * @param insn The instruction.
+   * @return {@link #CONDITIONAL}, {@link #INDIRECT} or {@link #NONE}.
+   */
+  public static byte kindOf(AvrInstruction insn) {
+    switch (insn.getOpcode()) {
+    case BRBC:
+    case BRBS:
+    case BREQ:
+    case BRGE:
+    case BRHC:
+    case BRHS:
+    case BRID:
+    case BRIE:
+    case BRLO:
+    case BRLT:
+    case BRMI:
+    case BRNE:
+    case BRPL:
+    case BRSH:
+    case BRTC:
+    case BRTS:
+    case BRVC:
+    case BRVS:
+    case CPSE:
+    case SBIC:
+    case SBIS:
+    case SBRC:
+    case SBRS:
+      return CONDITIONAL;
+    case IJMP:
+    case EIJMP:
+    case ICALL:
+    case EICALL:
+    case RET:
+    case RETI:
+      return INDIRECT;
+    default:
+      return NONE;
+    }
+  }
+
+  /**
+   * Record an edge in a bitmap. Conditional branches and skips are a single
+   * word wide, so fall through to the next word.
+   *
+   * @param edges The bitmap, in the same word layout as
+   *              <code>BitSet.toLongArray()</code>.
+   * @param kind  The kind of the instruction the edge leaves.
+   * @param from  The (word) address of that instruction.
+   * @param to    The (word) address executed next.
+   */
+  public static void record(long[] edges, byte kind, int from, int to) {
+    int bit;
+    if (kind == CONDITIONAL) {
+      bit = 2 * from + (to == from + 1 ? 0 : 1);
+    } else {
+      bit = 2 * INSTRUCTIONS + (((from << 16 ^ to) * 0x9E3779B1) >>> 19);
+    }
+    edges[bit >>> 6] |= 1L << bit;
+  }
+
+  /**
+   * Check whether a conditional branch or skip was taken.
+   *
+   * @param edges The edges recorded.
+   * @param pc    The (word) address of the branch.
+   * @return True if the branch was taken (or the skip skipped).
+   */
+  public static boolean taken(BitSet edges, int pc) {
+    return edges.get(2 * pc + 1);
+  }
+
+  /**
+   * Check whether a conditional branch or skip fell through to the next
+   * instruction.
+   *
+   * @param edges The edges recorded.
+   * @param pc    The (word) address of the branch.
+   * @return True if the branch fell through.
+   */
+  public static boolean notTaken(BitSet edges, int pc) {
+    return edges.get(2 * pc);
+  }
+}
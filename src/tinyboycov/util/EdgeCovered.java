@@ -0,0 +1,22 @@
+package tinyboycov.util;
+
+import java.util.Iterator;
+
+/**
+ * An input which accepts feedback about the edges taken whilst it was executed.
+ * When a {@link FuzzDriver} executes such an input, it hands back the number of
+ * edges (see {@link EdgeCoverage}) which no earlier input had taken. Unlike
+ * instruction coverage, this sees a branch being taken in a new direction
+ * even when both of its successors have already been covered.
+ *
+ * @author niraj
+ *
+ */
+public interface EdgeCovered extends Iterator<Boolean> {
+  /**
+   * Accept the number of new edges taken by this input.
+   *
+   * @param newEdges The number of new edges.
+   */
+  void covered(int newEdges);
+}
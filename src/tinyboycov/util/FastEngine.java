@@ -0,0 +1,1373 @@
+package tinyboycov.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import javr.core.AVR;
+import javr.core.AvrDecoder;
+import javr.core.AvrInstruction;
+import javr.memory.ByteMemory;
+import javr.memory.MultiplexedMemory;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Executes the firmware of an AVR from a table of pre-decoded instructions, as
+ * a faster alternative to {@link AVR#clock()}. When the firmware is loaded,
+ * every word of code memory is decoded once into a compact record: an integer
+ * holding the kind of instruction and its register operands, and another
+ * holding its immediate operand. Instructions are then executed in a tight
+ * loop, which dispatches on the kind with a single switch and operates on the
+ * register file directly rather than through the layers of data memory.
+ * Everything else (the I/O registers, the SRAM, the stack and program memory)
+ * is still accessed through the memories of the AVR, in the same order, so
+ * ports and instruments see exactly the same reads and writes. The program
+ * counter and status register are those of the AVR between calls, so this can
+ * be freely interleaved with {@link AVR#clock()}.
+ * <p>
+ * This mirrors the behaviour of the javr interpreter exactly, including where
+ * it departs from the datasheet (e.g. <code>SUB</code> leaves the zero flag
+ * clear unless it was already set, like <code>SBC</code>). Anything not handled
+ * here falls back to the interpreter for a single instruction: instructions
+ * which are never generated by the TinyBoy firmware, a relative jump to itself
+ * (which halts), and every instruction executed whilst interrupts are enabled.
+ * </p>
+ * <p>
+ * Code memory is still read as the interpreter reads it, so that coverage
+ * recorded by instrumenting it is unchanged. The interpreter decodes an
+ * instruction (reading its bytes) the first time it is executed after a reset,
+ * and likewise this reads the bytes of an instruction the first time it is
+ * executed (or skipped over) after {@link #invalidate()}.
+ * </p>
+ *
+ * @author niraj
+ *
+ */
+public final class FastEngine {
+  /**
+   * Kinds of pre-decoded instruction, held in the low byte of each record.
+   * Instructions which behave identically are folded into one kind: every
+   * conditional branch becomes <code>BRBS</code> or <code>BRBC</code> on the
+   * flag it tests, every flag instruction becomes <code>BSET</code> or
+   * <code>BCLR</code>, and the loads and stores become a displacement from, or
+   * an increment or decrement of, one of the pointer registers.
+   */
+  private static final int FALLBACK = 0;
+  private static final int NOP = 1;
+  private static final int ADD = 2;
+  private static final int ADC = 3;
+  private static final int SUB = 4;
+  private static final int SUBI = 5;
+  private static final int SBC = 6;
+  private static final int SBCI = 7;
+  private static final int CP = 8;
+  private static final int CPC = 9;
+  private static final int CPI = 10;
+  private static final int AND = 11;
+  private static final int ANDI = 12;
+  private static final int OR = 13;
+  private static final int ORI = 14;
+  private static final int EOR = 15;
+  private static final int COM = 16;
+  private static final int NEG = 17;
+  private static final int INC = 18;
+  private static final int DEC = 19;
+  private static final int LSR = 20;
+  private static final int ROR = 21;
+  private static final int ASR = 22;
+  private static final int SWAP = 23;
+  private static final int ADIW = 24;
+  private static final int SBIW = 25;
+  private static final int MOV = 26;
+  private static final int MOVW = 27;
+  private static final int LDI = 28;
+  private static final int BST = 29;
+  private static final int BLD = 30;
+  private static final int BSET = 31;
+  private static final int BCLR = 32;
+  private static final int BRBS = 33;
+  private static final int BRBC = 34;
+  private static final int RJMP = 35;
+  private static final int JMP = 36;
+  private static final int IJMP = 37;
+  private static final int RCALL = 38;
+  private static final int CALL = 39;
+  private static final int ICALL = 40;
+  private static final int RET = 41;
+  private static final int CPSE = 42;
+  private static final int SBRC = 43;
+  private static final int SBRS = 44;
+  private static final int SBIC = 45;
+  private static final int SBIS = 46;
+  private static final int SBI = 47;
+  private static final int CBI = 48;
+  private static final int IN = 49;
+  private static final int OUT = 50;
+  private static final int PUSH = 51;
+  private static final int POP = 52;
+  private static final int LDS = 53;
+  private static final int STS = 54;
+  private static final int LD = 55;
+  private static final int LD_INC = 56;
+  private static final int LD_DEC = 57;
+  private static final int ST = 58;
+  private static final int ST_INC = 59;
+  private static final int ST_DEC = 60;
+  private static final int LPM = 61;
+  private static final int LPM_INC = 62;
+
+  /**
+   * Bits of the status register. The negative, overflow and sign flags are
+   * instead shifted into place (as bits 2, 3 and 4).
+   */
+  private static final int C = 0x01;
+  private static final int Z = 0x02;
+  private static final int H = 0x20;
+  private static final int T = 0x40;
+  private static final int I = 0x80;
+
+  /**
+   * Number of registers at the start of data memory.
+   */
+  private static final int REGISTERS = 32;
+
+  /**
+   * Data memory address of the stack pointer (low byte first).
+   */
+  private static final int SPL = 0x5D;
+
+  /**
+   * Registers holding the pointers X, Y and Z (low byte first).
+   */
+  private static final int X = 26;
+  private static final int Y = 28;
+  private static final int Z_POINTER = 30;
+
+  /**
+   * Handles onto the internal state of the javr classes.
+   */
+  private static final VarHandle PC;
+  private static final VarHandle SREG;
+  private static final VarHandle MEMORIES;
+  private static final VarHandle BYTES;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodHandles.Lookup avr = MethodHandles.privateLookupIn(AVR.class, lookup);
+      PC = avr.findVarHandle(AVR.class, "PC", int.class); //$NON-NLS-1$
+      SREG = avr.findVarHandle(AVR.class, "SREG", int.class); //$NON-NLS-1$
+      MEMORIES = MethodHandles.privateLookupIn(MultiplexedMemory.class, lookup)
+          .findVarHandle(MultiplexedMemory.class, "memories", AVR.Memory[].class); //$NON-NLS-1$
+      BYTES = MethodHandles.privateLookupIn(ByteMemory.class, lookup)
+          .findVarHandle(ByteMemory.class, "data", byte[].class); //$NON-NLS-1$
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * The AVR whose state this executes on.
+   */
+  private final AVR avr;
+
+  /**
+   * The register file, or <code>null</code> if data memory is not laid out as
+   * expected, in which case every instruction falls back to the interpreter.
+   */
+  private final byte @Nullable [] registers;
+
+  /**
+   * The bank of data memory following the registers (i.e. the I/O registers).
+   */
+  private final AVR.Memory io;
+
+  /**
+   * The bank of data memory following the I/O registers (i.e. the SRAM).
+   */
+  private final AVR.Memory sram;
+
+  /**
+   * Data memory address of the start of {@link #sram}.
+   */
+  private final int sramBase;
+
+  /**
+   * Data memory address of the end of {@link #sram}.
+   */
+  private final int sramEnd;
+
+  /**
+   * The kind and register operands of the instruction at each (word) address,
+   * as <code>kind | d &lt;&lt; 8 | r &lt;&lt; 16 | width &lt;&lt; 24</code>.
+   */
+  private int[] ops = new int[0];
+
+  /**
+   * The immediate operand of the instruction at each (word) address.
+   */
+  private int[] args = new int[0];
+
+  /**
+   * The instruction at each (word) address.
+   */
+  private AvrInstruction[] instructions = new AvrInstruction[0];
+
+  /**
+   * The value of {@link #epoch} when each (word) address was last read from
+   * code memory.
+   */
+  private int[] visited = new int[0];
+
+  /**
+   * Incremented whenever every instruction must be read from code memory
+   * again.
+   */
+  private int epoch = 1;
+
+  /**
+   * Whether {@link #run(int)} should stop after the current instruction.
+   */
+  private boolean stopped;
+
+  /**
+   * Number of instructions executed by the last call to {@link #run(int)}.
+   */
+  private int executed;
+
+  /**
+   * Number of times the instruction at each address has been executed,
+   * saturating at 255 (i.e. -1 as a byte).
+   */
+  private final byte[] hits;
+
+  /**
+   * Edges taken out of instructions whose successor is not fixed, laid out as
+   * described by {@link EdgeCoverage}.
+   */
+  private final long[] edges;
+
+  /**
+   * Kind of edges recorded for the instruction at each address (see
+   * {@link EdgeCoverage#kindOf(AvrInstruction)}).
+   */
+  private byte[] edgeKinds = new byte[0];
+
+  /**
+   * Construct an engine for a given AVR. Its firmware must then be loaded with
+   * {@link #load()}.
+   *
+   * @param avr  The AVR.
+   * @param hits  Number of times the instruction at each address (in words) has
+   *              been executed, which is incremented for every instruction
+   *              executed (including those executed by the interpreter).
+   * @param edges Bitmap into which the edges taken out of every instruction
+   *              executed are recorded (see {@link EdgeCoverage}).
+   */
+  public FastEngine(AVR avr, byte[] hits, long[] edges) {
+    this.avr = avr;
+    this.hits = hits;
+    this.edges = edges;
+    AVR.Memory data = avr.getData();
+    AVR.Memory[] memories = data instanceof MultiplexedMemory
+        ? (AVR.Memory[]) MEMORIES.get((MultiplexedMemory) data)
+        : new AVR.Memory[0];
+    if (memories.length == 3 && memories[0] instanceof ByteMemory
+        && memories[0].size() == REGISTERS) {
+      this.registers = (byte[]) BYTES.get((ByteMemory) memories[0]);
+      this.io = memories[1];
+      this.sram = memories[2];
+    } else {
+      this.registers = null;
+      this.io = data;
+      this.sram = data;
+    }
+    this.sramBase = REGISTERS + this.io.size();
+    this.sramEnd = this.sramBase + this.sram.size();
+  }
+
+  /**
+   * Decode the firmware in the code memory of the AVR. This must be called
+   * whenever the firmware is uploaded.
+   */
+  public void load() {
+    AVR.Memory code = this.avr.getCode();
+    // Decode from a copy, since reading the code memory itself is recorded
+    ByteMemory copy = new ByteMemory(code.size());
+    for (int i = 0; i != code.size(); i++) {
+      copy.poke(i, code.peek(i));
+    }
+    AvrDecoder decoder = new AvrDecoder();
+    int words = code.size() / 2;
+    this.ops = new int[words];
+    this.args = new int[words];
+    this.instructions = new AvrInstruction[words];
+    this.visited = new int[words];
+    this.edgeKinds = new byte[words];
+    for (int pc = 0; pc != words; pc++) {
+      AvrInstruction insn = decoder.decode(copy, pc);
+      this.instructions[pc] = insn;
+      this.edgeKinds[pc] = EdgeCoverage.kindOf(insn);
+      this.ops[pc] = compile(insn, pc) | insn.getWidth() << 24;
+    }
+    // A skip must be able to look at the instruction following it
+    for (int pc = 0; pc != words; pc++) {
+      int kind = this.ops[pc] & 0xFF;
+      if (kind >= CPSE && kind <= SBIS && pc + 1 == words) {
+        this.ops[pc] &= ~0xFF;
+      }
+    }
+    invalidate();
+  }
+
+  /**
+   * Get the instruction at a given address, as decoded when loaded.
+   *
+   * @param pc The (word) address.
+   * @return the instruction, or <code>null</code> if the address is outside of
+   *         code memory.
+   */
+  public @Nullable AvrInstruction getInstruction(int pc) {
+    return pc >= 0 && pc < this.instructions.length ? this.instructions[pc] : null;
+  }
+
+  /**
+   * Get the kind of edges recorded for the instruction at a given address.
+   *
+   * @param pc The (word) address.
+   * @return the kind, as given by {@link EdgeCoverage#kindOf(AvrInstruction)},
+   *         or {@link EdgeCoverage#NONE} if the address is outside of code
+   *         memory.
+   */
+  public byte getEdgeKind(int pc) {
+    return pc >= 0 && pc < this.edgeKinds.length ? this.edgeKinds[pc] : EdgeCoverage.NONE;
+  }
+
+  /**
+   * Ensure that every instruction is read from code memory again the next time
+   * it is executed. This must be called whenever the code memory read is
+   * cleared, such as on reset.
+   */
+  public void invalidate() {
+    if (++this.epoch == 0) {
+      Arrays.fill(this.visited, 0);
+      this.epoch = 1;
+    }
+  }
+
+  /**
+   * Execute a single instruction.
+   *
+   * @throws AVR.HaltedException If the firmware halted.
+   */
+  public void clock() throws AVR.HaltedException {
+    run(1);
+  }
+
+  /**
+   * Execute instructions until a given number have been executed, or
+   * {@link #stop()} is called by one of them. The program counter and status
+   * register are kept in local variables whilst running, and only written back
+   * to the AVR when it could look at them: the program counter before each
+   * instruction (since ports may look at it), and both before falling back to
+   * the interpreter and once finished.
+   *
+   * @param limit The maximum number of instructions to execute.
+   * @throws AVR.HaltedException If the firmware halted.
+   */
+  public void run(int limit) throws AVR.HaltedException {
+    AVR avr = this.avr;
+    byte @Nullable [] reg = this.registers;
+    int[] ops = this.ops;
+    int[] args = this.args;
+    byte[] hits = this.hits;
+    byte[] kinds = this.edgeKinds;
+    int pc = (int) PC.get(avr);
+    int sreg = (int) SREG.get(avr);
+    int count = 0;
+    this.stopped = false;
+    while (count != limit && !this.stopped) {
+      count++;
+      if (pc >= 0 && pc < hits.length && hits[pc] != -1) {
+        hits[pc]++;
+      }
+      if (reg == null || (sreg & I) != 0 || pc < 0 || pc >= ops.length) {
+        this.executed = count;
+        PC.set(avr, pc);
+        SREG.set(avr, sreg);
+        avr.clock();
+        int from = pc;
+        pc = (int) PC.get(avr);
+        sreg = (int) SREG.get(avr);
+        byte e = getEdgeKind(from);
+        if (e != EdgeCoverage.NONE) {
+          EdgeCoverage.record(this.edges, e, from, pc);
+        }
+        continue;
+      }
+      if (this.visited[pc] != this.epoch) {
+        visit(pc);
+      }
+      int op = ops[pc];
+      int d = op >>> 8 & 0xFF;
+      int r = op >>> 16 & 0xFF;
+      int k = args[pc];
+      int next = pc + (op >>> 24);
+      // Advanced first as the interpreter does, since ports may look at it
+      PC.set(avr, next);
+      switch (op & 0xFF) {
+      case NOP:
+        break;
+      case ADD: {
+        int rd = reg[d];
+        int rr = reg[r];
+        int res = (byte) (rd + rr);
+        reg[d] = (byte) res;
+        sreg = add(sreg, rd, rr, res);
+        break;
+      }
+      case ADC: {
+        int rd = reg[d];
+        int rr = reg[r];
+        int res = (byte) (rd + rr + (sreg & C));
+        reg[d] = (byte) res;
+        sreg = add(sreg, rd, rr, res);
+        break;
+      }
+      case SUB: {
+        int rd = reg[d];
+        int rr = reg[r];
+        int res = (byte) (rd - rr);
+        reg[d] = (byte) res;
+        sreg = subtract(sreg, rd, rr, res, true);
+        break;
+      }
+      case SUBI: {
+        int rd = reg[d];
+        int res = (byte) (rd - k);
+        reg[d] = (byte) res;
+        sreg = subtract(sreg, rd, k, res, false);
+        break;
+      }
+      case SBC: {
+        int rd = reg[d];
+        int rr = reg[r];
+        int res = (byte) (rd - rr - (sreg & C));
+        reg[d] = (byte) res;
+        sreg = subtract(sreg, rd, rr, res, true);
+        break;
+      }
+      case SBCI: {
+        int rd = reg[d];
+        int res = (byte) (rd - k - (sreg & C));
+        reg[d] = (byte) res;
+        sreg = subtract(sreg, rd, k, res, true);
+        break;
+      }
+      case CP: {
+        int rd = reg[d];
+        int rr = reg[r];
+        sreg = subtract(sreg, rd, rr, (byte) (rd - rr), false);
+        break;
+      }
+      case CPC: {
+        int rd = reg[d];
+        int rr = reg[r];
+        sreg = subtract(sreg, rd, rr, (byte) (rd - rr - (sreg & C)), true);
+        break;
+      }
+      case CPI: {
+        int rd = reg[d];
+        sreg = subtract(sreg, rd, k, (byte) (rd - k), false);
+        break;
+      }
+      case AND: {
+        int res = reg[d] & reg[r];
+        reg[d] = (byte) res;
+        sreg = logic(sreg, res);
+        break;
+      }
+      case ANDI: {
+        int res = reg[d] & k;
+        reg[d] = (byte) res;
+        sreg = logic(sreg, res);
+        break;
+      }
+      case OR: {
+        int res = reg[d] | reg[r];
+        reg[d] = (byte) res;
+        sreg = logic(sreg, res);
+        break;
+      }
+      case ORI: {
+        int res = reg[d] | k;
+        reg[d] = (byte) res;
+        sreg = logic(sreg, res);
+        break;
+      }
+      case EOR: {
+        int res = reg[d] ^ reg[r];
+        reg[d] = (byte) res;
+        sreg = logic(sreg, res);
+        break;
+      }
+      case COM: {
+        int res = (byte) (0xFF - reg[d]);
+        reg[d] = (byte) res;
+        sreg = logic(sreg, res) & ~C | C;
+        break;
+      }
+      case NEG: {
+        int rd = reg[d];
+        int res = (byte) -rd;
+        reg[d] = (byte) res;
+        int n = res >>> 7 & 1;
+        int v = res == -128 ? 1 : 0;
+        sreg = sreg & (T | I) | ((res & 0x08) != 0 || (rd & 0x08) == 0 ? H : 0)
+            | (n ^ v) << 4 | v << 3 | n << 2 | (res == 0 ? Z : 0) | (res != 0 ? C : 0);
+        break;
+      }
+      case INC: {
+        int res = (byte) (reg[d] + 1);
+        reg[d] = (byte) res;
+        sreg = unary(sreg, res, res == -128);
+        break;
+      }
+      case DEC: {
+        int rd = reg[d];
+        int res = (byte) (rd - 1);
+        reg[d] = (byte) res;
+        sreg = unary(sreg, res, rd == -128);
+        break;
+      }
+      case LSR: {
+        // The interpreter shifts the sign-extended byte
+        int rd = reg[d];
+        int res = (byte) (rd >>> 1);
+        reg[d] = (byte) res;
+        sreg = shift(sreg, res, rd & 1);
+        break;
+      }
+      case ROR: {
+        int rd = reg[d];
+        int res = (byte) ((sreg & C) << 7 | rd >>> 1);
+        reg[d] = (byte) res;
+        sreg = shift(sreg, res, rd & 1);
+        break;
+      }
+      case ASR: {
+        // The interpreter carries out if either bit 0 or bit 7 is set
+        int rd = reg[d];
+        int res = (byte) (rd >> 1);
+        reg[d] = (byte) res;
+        sreg = shift(sreg, res, (rd & 0x81) != 0 ? 1 : 0);
+        break;
+      }
+      case SWAP: {
+        int rd = reg[d];
+        reg[d] = (byte) ((rd & 0x0F) << 4 | (rd & 0xF0) >> 4);
+        break;
+      }
+      case ADIW: {
+        int w = (reg[d + 1] & 0xFF) << 8 | (reg[d] & 0xFF);
+        int res = w + k;
+        reg[d] = (byte) res;
+        reg[d + 1] = (byte) (res >> 8);
+        int n = res >>> 15 & 1;
+        int v = n & ~w >>> 15 & 1;
+        sreg = sreg & (H | T | I) | (n ^ v) << 4 | v << 3 | n << 2 | (res == 0 ? Z : 0)
+            | (~res & w) >>> 15 & 1;
+        break;
+      }
+      case SBIW: {
+        // The interpreter sets the overflow flag as it does the carry flag
+        int w = (reg[d + 1] & 0xFF) << 8 | (reg[d] & 0xFF);
+        int res = w - k;
+        reg[d] = (byte) res;
+        reg[d + 1] = (byte) (res >> 8);
+        int n = res >>> 15 & 1;
+        int v = n & ~w >>> 15 & 1;
+        sreg = sreg & (H | T | I) | (n ^ v) << 4 | v << 3 | n << 2 | (res == 0 ? Z : 0) | v;
+        break;
+      }
+      case MOV:
+        reg[d] = reg[r];
+        break;
+      case MOVW:
+        reg[d] = reg[r];
+        reg[d + 1] = reg[r + 1];
+        break;
+      case LDI:
+        reg[d] = (byte) k;
+        break;
+      case BST:
+        sreg = (reg[d] & 1 << r) != 0 ? sreg | T : sreg & ~T;
+        break;
+      case BLD:
+        reg[d] = (byte) (reg[d] & ~(1 << r) | ((sreg & T) != 0 ? 1 << r : 0));
+        break;
+      case BSET:
+        sreg |= 1 << r;
+        break;
+      case BCLR:
+        sreg &= ~(1 << r);
+        break;
+      case BRBS:
+        if ((sreg & 1 << r) != 0) {
+          next += k;
+        }
+        break;
+      case BRBC:
+        if ((sreg & 1 << r) == 0) {
+          next += k;
+        }
+        break;
+      case RJMP:
+        next += k;
+        break;
+      case JMP:
+        next = k;
+        break;
+      case IJMP:
+        next = pointer(reg, Z_POINTER);
+        break;
+      case RCALL:
+        push(next);
+        next += k;
+        break;
+      case CALL:
+        push(next);
+        next = k;
+        break;
+      case ICALL:
+        push(next);
+        next = pointer(reg, Z_POINTER);
+        break;
+      case RET:
+        next = pop();
+        break;
+      case CPSE:
+        if (reg[d] == reg[r]) {
+          next = skip(next);
+        }
+        break;
+      case SBRC:
+        if ((reg[d] & 1 << r) == 0) {
+          next = skip(next);
+        }
+        break;
+      case SBRS:
+        if ((reg[d] & 1 << r) != 0) {
+          next = skip(next);
+        }
+        break;
+      case SBIC:
+        if ((this.io.read(k) & 1 << r) == 0) {
+          next = skip(next);
+        }
+        break;
+      case SBIS:
+        if ((this.io.read(k) & 1 << r) != 0) {
+          next = skip(next);
+        }
+        break;
+      case SBI:
+        this.io.write(k, (byte) (this.io.read(k) | 1 << r));
+        break;
+      case CBI:
+        this.io.write(k, (byte) (this.io.read(k) & ~(1 << r)));
+        break;
+      case IN:
+        reg[d] = this.io.read(k);
+        break;
+      case OUT:
+        this.io.write(k, reg[d]);
+        break;
+      case PUSH: {
+        int sp = stackPointer();
+        write(sp, reg[d]);
+        setStackPointer(sp - 1);
+        break;
+      }
+      case POP: {
+        int sp = stackPointer() + 1;
+        setStackPointer(sp);
+        reg[d] = read(sp);
+        break;
+      }
+      case LDS:
+        reg[d] = read(k);
+        break;
+      case STS:
+        write(k, reg[d]);
+        break;
+      case LD:
+        reg[d] = read(pointer(reg, r) + k);
+        break;
+      case LD_INC: {
+        int p = pointer(reg, r);
+        reg[d] = read(p);
+        setPointer(reg, r, p + 1);
+        break;
+      }
+      case LD_DEC: {
+        int p = pointer(reg, r) - 1;
+        setPointer(reg, r, p);
+        reg[d] = read(p);
+        break;
+      }
+      case ST:
+        write(pointer(reg, r) + k, reg[d]);
+        break;
+      case ST_INC: {
+        int p = pointer(reg, r);
+        write(p, reg[d]);
+        setPointer(reg, r, p + 1);
+        break;
+      }
+      case ST_DEC: {
+        int p = pointer(reg, r) - 1;
+        setPointer(reg, r, p);
+        write(p, reg[d]);
+        break;
+      }
+      case LPM:
+        reg[d] = avr.getCode().read(pointer(reg, Z_POINTER));
+        break;
+      case LPM_INC: {
+        int p = pointer(reg, Z_POINTER);
+        reg[d] = avr.getCode().read(p);
+        setPointer(reg, Z_POINTER, p + 1);
+        break;
+      }
+      default:
+        PC.set(avr, pc);
+        this.executed = count;
+        SREG.set(avr, sreg);
+        avr.clock();
+        next = (int) PC.get(avr);
+        sreg = (int) SREG.get(avr);
+        break;
+      }
+      byte e = kinds[pc];
+      if (e != EdgeCoverage.NONE) {
+        EdgeCoverage.record(this.edges, e, pc, next);
+      }
+      pc = next;
+    }
+    this.executed = count;
+    PC.set(avr, pc);
+    SREG.set(avr, sreg);
+  }
+
+  /**
+   * Stop {@link #run(int)} once the instruction being executed is complete.
+   */
+  public void stop() {
+    this.stopped = true;
+  }
+
+  /**
+   * Get the number of instructions executed by the last call to
+   * {@link #run(int)}, including one which halted.
+   *
+   * @return the number of instructions.
+   */
+  public int getExecuted() {
+    return this.executed;
+  }
+
+  /**
+   * Read the bytes of an instruction from code memory, as the interpreter does
+   * when decoding it.
+   *
+   * @param pc The (word) address of the instruction.
+   */
+  private void visit(int pc) {
+    this.visited[pc] = this.epoch;
+    AVR.Memory code = this.avr.getCode();
+    int bytes = (this.ops[pc] >>> 24) * 2;
+    for (int i = 0; i != bytes; i++) {
+      code.read(pc * 2 + i);
+    }
+  }
+
+  /**
+   * Work out where execution continues when skipping an instruction.
+   *
+   * @param pc The (word) address of the instruction skipped.
+   * @return the (word) address following it.
+   */
+  private int skip(int pc) {
+    if (this.visited[pc] != this.epoch) {
+      visit(pc);
+    }
+    return pc + (this.ops[pc] >>> 24);
+  }
+
+  /**
+   * Read a byte of data memory.
+   *
+   * @param address The address.
+   * @return the byte.
+   */
+  private byte read(int address) {
+    byte[] reg = this.registers;
+    if (address < REGISTERS && reg != null) {
+      return reg[address];
+    } else if (address < this.sramBase) {
+      return this.io.read(address - REGISTERS);
+    } else if (address < this.sramEnd) {
+      return this.sram.read(address - this.sramBase);
+    }
+    return this.avr.getData().read(address);
+  }
+
+  /**
+   * Write a byte of data memory.
+   *
+   * @param address The address.
+   * @param value   The byte.
+   */
+  private void write(int address, byte value) {
+    byte[] reg = this.registers;
+    if (address < REGISTERS && reg != null) {
+      reg[address] = value;
+    } else if (address < this.sramBase) {
+      this.io.write(address - REGISTERS, value);
+    } else if (address < this.sramEnd) {
+      this.sram.write(address - this.sramBase, value);
+    } else {
+      this.avr.getData().write(address, value);
+    }
+  }
+
+  /**
+   * Read a pointer held in a pair of registers.
+   *
+   * @param reg The register file.
+   * @param r   The register holding the low byte.
+   * @return the pointer.
+   */
+  private static int pointer(byte[] reg, int r) {
+    return (reg[r + 1] & 0xFF) << 8 | (reg[r] & 0xFF);
+  }
+
+  /**
+   * Write a pointer into a pair of registers.
+   *
+   * @param reg   The register file.
+   * @param r     The register holding the low byte.
+   * @param value The pointer.
+   */
+  private static void setPointer(byte[] reg, int r, int value) {
+    reg[r] = (byte) value;
+    reg[r + 1] = (byte) (value >> 8);
+  }
+
+  /**
+   * Read the stack pointer, high byte first as the interpreter does.
+   *
+   * @return the stack pointer.
+   */
+  private int stackPointer() {
+    int high = read(SPL + 1) & 0xFF;
+    return high << 8 | (read(SPL) & 0xFF);
+  }
+
+  /**
+   * Write the stack pointer, low byte first as the interpreter does.
+   *
+   * @param sp The stack pointer.
+   */
+  private void setStackPointer(int sp) {
+    write(SPL, (byte) sp);
+    write(SPL + 1, (byte) (sp >> 8));
+  }
+
+  /**
+   * Push a return address onto the stack.
+   *
+   * @param address The (word) address.
+   */
+  private void push(int address) {
+    int sp = stackPointer() - 1;
+    write(sp, (byte) address);
+    write(sp + 1, (byte) (address >> 8));
+    setStackPointer(sp - 1);
+  }
+
+  /**
+   * Pop a return address from the stack.
+   *
+   * @return the (word) address.
+   */
+  private int pop() {
+    int sp = stackPointer() + 2;
+    setStackPointer(sp);
+    int high = read(sp) & 0xFF;
+    return high << 8 | (read(sp - 1) & 0xFF);
+  }
+
+  /**
+   * Compute the status register after an addition.
+   *
+   * @param sreg The status register before.
+   * @param rd   The first operand.
+   * @param rr   The second operand.
+   * @param res  The result.
+   * @return the status register after.
+   */
+  private static int add(int sreg, int rd, int rr, int res) {
+    int carries = rd & rr | rr & ~res | ~res & rd;
+    int n = res >>> 7 & 1;
+    int v = (rd & rr & ~res | ~rd & ~rr & res) >>> 7 & 1;
+    return sreg & (T | I) | (carries & 0x08) << 2 | (n ^ v) << 4 | v << 3 | n << 2
+        | ((res & 0xFF) == 0 ? Z : 0) | carries >>> 7 & 1;
+  }
+
+  /**
+   * Compute the status register after a subtraction.
+   *
+   * @param sreg  The status register before.
+   * @param rd    The first operand.
+   * @param rr    The second operand.
+   * @param res   The result.
+   * @param chain Whether the zero flag is only kept set, as when the
+   *              subtraction continues a previous one.
+   * @return the status register after.
+   */
+  private static int subtract(int sreg, int rd, int rr, int res, boolean chain) {
+    int borrows = ~rd & rr | rr & res | res & ~rd;
+    int n = res >>> 7 & 1;
+    int v = (rd & ~rr & ~res | ~rd & rr & res) >>> 7 & 1;
+    boolean zero = (res & 0xFF) == 0 && (!chain || (sreg & Z) != 0);
+    return sreg & (T | I) | (borrows & 0x08) << 2 | (n ^ v) << 4 | v << 3 | n << 2
+        | (zero ? Z : 0) | borrows >>> 7 & 1;
+  }
+
+  /**
+   * Compute the status register after a logical operation.
+   *
+   * @param sreg The status register before.
+   * @param res  The result.
+   * @return the status register after.
+   */
+  private static int logic(int sreg, int res) {
+    int n = res >>> 7 & 1;
+    return sreg & (C | H | T | I) | n << 4 | n << 2 | ((res & 0xFF) == 0 ? Z : 0);
+  }
+
+  /**
+   * Compute the status register after an increment or decrement.
+   *
+   * @param sreg     The status register before.
+   * @param res      The result.
+   * @param overflow Whether the result overflowed.
+   * @return the status register after.
+   */
+  private static int unary(int sreg, int res, boolean overflow) {
+    int n = res >>> 7 & 1;
+    int v = overflow ? 1 : 0;
+    return sreg & (C | H | T | I) | (n ^ v) << 4 | v << 3 | n << 2 | ((res & 0xFF) == 0 ? Z : 0);
+  }
+
+  /**
+   * Compute the status register after a shift right.
+   *
+   * @param sreg  The status register before.
+   * @param res   The result.
+   * @param carry The bit shifted out.
+   * @return the status register after.
+   */
+  private static int shift(int sreg, int res, int carry) {
+    int n = res >>> 7 & 1;
+    int v = n ^ carry;
+    return sreg & (H | T | I) | (n ^ v) << 4 | v << 3 | n << 2 | ((res & 0xFF) == 0 ? Z : 0)
+        | carry;
+  }
+
+  /**
+   * Compile an instruction into the kind and register operands of its record,
+   * storing its immediate operand.
+   *
+   * @param insn The instruction.
+   * @param pc   Its (word) address.
+   * @return the kind and register operands.
+   */
+  private int compile(AvrInstruction insn, int pc) {
+    switch (insn.getOpcode()) {
+    case NOP:
+      return NOP;
+    case ADD:
+      return registers(ADD, insn);
+    case ADC:
+      return registers(ADC, insn);
+    case SUB:
+      return registers(SUB, insn);
+    case SBC:
+      return registers(SBC, insn);
+    case CP:
+      return registers(CP, insn);
+    case CPC:
+      return registers(CPC, insn);
+    case AND:
+      return registers(AND, insn);
+    case OR:
+      return registers(OR, insn);
+    case EOR:
+      return registers(EOR, insn);
+    case MOV:
+      return registers(MOV, insn);
+    case MOVW:
+      return registers(MOVW, insn);
+    case CPSE:
+      return registers(CPSE, insn);
+    case SUBI:
+      return immediate(SUBI, insn, pc);
+    case SBCI:
+      return immediate(SBCI, insn, pc);
+    case CPI:
+      return immediate(CPI, insn, pc);
+    case ANDI:
+      return immediate(ANDI, insn, pc);
+    case ORI:
+    case SBR:
+      return immediate(ORI, insn, pc);
+    case LDI:
+      return immediate(LDI, insn, pc);
+    case ADIW:
+      return immediate(ADIW, insn, pc);
+    case SBIW:
+      return immediate(SBIW, insn, pc);
+    case SER:
+      this.args[pc] = -1;
+      return LDI | register(insn) << 8;
+    case COM:
+      return COM | register(insn) << 8;
+    case NEG:
+      return NEG | register(insn) << 8;
+    case INC:
+      return INC | register(insn) << 8;
+    case DEC:
+      return DEC | register(insn) << 8;
+    case LSR:
+      return LSR | register(insn) << 8;
+    case ROR:
+      return ROR | register(insn) << 8;
+    case ASR:
+      return ASR | register(insn) << 8;
+    case SWAP:
+      return SWAP | register(insn) << 8;
+    case PUSH:
+      return PUSH | register(insn) << 8;
+    case POP:
+      return POP | register(insn) << 8;
+    case LPM_Z:
+      return LPM | register(insn) << 8;
+    case LPM_Z_INC:
+      return LPM_INC | register(insn) << 8;
+    case BST:
+      return bit(BST, insn);
+    case BLD:
+      return bit(BLD, insn);
+    case SBRC:
+      return bit(SBRC, insn);
+    case SBRS:
+      return bit(SBRS, insn);
+    case SBIC:
+      return io(SBIC, insn, pc);
+    case SBIS:
+      return io(SBIS, insn, pc);
+    case SBI:
+      return io(SBI, insn, pc);
+    case CBI:
+      return io(CBI, insn, pc);
+    case IN: {
+      AvrInstruction.RegisterIo ri = (AvrInstruction.RegisterIo) insn;
+      this.args[pc] = ri.A;
+      return IN | ri.Rd << 8;
+    }
+    case OUT: {
+      AvrInstruction.IoRegister ir = (AvrInstruction.IoRegister) insn;
+      this.args[pc] = ir.A;
+      return OUT | ir.Rr << 8;
+    }
+    case LDS:
+      return absolute(LDS, insn, pc);
+    case STS_DATA_WIDE:
+      return absolute(STS, insn, pc);
+    case LD_X:
+      return pointer(LD, insn, X);
+    case LD_Y:
+      return pointer(LD, insn, Y);
+    case LD_Z:
+      return pointer(LD, insn, Z_POINTER);
+    case LD_X_INC:
+      return pointer(LD_INC, insn, X);
+    case LD_Y_INC:
+      return pointer(LD_INC, insn, Y);
+    case LD_Z_INC:
+      return pointer(LD_INC, insn, Z_POINTER);
+    case LD_X_DEC:
+      return pointer(LD_DEC, insn, X);
+    case LD_Y_DEC:
+      return pointer(LD_DEC, insn, Y);
+    case LD_Z_DEC:
+      return pointer(LD_DEC, insn, Z_POINTER);
+    case LDD_Y_Q:
+      return displacement(LD, insn, Y, pc);
+    case LDD_Z_Q:
+      return displacement(LD, insn, Z_POINTER, pc);
+    case ST_X:
+      return pointer(ST, insn, X);
+    case ST_Y:
+      return pointer(ST, insn, Y);
+    case ST_Z:
+      return pointer(ST, insn, Z_POINTER);
+    case ST_X_INC:
+      return pointer(ST_INC, insn, X);
+    case ST_Y_INC:
+      return pointer(ST_INC, insn, Y);
+    case ST_Z_INC:
+      return pointer(ST_INC, insn, Z_POINTER);
+    case ST_X_DEC:
+      return pointer(ST_DEC, insn, X);
+    case ST_Y_DEC:
+      return pointer(ST_DEC, insn, Y);
+    case ST_Z_DEC:
+      return pointer(ST_DEC, insn, Z_POINTER);
+    case STD_Y_Q:
+      return displacement(ST, insn, Y, pc);
+    case STD_Z_Q:
+      return displacement(ST, insn, Z_POINTER, pc);
+    case RJMP: {
+      int k = ((AvrInstruction.RelativeAddress) insn).k;
+      this.args[pc] = k;
+      // A jump to itself halts, which is left to the interpreter
+      return k == -1 ? FALLBACK : RJMP;
+    }
+    case RCALL:
+      this.args[pc] = ((AvrInstruction.RelativeAddress) insn).k;
+      return RCALL;
+    case JMP:
+      this.args[pc] = ((AvrInstruction.AbsoluteAddress) insn).k;
+      return JMP;
+    case CALL:
+      this.args[pc] = ((AvrInstruction.AbsoluteAddress) insn).k;
+      return CALL;
+    case IJMP:
+      return IJMP;
+    case ICALL:
+      return ICALL;
+    case RET:
+      return RET;
+    case BRBS: {
+      AvrInstruction.FlagRelativeAddress f = (AvrInstruction.FlagRelativeAddress) insn;
+      return branch(BRBS, f.s, f.k, pc);
+    }
+    case BRBC: {
+      AvrInstruction.FlagRelativeAddress f = (AvrInstruction.FlagRelativeAddress) insn;
+      return branch(BRBC, f.s, f.k, pc);
+    }
+    case BRLO:
+      return branch(BRBS, 0, insn, pc);
+    case BRSH:
+      return branch(BRBC, 0, insn, pc);
+    case BREQ:
+      return branch(BRBS, 1, insn, pc);
+    case BRNE:
+      return branch(BRBC, 1, insn, pc);
+    case BRMI:
+      return branch(BRBS, 2, insn, pc);
+    case BRPL:
+      return branch(BRBC, 2, insn, pc);
+    case BRVS:
+      return branch(BRBS, 3, insn, pc);
+    case BRVC:
+      return branch(BRBC, 3, insn, pc);
+    case BRLT:
+      return branch(BRBS, 4, insn, pc);
+    case BRGE:
+      return branch(BRBC, 4, insn, pc);
+    case BRHS:
+      return branch(BRBS, 5, insn, pc);
+    case BRHC:
+      return branch(BRBC, 5, insn, pc);
+    case BRTS:
+      return branch(BRBS, 6, insn, pc);
+    case BRTC:
+      return branch(BRBC, 6, insn, pc);
+    case BRIE:
+      return branch(BRBS, 7, insn, pc);
+    case BRID:
+      return branch(BRBC, 7, insn, pc);
+    case BSET:
+      return BSET | ((AvrInstruction.Flag) insn).s << 16;
+    case BCLR:
+      return BCLR | ((AvrInstruction.Flag) insn).s << 16;
+    case SEC:
+      return BSET | 0 << 16;
+    case CLC:
+      return BCLR | 0 << 16;
+    case SEZ:
+      return BSET | 1 << 16;
+    case CLZ:
+      return BCLR | 1 << 16;
+    case SEN:
+      return BSET | 2 << 16;
+    case CLN:
+      return BCLR | 2 << 16;
+    case SEV:
+      return BSET | 3 << 16;
+    case CLV:
+      return BCLR | 3 << 16;
+    case SES:
+      return BSET | 4 << 16;
+    case CLS:
+      return BCLR | 4 << 16;
+    case SEH:
+      return BSET | 5 << 16;
+    case CLH:
+      return BCLR | 5 << 16;
+    case SET:
+      return BSET | 6 << 16;
+    case CLT:
+      return BCLR | 6 << 16;
+    case CLI:
+      return BCLR | 7 << 16;
+    default:
+      return FALLBACK;
+    }
+  }
+
+  /**
+   * Compile an instruction with two register operands.
+   *
+   * @param kind The kind of record.
+   * @param insn The instruction.
+   * @return the kind and register operands.
+   */
+  private static int registers(int kind, AvrInstruction insn) {
+    AvrInstruction.RegisterRegister rr = (AvrInstruction.RegisterRegister) insn;
+    return kind | rr.Rd << 8 | rr.Rr << 16;
+  }
+
+  /**
+   * Compile an instruction with a register and an immediate operand, which is
+   * taken as a byte (as the interpreter does).
+   *
+   * @param kind The kind of record.
+   * @param insn The instruction.
+   * @param pc   Its (word) address.
+   * @return the kind and register operand.
+   */
+  private int immediate(int kind, AvrInstruction insn, int pc) {
+    AvrInstruction.RegisterImmediate ri = (AvrInstruction.RegisterImmediate) insn;
+    this.args[pc] = (byte) ri.K;
+    return kind | ri.Rd << 8;
+  }
+
+  /**
+   * Get the register operand of an instruction with only one.
+   *
+   * @param insn The instruction.
+   * @return the register.
+   */
+  private static int register(AvrInstruction insn) {
+    return ((AvrInstruction.Register) insn).Rd;
+  }
+
+  /**
+   * Compile an instruction operating on a bit of a register.
+   *
+   * @param kind The kind of record.
+   * @param insn The instruction.
+   * @return the kind, register and bit.
+   */
+  private static int bit(int kind, AvrInstruction insn) {
+    AvrInstruction.RegisterBit rb = (AvrInstruction.RegisterBit) insn;
+    return kind | rb.Rd << 8 | rb.b << 16;
+  }
+
+  /**
+   * Compile an instruction operating on a bit of an I/O register.
+   *
+   * @param kind The kind of record.
+   * @param insn The instruction.
+   * @param pc   Its (word) address.
+   * @return the kind and bit.
+   */
+  private int io(int kind, AvrInstruction insn, int pc) {
+    AvrInstruction.IoBit io = (AvrInstruction.IoBit) insn;
+    this.args[pc] = io.A;
+    return kind | io.b << 16;
+  }
+
+  /**
+   * Compile an instruction accessing a fixed address of data memory.
+   *
+   * @param kind The kind of record.
+   * @param insn The instruction.
+   * @param pc   Its (word) address.
+   * @return the kind and register operand.
+   */
+  private int absolute(int kind, AvrInstruction insn, int pc) {
+    AvrInstruction.RegisterAbsoluteAddress ra = (AvrInstruction.RegisterAbsoluteAddress) insn;
+    this.args[pc] = ra.k;
+    return kind | ra.Rd << 8;
+  }
+
+  /**
+   * Compile a load or store through a pointer.
+   *
+   * @param kind    The kind of record.
+   * @param insn    The instruction.
+   * @param pointer The register holding the low byte of the pointer.
+   * @return the kind, register and pointer.
+   */
+  private static int pointer(int kind, AvrInstruction insn, int pointer) {
+    return kind | register(insn) << 8 | pointer << 16;
+  }
+
+  /**
+   * Compile a load or store through a pointer with a displacement.
+   *
+   * @param kind    The kind of record.
+   * @param insn    The instruction.
+   * @param pointer The register holding the low byte of the pointer.
+   * @param pc      Its (word) address.
+   * @return the kind, register and pointer.
+   */
+  private int displacement(int kind, AvrInstruction insn, int pointer, int pc) {
+    AvrInstruction.RegisterDisplacement rd = (AvrInstruction.RegisterDisplacement) insn;
+    this.args[pc] = rd.q;
+    return kind | rd.Rd << 8 | pointer << 16;
+  }
+
+  /**
+   * Compile a conditional branch on a flag.
+   *
+   * @param kind The kind of record.
+   * @param flag The bit of the status register tested.
+   * @param k    The offset of the branch.
+   * @param pc   Its (word) address.
+   * @return the kind and flag.
+   */
+  private int branch(int kind, int flag, int k, int pc) {
+    this.args[pc] = k;
+    return kind | flag << 16;
+  }
+
+  /**
+   * Compile a conditional branch on a flag, given by a specific instruction.
+   *
+   * @param kind The kind of record.
+   * @param flag The bit of the status register tested.
+   * @param insn The instruction.
+   * @param pc   Its (word) address.
+   * @return the kind and flag.
+   */
+  private int branch(int kind, int flag, AvrInstruction insn, int pc) {
+    return branch(kind, flag, ((AvrInstruction.RelativeAddress) insn).k, pc);
+  }
+}
@@ -0,0 +1,675 @@
+package tinyboycov.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javr.core.AVR;
+import javr.io.HexFile;
+import javrsim.peripherals.JPeripheral;
+import org.eclipse.jdt.annotation.Nullable;
+import tinyboy.util.AutomatedTester;
+import tinyboy.util.CoverageAnalysis;
+
+/**
+ * Responsible for fuzz testing a firmware image, by repeatedly executing the
+ * inputs produced by an input generator and feeding the coverage and final state
+ * of each back to it. This performs the same role as the
+ * <code>AutomatedTester</code>, except that any input which is
+ * {@link Resumable} is resumed from a snapshot of the state reached by a prefix
+ * of it, rather than being executed from reset. Thus, extending an input by one
+ * step only requires the new step to be simulated. Likewise, any input which is
+ * {@link Polled} is told how the firmware last polled the buttons, so it can be
+ * extended with the buttons the firmware was waiting on. Any input which is
+ * {@link HitCounted} or {@link EdgeCovered} is told how many new hit count
+ * buckets it reached, or new edges it took.
+ *
+ * <p>
+ * Inputs are executed on a work-stealing pool with one emulator per worker
+ * thread. Rather than running in lock-step batches, a worker which finishes its
+ * inputs records them with the generator and immediately forks any new inputs
+ * this made available, which idle workers then steal. Access to the generator is
+ * serialised by locking on it, whilst coverage is merged into a shared
+ * {@link CoverageMap} without locking. The calling thread only wakes up to
+ * check the target when new coverage is found, when the generator runs dry or
+ * to report progress. Workers signal new coverage as soon as each input finds
+ * it, and once the target is reached they skip whatever remains of their
+ * batches.
+ * </p>
+ *
+ * @param <T> type of input
+ *
+ * @author niraj
+ *
+ */
+public class FuzzDriver<T extends Iterator<Boolean>> {
+  /**
+   * Longest time (in ms) between progress reports.
+   */
+  private static final long PROGRESS_INTERVAL = 1000;
+
+  /**
+   * Length (in ms) of each window over which throughput is measured when
+   * autotuning.
+   */
+  private static final long TUNING_WINDOW = 250;
+
+  /**
+   * Emulators not currently owned by a worker thread.
+   */
+  private final ConcurrentLinkedQueue<FuzzEmulator> tinyBoys = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Every emulator created, so they can be destroyed.
+   */
+  private final ConcurrentLinkedQueue<FuzzEmulator> allTinyBoys = new ConcurrentLinkedQueue<>();
+
+  /**
+   * The firmware image being tested.
+   */
+  private final HexFile firmware;
+
+  /**
+   * The generator of inputs to be executed. All accesses to the generator are
+   * made whilst holding its lock.
+   */
+  private final AutomatedTester.InputGenerator<T> generator;
+
+  /**
+   * Flag to show a graphical view of each emulator.
+   */
+  private final boolean gui;
+
+  /**
+   * Number of worker threads in the pool.
+   */
+  private final int nthreads;
+
+  /**
+   * Number of worker threads to split inputs between, which is at most the
+   * number in the pool.
+   */
+  private volatile int threads;
+
+  /**
+   * Maximum number of inputs given to a worker in one go.
+   */
+  private volatile int batchSize;
+
+  /**
+   * Tunes the number of threads and batch size as the driver runs, or
+   * <code>null</code> if these are fixed.
+   */
+  private final @Nullable Autotuner tuner;
+
+  /**
+   * The pool of worker threads.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Union of the coverage of every input executed so far.
+   */
+  private final CoverageMap coverageMap;
+
+  /**
+   * Hit count buckets reached by every input executed so far.
+   */
+  private final HitCountMap hitCounts;
+
+  /**
+   * Union of the edges taken by every input executed so far.
+   */
+  private final CoverageMap edgeMap = new CoverageMap(EdgeCoverage.SIZE);
+
+  /**
+   * Instructions which can be reached, used to mask the coverage of each input.
+   */
+  private BitSet reachable = new BitSet();
+
+  /**
+   * Number of batches forked which have not yet completed.
+   */
+  private final AtomicInteger pending = new AtomicInteger();
+
+  /**
+   * Number of inputs executed so far.
+   */
+  private final AtomicInteger executed = new AtomicInteger();
+
+  /**
+   * Number of emulator cycles consumed so far.
+   */
+  private final AtomicLong cycles = new AtomicLong();
+
+  /**
+   * How coverage has progressed with each generation of inputs.
+   */
+  private final CoverageTimeline timeline;
+
+  /**
+   * Number of generations completed when the timeline was last updated. This is
+   * guarded by the generator's lock.
+   */
+  private int generation;
+
+  /**
+   * Time at which the current run started.
+   */
+  private volatile long start;
+
+  /**
+   * Signalled by workers when new coverage is found, when no batches remain or
+   * when a worker fails.
+   */
+  private final Semaphore signal = new Semaphore(0);
+
+  /**
+   * The first failure from a worker, if any.
+   */
+  private final AtomicReference<@Nullable Throwable> failure = new AtomicReference<>();
+
+  /**
+   * Set once the target is reached, so no more batches are forked.
+   */
+  private volatile boolean stopped;
+
+  /**
+   * Construct a new fuzz driver.
+   *
+   * @param firmware  The firmware image being tested.
+   * @param generator The generator of inputs to be executed.
+   * @param gui       Flag to show Graphical User Interface.
+   * @param nThreads  Number of threads to use.
+   * @param batchSize Batch size of jobs for each thread.
+   * @throws IllegalArgumentException If the number of threads is not positive.
+   */
+  public FuzzDriver(HexFile firmware, AutomatedTester.InputGenerator<T> generator, boolean gui,
+      int nThreads, int batchSize) {
+    this(firmware, generator, gui, nThreads, batchSize, false);
+  }
+
+  /**
+   * Construct a new fuzz driver, which optionally tunes the number of threads and
+   * batch size to maximise throughput.
+   *
+   * @param firmware  The firmware image being tested.
+   * @param generator The generator of inputs to be executed.
+   * @param gui       Flag to show Graphical User Interface.
+   * @param nThreads  Number of threads to use, or the most to use when
+   *                  autotuning, where zero then means one per core.
+   * @param batchSize Batch size of jobs for each thread, or the initial batch
+   *                  size when autotuning.
+   * @param autotune  Flag to tune the number of threads and batch size.
+   * @throws IllegalArgumentException If the number of threads is not positive
+   *                                  (or, when autotuning, is negative).
+   */
+  public FuzzDriver(HexFile firmware, AutomatedTester.InputGenerator<T> generator, boolean gui,
+      int nThreads, int batchSize, boolean autotune) {
+    int n = autotune && nThreads == 0 ? Runtime.getRuntime().availableProcessors() : nThreads;
+    if (n < 1) {
+      throw new IllegalArgumentException("invalid number of threads: " + nThreads); //$NON-NLS-1$
+    }
+    this.firmware = firmware;
+    this.generator = generator;
+    this.gui = gui;
+    this.nthreads = n;
+    this.threads = n;
+    this.batchSize = batchSize;
+    Autotuner t = null;
+    if (autotune) {
+      // Start from a single thread, and add more whilst this pays off
+      t = new Autotuner(n, 1, batchSize);
+      this.threads = t.getThreads();
+      this.batchSize = t.getBatchSize();
+    }
+    this.tuner = t;
+    setThreads(this.threads);
+    this.timeline = new CoverageTimeline(firmware);
+    for (int i = 0; i != n; i++) {
+      this.tinyBoys.add(createTinyBoy());
+    }
+    this.coverageMap = new CoverageMap(this.allTinyBoys.element().getAVR().getCode().size());
+    this.hitCounts = new HitCountMap(this.allTinyBoys.element().getHits().length);
+    this.pool = new ForkJoinPool(n, p -> new Worker(p, takeTinyBoy(), this.tinyBoys), null,
+        false);
+  }
+
+  /**
+   * Get the timeline of how coverage progressed with each generation of inputs.
+   * This is only updated for generators which are {@link Generational}, except
+   * for a final point added at the end of each run.
+   *
+   * @return the timeline.
+   */
+  public CoverageTimeline getTimeline() {
+    return this.timeline;
+  }
+
+  /**
+   * Get the edges taken by every input executed so far, laid out as described
+   * by {@link EdgeCoverage}.
+   *
+   * @return the edges.
+   */
+  public BitSet getEdges() {
+    return this.edgeMap.toBitSet();
+  }
+
+  /**
+   * Destroy the worker threads, and the graphical view of each emulator (if
+   * present).
+   */
+  public void destroy() {
+    this.pool.shutdownNow();
+    for (FuzzEmulator tinyBoy : this.allTinyBoys) {
+      tinyBoy.destroy();
+    }
+  }
+
+  /**
+   * Execute inputs until either the target branch coverage is reached, or the
+   * generator runs out of inputs.
+   *
+   * @param target The target coverage (as a percentage).
+   * @return The coverage obtained.
+   * @throws InterruptedException If the calling thread is interrupted.
+   * @throws ExecutionException   If a worker thread fails.
+   */
+  public CoverageAnalysis run(double target) throws InterruptedException, ExecutionException {
+    return run(target, Long.MAX_VALUE);
+  }
+
+  /**
+   * Execute inputs until either the target branch coverage is reached, the
+   * generator runs out of inputs or a time limit passes. Batches already running
+   * when the time limit passes are allowed to finish.
+   *
+   * @param target  The target coverage (as a percentage).
+   * @param timeout The time limit (in ms).
+   * @return The coverage obtained.
+   * @throws InterruptedException If the calling thread is interrupted.
+   * @throws ExecutionException   If a worker thread fails.
+   */
+  public CoverageAnalysis run(double target, long timeout)
+      throws InterruptedException, ExecutionException {
+    long time = System.currentTimeMillis();
+    this.start = time;
+    CoverageAnalysis coverage = new CoverageAnalysis(this.firmware);
+    this.reachable = coverage.getReachableInstructions();
+    this.stopped = false;
+    System.err.println("Initialised " + this.nthreads + " worker threads."); //$NON-NLS-1$ //$NON-NLS-2$
+    for (Batch batch : nextBatches()) {
+      this.pool.execute(batch);
+    }
+    Autotuner t = this.tuner;
+    long window = time;
+    int windowCount = 0;
+    long reported = 0;
+    double lastCoverage = -1;
+    while (true) {
+      if (this.pending.get() != 0) {
+        this.signal.tryAcquire(t != null ? TUNING_WINDOW : PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+        this.signal.drainPermits();
+      }
+      Throwable failed = this.failure.get();
+      if (failed != null) {
+        // Let the other batches stop, so none is still running once this returns
+        this.stopped = true;
+        while (this.pending.get() != 0) {
+          this.signal.acquire();
+        }
+        throw new ExecutionException(failed);
+      }
+      coverage.record(this.coverageMap.toBitSet());
+      long now = System.currentTimeMillis();
+      int count = this.executed.get();
+      if (t != null && now - window >= TUNING_WINDOW) {
+        t.sample((count - windowCount) * 1000.0 / (now - window));
+        if (t.getThreads() != this.threads) {
+          setThreads(t.getThreads());
+        }
+        this.batchSize = t.getBatchSize();
+        window = now;
+        windowCount = count;
+      }
+      double branchCoverage = coverage.getBranchCoverage();
+      if (branchCoverage != lastCoverage || now - reported >= PROGRESS_INTERVAL) {
+        double rate = Math.round((count / (double) Math.max(1, now - time)) * 10000) / 10.0;
+        System.err.println("Processed " + count + " inputs @ " + rate //$NON-NLS-1$ //$NON-NLS-2$
+            + " inputs/s with coverage " + Math.round(branchCoverage) + "%"); //$NON-NLS-1$ //$NON-NLS-2$
+        reported = now;
+        lastCoverage = branchCoverage;
+      }
+      if (branchCoverage >= target || now - time >= timeout) {
+        this.stopped = true;
+        break;
+      } else if (this.pending.get() == 0) {
+        // Make sure nothing was made available after the last batch completed
+        ArrayList<Batch> batches = nextBatches();
+        if (batches.isEmpty() && isFinished()) {
+          break;
+        }
+        for (Batch batch : batches) {
+          this.pool.execute(batch);
+        }
+      }
+    }
+    if (t != null) {
+      System.err.println("Autotuned to " + t); //$NON-NLS-1$
+    }
+    // Let any batches still running finish, so the generator is left quiescent
+    while (this.pending.get() != 0) {
+      this.signal.acquire();
+    }
+    // Include anything covered by the final batches
+    coverage.record(this.coverageMap.toBitSet());
+    synchronized (this.generator) {
+      addPoint(this.executed.get(), 0);
+    }
+    return coverage;
+  }
+
+  /**
+   * Take the inputs currently available from the generator (up to one full batch
+   * for each thread without one) and split them evenly into batches. Each batch
+   * returned is counted as pending before the generator is released, so a
+   * thread which then finds no inputs and no pending batches knows all are done.
+   *
+   * @return the batches, which is empty if no inputs are available or every
+   *         thread already has a batch.
+   */
+  private ArrayList<Batch> nextBatches() {
+    ArrayList<Batch> batches = new ArrayList<>();
+    if (this.stopped) {
+      return batches;
+    }
+    ArrayList<T> inputs = new ArrayList<>();
+    int max = this.batchSize;
+    int size;
+    synchronized (this.generator) {
+      int n = this.threads - this.pending.get();
+      while (inputs.size() < n * max && this.generator.hasMore()) {
+        inputs.add(this.generator.generate());
+      }
+      if (inputs.isEmpty()) {
+        return batches;
+      }
+      size = Math.min(max, (inputs.size() + n - 1) / n);
+      this.pending.addAndGet((inputs.size() + size - 1) / size);
+    }
+    for (int i = 0; i < inputs.size(); i += size) {
+      batches.add(new Batch(new ArrayList<>(inputs.subList(i, Math.min(inputs.size(), i + size)))));
+    }
+    return batches;
+  }
+
+  /**
+   * Change the number of threads to split inputs between, telling the generator
+   * if it is {@link Generational}.
+   *
+   * @param n Number of threads.
+   */
+  private void setThreads(int n) {
+    this.threads = n;
+    if (this.generator instanceof Generational g) {
+      synchronized (this.generator) {
+        g.setThreads(n);
+      }
+    }
+  }
+
+  /**
+   * Add a point to the timeline if the generator has completed a generation
+   * since it was last checked. This must be called whilst holding the
+   * generator's lock, immediately after recording an input.
+   *
+   * @param count Number of inputs executed so far.
+   */
+  private void checkGeneration(int count) {
+    if (this.generator instanceof Generational g && g.getGeneration() != this.generation) {
+      this.generation = g.getGeneration();
+      addPoint(count, g.getNewStates());
+    }
+  }
+
+  /**
+   * Add a point to the timeline for the current generation. This must be called
+   * whilst holding the generator's lock.
+   *
+   * @param count     Number of inputs executed so far.
+   * @param newStates Number of new states reached by the last generation.
+   */
+  private void addPoint(int count, int newStates) {
+    this.timeline.add(new CoverageTimeline.Point(this.generation,
+        System.currentTimeMillis() - this.start, count, this.cycles.get(), newStates,
+        this.coverageMap.toBitSet()));
+  }
+
+  /**
+   * Record the failure of a worker, and stop any more batches being forked. Only
+   * the first failure is kept.
+   *
+   * @param t The failure.
+   */
+  private void fail(Throwable t) {
+    this.failure.compareAndSet(null, t);
+    this.stopped = true;
+  }
+
+  /**
+   * Check whether every input has been executed. New inputs are only generated
+   * when a pending batch records its results, and batches are counted as pending
+   * whilst the generator is held. Thus, if no batch is pending and the generator
+   * has no more inputs, none can appear later.
+   *
+   * @return True if finished, false otherwise.
+   */
+  private boolean isFinished() {
+    synchronized (this.generator) {
+      return this.pending.get() == 0 && !this.generator.hasMore();
+    }
+  }
+
+  /**
+   * Take an emulator for a new worker thread, creating one if none are idle.
+   *
+   * @return the emulator.
+   */
+  private FuzzEmulator takeTinyBoy() {
+    FuzzEmulator tinyBoy = this.tinyBoys.poll();
+    return tinyBoy != null ? tinyBoy : createTinyBoy();
+  }
+
+  /**
+   * Create a new emulator with the firmware uploaded.
+   *
+   * @return the emulator.
+   */
+  private FuzzEmulator createTinyBoy() {
+    FuzzEmulator tinyBoy = new FuzzEmulator(this.gui);
+    // Flash is never modified, so only needs uploading once
+    tinyBoy.upload(this.firmware);
+    JPeripheral view = tinyBoy.getView();
+    if (view != null) {
+      int i = this.allTinyBoys.size();
+      view.setLocation(view.getX() + 50 * i, view.getY() + 50 * i);
+    }
+    this.allTinyBoys.add(tinyBoy);
+    return tinyBoy;
+  }
+
+  /**
+   * Execute a single input on a given emulator. If the input is resumable, then
+   * execution starts from the snapshot it chooses (if any), and a snapshot is
+   * handed back once all of its steps have been read. If the input is polled,
+   * then the last poll of the buttons is handed back to it. Steps which would
+   * leave the emulator idle are skipped rather than executed. The final state
+   * is returned as a fingerprint of data memory, rather than a copy of it.
+   *
+   * @param tinyBoy The emulator to use.
+   * @param input   The input to execute.
+   * @return The code executed and final state.
+   */
+  private static AutomatedTester.Result fuzzTest(FuzzEmulator tinyBoy, Iterator<Boolean> input) {
+    @Nullable Resumable resumable = input instanceof Resumable ? (Resumable) input : null;
+    @Nullable Snapshot start = resumable != null ? resumable.resume() : null;
+    if (start != null) {
+      tinyBoy.restore(start);
+    } else {
+      tinyBoy.reset();
+    }
+    tinyBoy.bind(input);
+    // Number of reads after which to checkpoint, or -1 if not required
+    int checkpoint = resumable != null ? resumable.length() * FuzzEmulator.READS_PER_STEP : -1;
+    try {
+      while (tinyBoy.hasInput()) {
+        tinyBoy.run(Integer.MAX_VALUE);
+        // Skip steps which would leave the emulator where it is, but never past
+        // the checkpoint since its snapshot must be taken there
+        tinyBoy.fastForward(checkpoint > tinyBoy.getReads() ? checkpoint : Integer.MAX_VALUE);
+        // Reads are taken a whole step at a time by a single instruction, so
+        // this is always hit exactly between instructions.
+        if (tinyBoy.getReads() == checkpoint && resumable != null) {
+          resumable.checkpoint(tinyBoy.snapshot());
+          checkpoint = -1;
+        }
+      }
+    } catch (AVR.HaltedException e) {
+      // Program halted, so execution is complete
+    }
+    ButtonPoll poll = tinyBoy.getLastPoll();
+    if (poll != null && input instanceof Polled) {
+      ((Polled) input).polled(poll);
+    }
+    // The fingerprint stands in for the final state, which is only ever
+    // compared for equality
+    long fingerprint = tinyBoy.getFingerprint();
+    byte[] state = new byte[Long.BYTES];
+    for (int i = 0; i != state.length; i++) {
+      state[i] = (byte) (fingerprint >>> (i * Byte.SIZE));
+    }
+    return new AutomatedTester.Result(tinyBoy.getCoverage(), state);
+  }
+
+  /**
+   * A batch of inputs to be executed by a single worker. Once executed, the
+   * worker forks any inputs which have become available as new batches, leaving
+   * them on its own queue for other workers to steal.
+   */
+  private final class Batch extends RecursiveAction {
+    /**
+     * Batches are never serialised, but this keeps the compiler happy.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The inputs to execute.
+     */
+    private final ArrayList<T> inputs;
+
+    /**
+     * Construct a new batch.
+     *
+     * @param inputs The inputs to execute.
+     */
+    Batch(ArrayList<T> inputs) {
+      this.inputs = inputs;
+    }
+
+    @Override
+    protected void compute() {
+      FuzzDriver<T> driver = FuzzDriver.this;
+      try {
+        FuzzEmulator tinyBoy = ((Worker) Thread.currentThread()).tinyBoy;
+        for (T input : this.inputs) {
+          if (driver.stopped) {
+            // Target already reached, so the rest of this batch is not needed
+            break;
+          }
+          long cycles = tinyBoy.getCycles();
+          AutomatedTester.Result result = fuzzTest(tinyBoy, input);
+          driver.cycles.addAndGet(tinyBoy.getCycles() - cycles);
+          BitSet executed = result.getCodeExecuted();
+          executed.and(driver.reachable);
+          int count = driver.executed.incrementAndGet();
+          if (driver.coverageMap.merge(executed) != 0) {
+            // Wake the main thread straight away, in case the target was reached
+            driver.signal.release();
+          }
+          int newCounts = driver.hitCounts.merge(tinyBoy.getHits());
+          if (input instanceof HitCounted) {
+            ((HitCounted) input).counted(newCounts);
+          }
+          int newEdges = driver.edgeMap.merge(tinyBoy.getEdges());
+          if (input instanceof EdgeCovered) {
+            ((EdgeCovered) input).covered(newEdges);
+          }
+          synchronized (driver.generator) {
+            driver.generator.record(input, executed, result.getState());
+            driver.checkGeneration(count);
+          }
+        }
+      } catch (Throwable t) {
+        driver.fail(t);
+      }
+      // This worker is now free, so count it when splitting up new inputs. This
+      // is done exactly once per batch, even if it failed, so the count stays
+      // accurate for the batches still running.
+      driver.pending.decrementAndGet();
+      try {
+        for (Batch batch : nextBatches()) {
+          batch.fork();
+        }
+      } catch (Throwable t) {
+        driver.fail(t);
+      }
+      if (driver.failure.get() != null || driver.pending.get() == 0) {
+        driver.signal.release();
+      }
+    }
+  }
+
+  /**
+   * A worker thread, which owns one emulator for as long as it runs.
+   */
+  private static final class Worker extends ForkJoinWorkerThread {
+    /**
+     * The emulator owned by this worker.
+     */
+    final FuzzEmulator tinyBoy;
+
+    /**
+     * Where to return the emulator when this worker terminates.
+     */
+    private final ConcurrentLinkedQueue<FuzzEmulator> idle;
+
+    /**
+     * Construct a new worker thread.
+     *
+     * @param pool    The pool it belongs to.
+     * @param tinyBoy The emulator it owns.
+     * @param idle    Where to return the emulator when it terminates.
+     */
+    Worker(ForkJoinPool pool, FuzzEmulator tinyBoy, ConcurrentLinkedQueue<FuzzEmulator> idle) {
+      super(pool);
+      this.tinyBoy = tinyBoy;
+      this.idle = idle;
+    }
+
+    @Override
+    protected void onTermination(@Nullable Throwable exception) {
+      this.idle.add(this.tinyBoy);
+      super.onTermination(exception);
+    }
+  }
+}
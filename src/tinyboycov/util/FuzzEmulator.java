@@ -0,0 +1,995 @@
+package tinyboycov.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import javr.core.AVR;
+import javr.core.AvrInstruction;
+import javr.core.Wire;
+import javr.io.HexFile;
+import javr.memory.ByteMemory;
+import javr.memory.InstrumentableMemory;
+import javr.memory.IoMemory;
+import javr.memory.MultiplexedMemory;
+import javr.ports.InputOutputPort;
+import javr.util.IdealWire;
+import javrsim.peripherals.JPeripheral;
+import org.eclipse.jdt.annotation.Nullable;
+import tinyboy.core.ControlPad;
+import tinyboy.core.TinyBoyEmulator;
+import tinyboy.views.TinyBoyPeripheral;
+
+/**
+ * A TinyBoy emulator for fuzz testing, whose buttons are driven by an input
+ * sequence and which records the code memory read whilst executing it. This
+ * mirrors the emulator used by the <code>AutomatedTester</code>, except that its
+ * complete state can be captured as a {@link Snapshot} and later restored. This
+ * allows an input to resume from the state reached by a prefix of it, rather
+ * than always executing from reset. It also records the last time the buttons
+ * were polled, and how, so the input can be extended in the way the firmware
+ * was waiting for. Finally, it can fast-forward over steps which would leave it
+ * exactly where it was: if the complete state after polling the buttons is
+ * the same as after the previous poll, then executing another step with the
+ * same buttons pressed must arrive back at the same state (covering nothing
+ * new), so such steps are taken from the input without being executed.
+ * Lastly, writes to the SRAM are tracked so that a fingerprint of the final
+ * state can be kept up to date by only looking at the bytes actually written
+ * (and the registers), rather than copying the whole of data memory after
+ * every input. Instructions are executed by a {@link FastEngine} from a table
+ * decoded when the firmware is uploaded, rather than by the javr interpreter,
+ * unless this is disabled.
+ *
+ * @author niraj
+ *
+ */
+public class FuzzEmulator extends TinyBoyEmulator {
+  /**
+   * Number of wire reads making up one step of an input, since every read of the
+   * input port reads each button once.
+   */
+  public static final int READS_PER_STEP = ControlPad.Button.values().length;
+
+  /**
+   * I/O address of the port the buttons are read from (i.e. PINB).
+   */
+  private static final int PINB = 0x16;
+
+  /**
+   * Bit of the port each button is connected to, indexed by button ordinal.
+   */
+  private static final int[] BUTTON_BITS = { 1, 3, 4, 5 };
+
+  /**
+   * Mask of every button, for a poll which could test any of them.
+   */
+  private static final int ALL_BUTTONS = (1 << READS_PER_STEP) - 1;
+
+  /**
+   * Handles onto the internal state of the javr classes, which offer no other
+   * way to restore it.
+   */
+  private static final VarHandle PC;
+  private static final VarHandle SREG;
+  private static final VarHandle DECODED;
+  private static final VarHandle MEMORIES;
+  private static final VarHandle DIRECTIONS;
+  private static final VarHandle WIRE_STATE;
+
+  /**
+   * Possible states of an ideal wire, indexed by ordinal.
+   */
+  private static final Object[] WIRE_STATES;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodHandles.Lookup avr = MethodHandles.privateLookupIn(AVR.class, lookup);
+      PC = avr.findVarHandle(AVR.class, "PC", int.class); //$NON-NLS-1$
+      SREG = avr.findVarHandle(AVR.class, "SREG", int.class); //$NON-NLS-1$
+      DECODED = avr.findVarHandle(AVR.class, "decoded", AvrInstruction[].class); //$NON-NLS-1$
+      MEMORIES = MethodHandles.privateLookupIn(MultiplexedMemory.class, lookup)
+          .findVarHandle(MultiplexedMemory.class, "memories", AVR.Memory[].class); //$NON-NLS-1$
+      DIRECTIONS = MethodHandles.privateLookupIn(InputOutputPort.class, lookup)
+          .findVarHandle(InputOutputPort.class, "directions", byte.class); //$NON-NLS-1$
+      Class<?> state = IdealWire.class.getDeclaredField("state").getType(); //$NON-NLS-1$
+      WIRE_STATE = MethodHandles.privateLookupIn(IdealWire.class, lookup)
+          .findVarHandle(IdealWire.class, "state", state); //$NON-NLS-1$
+      Object[] states = state.getEnumConstants();
+      assert states != null;
+      WIRE_STATES = states;
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * The input currently driving the buttons.
+   */
+  private Iterator<Boolean> input = new Iterator<>() {
+    @Override
+    public boolean hasNext() {
+      return true;
+    }
+
+    @Override
+    public Boolean next() {
+      return Boolean.FALSE;
+    }
+  };
+
+  /**
+   * Number of wire reads taken from the input since reset.
+   */
+  private int reads;
+
+  /**
+   * Buttons pressed in the step currently being read.
+   */
+  private int sampled;
+
+  /**
+   * The last poll of the buttons since reset, or null if there has been none.
+   */
+  private @Nullable ButtonPoll lastPoll;
+
+  /**
+   * Whether to detect when this emulator is idle, so it can fast-forward.
+   */
+  private final boolean fastForward;
+
+  /**
+   * Executes instructions from a table decoded when the firmware is uploaded,
+   * and knows which instruction polled the buttons.
+   */
+  private final FastEngine engine;
+
+  /**
+   * Whether to execute instructions with {@link #engine}, rather than with the
+   * javr interpreter.
+   */
+  private final boolean fast;
+
+  /**
+   * Whether the last instruction executed polled the buttons, and left this
+   * emulator in the same state as the previous poll did.
+   */
+  private boolean idle;
+
+  /**
+   * Complete state after the last poll, or null if there has been no poll
+   * since reset. This is the data memory, followed by the port directions and
+   * output wire states.
+   */
+  private byte @Nullable [] polledState;
+
+  /**
+   * Spare buffer for capturing the state after a poll, to avoid allocating one
+   * each time.
+   */
+  private byte[] spareState;
+
+  /**
+   * Program counter after the last poll.
+   */
+  private int polledPC;
+
+  /**
+   * Status register after the last poll.
+   */
+  private int polledSREG;
+
+  /**
+   * Buttons pressed in a step taken from the input whilst fast-forwarding,
+   * which differed from the last step and so must still be executed.
+   */
+  private int lookahead;
+
+  /**
+   * Number of wire reads of the step held in {@link #lookahead} not yet taken.
+   */
+  private int buffered;
+
+  /**
+   * Number of cycles executed since this emulator was created.
+   */
+  private long cycles;
+
+  /**
+   * Code memory read since reset.
+   */
+  private BitSet coverage = new BitSet();
+
+  /**
+   * Number of times the instruction at each address of code memory (in words)
+   * has been executed since reset, saturating at 255 (i.e. -1 as a byte).
+   */
+  private final byte[] hits;
+
+  /**
+   * Edges taken out of instructions whose successor is not fixed since reset,
+   * laid out as described by {@link EdgeCoverage}.
+   */
+  private final long[] edges = new long[EdgeCoverage.SIZE / Long.SIZE];
+
+  /**
+   * Data memory addresses written since the fingerprint was last brought up to
+   * date, one bit per address. Only writes to the SRAM are tracked.
+   */
+  private final long[] dirty;
+
+  /**
+   * Data memory addresses whose writes are not tracked, which are looked at
+   * every time the fingerprint is brought up to date.
+   */
+  private final long[] untracked;
+
+  /**
+   * Data memory as it was when the fingerprint was last brought up to date.
+   */
+  private final byte[] fingerprinted;
+
+  /**
+   * Fingerprint of {@link #fingerprinted}, which is the exclusive or of a hash
+   * of each address and the non-zero byte stored there.
+   */
+  private long fingerprint;
+
+  /**
+   * Marks the data memory addresses which belong to an I/O port, and so cannot
+   * be read or written without side effects.
+   */
+  private final boolean[] portAddresses;
+
+  /**
+   * The I/O ports, whose data direction registers are held outside of data
+   * memory.
+   */
+  private final InputOutputPort[] ports;
+
+  /**
+   * The output wires, whose state is held outside of data memory.
+   */
+  private final IdealWire[] wires;
+
+  /**
+   * The graphical view of this emulator, or <code>null</code> if disabled.
+   */
+  private final @Nullable JPeripheral view;
+
+  /**
+   * Construct a new emulator which can fast-forward.
+   *
+   * @param gui Flag to show a graphical view of the emulator.
+   */
+  public FuzzEmulator(boolean gui) {
+    this(gui, true);
+  }
+
+  /**
+   * Construct a new emulator which executes pre-decoded instructions.
+   *
+   * @param gui         Flag to show a graphical view of the emulator.
+   * @param fastForward Flag to detect when the emulator is idle, so that
+   *                    {@link #fastForward(int)} can skip steps.
+   */
+  public FuzzEmulator(boolean gui, boolean fastForward) {
+    this(gui, fastForward, true);
+  }
+
+  /**
+   * Construct a new emulator.
+   *
+   * @param gui         Flag to show a graphical view of the emulator.
+   * @param fastForward Flag to detect when the emulator is idle, so that
+   *                    {@link #fastForward(int)} can skip steps.
+   * @param fast        Flag to execute pre-decoded instructions, rather than
+   *                    using the javr interpreter.
+   */
+  public FuzzEmulator(boolean gui, boolean fastForward, boolean fast) {
+    super(PullWire::create);
+    this.fastForward = fastForward;
+    this.fast = fast;
+    AVR avr = getAVR();
+    InstrumentableMemory code = new InstrumentableMemory(avr.getCode());
+    code.register(new CoverageInstrument());
+    avr.setCode(code);
+    // Identify state which lives outside of the data memory
+    AVR.Memory data = avr.getData();
+    this.portAddresses = new boolean[data.size()];
+    ArrayList<InputOutputPort> ioPorts = new ArrayList<>();
+    AVR.Memory[] memories = (AVR.Memory[]) MEMORIES.get((MultiplexedMemory) data);
+    for (int i = 0, base = 0; i != memories.length; base += memories[i++].size()) {
+      if (memories[i] instanceof IoMemory) {
+        IoMemory io = (IoMemory) memories[i];
+        for (int j = 0; j != io.size(); j++) {
+          IoMemory.@Nullable Port port = io.getPort(j);
+          if (port != null) {
+            this.portAddresses[base + j] = true;
+            if (port instanceof InputOutputPort && !ioPorts.contains(port)) {
+              ioPorts.add((InputOutputPort) port);
+            }
+          }
+        }
+      }
+    }
+    this.ports = ioPorts.toArray(new InputOutputPort[ioPorts.size()]);
+    // Track writes to the SRAM, starting from all zeros (whose fingerprint is
+    // zero) with every address yet to be looked at. The registers and I/O
+    // registers are written by almost every instruction, so are always looked
+    // at instead.
+    this.dirty = new long[(data.size() + Long.SIZE - 1) / Long.SIZE];
+    this.untracked = new long[this.dirty.length];
+    this.fingerprinted = new byte[data.size()];
+    Arrays.fill(this.dirty, -1L);
+    for (int i = 0, base = 0; i != memories.length; base += memories[i++].size()) {
+      if (base != 0 && memories[i] instanceof ByteMemory) {
+        memories[i] = new TrackedMemory(memories[i], base, this.dirty);
+      } else {
+        for (int j = base; j != base + memories[i].size(); j++) {
+          this.untracked[j >>> 6] |= 1L << j;
+        }
+      }
+    }
+    ArrayList<IdealWire> outputs = new ArrayList<>();
+    for (Wire w : avr.getPins()) {
+      if (w instanceof IdealWire) {
+        outputs.add((IdealWire) w);
+      } else if (w instanceof PullWire) {
+        ((PullWire) w).emulator = this;
+      }
+    }
+    this.wires = outputs.toArray(new IdealWire[outputs.size()]);
+    this.spareState = new byte[data.size() + this.ports.length + this.wires.length];
+    // Built last, so it sees the tracked SRAM
+    this.hits = new byte[avr.getCode().size() / 2];
+    this.engine = new FastEngine(avr, this.hits, this.edges);
+    this.view = gui ? new TinyBoyPeripheral(this) : null;
+  }
+
+  /**
+   * Bind the buttons to a given input. Every read of a button wire takes the
+   * next value from this input.
+   *
+   * @param input The input to drive the buttons.
+   */
+  public void bind(Iterator<Boolean> input) {
+    this.input = input;
+  }
+
+  /**
+   * Check whether there is more input to be read, including any taken from the
+   * input whilst fast-forwarding but not yet read.
+   *
+   * @return True if there is more input, false otherwise.
+   */
+  public boolean hasInput() {
+    return this.buffered != 0 || this.input.hasNext();
+  }
+
+  /**
+   * Get the number of cycles executed since this emulator was created. Unlike
+   * other counts, this is not cleared by a reset or restore.
+   *
+   * @return the number of cycles.
+   */
+  public long getCycles() {
+    return this.cycles;
+  }
+
+  /**
+   * Get the number of wire reads taken from the input since reset. This counts
+   * the reads made before a snapshot was taken, when resumed from one.
+   *
+   * @return the number of reads.
+   */
+  public int getReads() {
+    return this.reads;
+  }
+
+  /**
+   * Get the last poll of the buttons since reset (or restore).
+   *
+   * @return the poll, or <code>null</code> if the buttons have not been polled.
+   */
+  public @Nullable ButtonPoll getLastPoll() {
+    return this.lastPoll;
+  }
+
+  /**
+   * Get a copy of the code memory read since reset.
+   *
+   * @return the code memory read.
+   */
+  public BitSet getCoverage() {
+    return (BitSet) this.coverage.clone();
+  }
+
+  /**
+   * Get the number of times the instruction at each address of code memory (in
+   * words) has been executed since reset, saturating at 255. Steps skipped by
+   * {@link #fastForward(int)} are not counted. The returned array is updated as
+   * execution continues, and must not be modified.
+   *
+   * @return the hit counts, as unsigned bytes.
+   */
+  public byte[] getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Get the edges taken out of instructions whose successor is not fixed since
+   * reset, laid out as described by {@link EdgeCoverage}. As for
+   * {@link #getHits()}, steps skipped by {@link #fastForward(int)} are not
+   * recorded, and the returned array is updated as execution continues and must
+   * not be modified.
+   *
+   * @return the edges, in the same word layout as
+   *         <code>BitSet.toLongArray()</code>.
+   */
+  public long[] getEdges() {
+    return this.edges;
+  }
+
+  /**
+   * Get the contents of data memory. Note that this reads the I/O ports, and
+   * hence the input.
+   *
+   * @return a copy of the data memory.
+   */
+  public byte[] getState() {
+    AVR.Memory data = getAVR().getData();
+    byte[] bytes = new byte[data.size()];
+    for (int i = 0; i != bytes.length; i++) {
+      bytes[i] = data.peek(i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Get a fingerprint of the contents of data memory, excluding the I/O ports.
+   * Equal contents always have equal fingerprints, whilst different contents
+   * have different fingerprints with high probability. Only the registers and
+   * the bytes of SRAM written since the last call are looked at.
+   *
+   * @return the fingerprint.
+   */
+  public long getFingerprint() {
+    AVR.Memory data = getAVR().getData();
+    long f = this.fingerprint;
+    for (int w = 0; w != this.dirty.length; w++) {
+      long bits = this.dirty[w] | this.untracked[w];
+      this.dirty[w] = 0;
+      for (; bits != 0; bits &= bits - 1) {
+        int address = w * Long.SIZE + Long.numberOfTrailingZeros(bits);
+        if (address < this.fingerprinted.length && !this.portAddresses[address]) {
+          byte value = data.peek(address);
+          byte old = this.fingerprinted[address];
+          if (value != old) {
+            f ^= hash(address, old) ^ hash(address, value);
+            this.fingerprinted[address] = value;
+          }
+        }
+      }
+    }
+    this.fingerprint = f;
+    return f;
+  }
+
+  /**
+   * Hash a single byte of data memory, such that a zero byte hashes to zero.
+   *
+   * @param address The address.
+   * @param value   The byte stored there.
+   * @return the hash.
+   */
+  private static long hash(int address, byte value) {
+    if (value == 0) {
+      return 0;
+    }
+    // Finaliser of SplitMix64
+    long h = ((long) address << 8 | (value & 0xFF)) * 0x9E3779B97F4A7C15L;
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    return h ^ (h >>> 31);
+  }
+
+  /**
+   * Get the graphical view of this emulator.
+   *
+   * @return the view, or <code>null</code> if disabled.
+   */
+  public @Nullable JPeripheral getView() {
+    return this.view;
+  }
+
+  @Override
+  public void upload(HexFile firmware) {
+    super.upload(firmware);
+    this.engine.load();
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    this.engine.invalidate();
+    this.reads = 0;
+    this.lastPoll = null;
+    this.coverage.clear();
+    Arrays.fill(this.hits, (byte) 0);
+    Arrays.fill(this.edges, 0);
+    clearIdle();
+  }
+
+  /**
+   * Capture the complete state of this emulator. This must be called between
+   * instructions, and does not read the input.
+   *
+   * @return the snapshot.
+   */
+  public Snapshot snapshot() {
+    AVR avr = getAVR();
+    AVR.Memory data = avr.getData();
+    byte[] bytes = new byte[data.size()];
+    for (int i = 0; i != bytes.length; i++) {
+      if (!this.portAddresses[i]) {
+        bytes[i] = data.peek(i);
+      }
+    }
+    byte[] directions = new byte[this.ports.length];
+    for (int i = 0; i != directions.length; i++) {
+      directions[i] = (byte) DIRECTIONS.get(this.ports[i]);
+    }
+    byte[] states = new byte[this.wires.length];
+    for (int i = 0; i != states.length; i++) {
+      states[i] = (byte) ((Enum<?>) WIRE_STATE.get(this.wires[i])).ordinal();
+    }
+    // Only the instructions executed are kept, since most of code memory is not
+    int n = 0;
+    for (byte h : this.hits) {
+      n += h != 0 ? 1 : 0;
+    }
+    int[] hitCounts = new int[n];
+    for (int i = 0, j = 0; j != n; i++) {
+      if (this.hits[i] != 0) {
+        hitCounts[j++] = i << Byte.SIZE | this.hits[i] & 0xFF;
+      }
+    }
+    return new Snapshot(this.reads / READS_PER_STEP, avr.getPC(), avr.getStatusRegister(), bytes,
+        directions, states, (BitSet) this.coverage.clone(), hitCounts,
+        BitSet.valueOf(this.edges));
+  }
+
+  /**
+   * Restore this emulator to the state captured by a given snapshot, as an
+   * alternative to reset. The snapshot must have been taken from an emulator
+   * running the same firmware.
+   *
+   * @param snapshot The snapshot to restore.
+   */
+  public void restore(Snapshot snapshot) {
+    AVR avr = getAVR();
+    PC.set(avr, snapshot.getPC());
+    SREG.set(avr, snapshot.getStatusRegister());
+    // Force instructions to be decoded again, so their reads are covered
+    Arrays.fill((AvrInstruction[]) DECODED.get(avr), null);
+    this.engine.invalidate();
+    AVR.Memory data = avr.getData();
+    byte[] bytes = snapshot.getData();
+    for (int i = 0; i != bytes.length; i++) {
+      if (!this.portAddresses[i]) {
+        data.poke(i, bytes[i]);
+      }
+    }
+    byte[] directions = snapshot.getDirections();
+    for (int i = 0; i != directions.length; i++) {
+      DIRECTIONS.set(this.ports[i], directions[i]);
+    }
+    byte[] states = snapshot.getWires();
+    for (int i = 0; i != states.length; i++) {
+      WIRE_STATE.set(this.wires[i], WIRE_STATES[states[i]]);
+    }
+    this.reads = snapshot.getSteps() * READS_PER_STEP;
+    this.lastPoll = null;
+    this.coverage = (BitSet) snapshot.getCoverage().clone();
+    Arrays.fill(this.hits, (byte) 0);
+    for (int h : snapshot.getHits()) {
+      this.hits[h >>> Byte.SIZE] = (byte) h;
+    }
+    long[] words = snapshot.getEdges().toLongArray();
+    Arrays.fill(this.edges, 0);
+    System.arraycopy(words, 0, this.edges, 0, words.length);
+    clearIdle();
+  }
+
+  @Override
+  public void clock() throws AVR.HaltedException {
+    JPeripheral v = this.view;
+    if (v != null) {
+      v.clock();
+    }
+    this.cycles++;
+    int reads = this.reads;
+    if (this.fast) {
+      this.engine.clock();
+    } else {
+      int pc = getAVR().getPC();
+      if (pc >= 0 && pc < this.hits.length && this.hits[pc] != -1) {
+        this.hits[pc]++;
+      }
+      getAVR().clock();
+      byte e = this.engine.getEdgeKind(pc);
+      if (e != EdgeCoverage.NONE) {
+        EdgeCoverage.record(this.edges, e, pc, getAVR().getPC());
+      }
+    }
+    this.idle = this.fastForward && this.reads != reads && repeated();
+  }
+
+  /**
+   * Execute instructions until one reads the buttons, or a given number have
+   * been executed. This is equivalent to calling {@link #clock()} repeatedly,
+   * but when executing pre-decoded instructions (and without a graphical view)
+   * they are executed as a single batch.
+   *
+   * @param limit The maximum number of instructions to execute.
+   * @throws AVR.HaltedException If the firmware halted.
+   */
+  public void run(int limit) throws AVR.HaltedException {
+    int reads = this.reads;
+    if (!this.fast || this.view != null) {
+      for (int i = 0; i != limit && this.reads == reads; i++) {
+        clock();
+      }
+      return;
+    }
+    try {
+      this.engine.run(limit);
+    } finally {
+      this.cycles += this.engine.getExecuted();
+    }
+    this.idle = this.fastForward && this.reads != reads && repeated();
+  }
+
+  /**
+   * Skip over the steps of the input which would leave this emulator in the
+   * state it is in. This does nothing unless the instruction just executed
+   * polled the buttons, and left the same state as the previous poll did. In
+   * that case, every following step pressing the same buttons as the last one
+   * is skipped. The first step which differs is held back, to be read when
+   * execution continues.
+   *
+   * @param limit Number of wire reads beyond which no step is skipped.
+   * @return the number of steps skipped.
+   */
+  public int fastForward(int limit) {
+    ButtonPoll poll = this.lastPoll;
+    if (!this.idle || poll == null) {
+      return 0;
+    }
+    int skipped = 0;
+    while (this.buffered == 0 && this.reads < limit && this.input.hasNext()) {
+      int pressed = 0;
+      for (int pin = 0; pin != READS_PER_STEP; pin++) {
+        if (this.input.next().booleanValue()) {
+          pressed |= 1 << pin;
+        }
+      }
+      if (pressed != poll.pressed()) {
+        this.lookahead = pressed;
+        this.buffered = READS_PER_STEP;
+      } else {
+        this.reads += READS_PER_STEP;
+        poll = new ButtonPoll(poll.step() + 1, poll.address(), poll.tested(), pressed);
+        skipped++;
+      }
+    }
+    this.lastPoll = poll;
+    return skipped;
+  }
+
+  /**
+   * Capture the complete state after a poll of the buttons, and compare it
+   * with the state after the previous poll.
+   *
+   * @return True if the states are the same, false otherwise.
+   */
+  private boolean repeated() {
+    AVR avr = getAVR();
+    AVR.Memory data = avr.getData();
+    byte[] state = this.spareState;
+    int n = data.size();
+    for (int i = 0; i != n; i++) {
+      state[i] = this.portAddresses[i] ? 0 : data.peek(i);
+    }
+    for (int i = 0; i != this.ports.length; i++) {
+      state[n++] = (byte) DIRECTIONS.get(this.ports[i]);
+    }
+    for (int i = 0; i != this.wires.length; i++) {
+      state[n++] = (byte) ((Enum<?>) WIRE_STATE.get(this.wires[i])).ordinal();
+    }
+    byte[] previous = this.polledState;
+    boolean same = previous != null && avr.getPC() == this.polledPC
+        && avr.getStatusRegister() == this.polledSREG && Arrays.equals(state, previous);
+    this.spareState = previous != null ? previous : new byte[state.length];
+    this.polledState = state;
+    this.polledPC = avr.getPC();
+    this.polledSREG = avr.getStatusRegister();
+    return same;
+  }
+
+  /**
+   * Forget the state after the last poll, and any step held back, since
+   * execution no longer continues from there.
+   */
+  private void clearIdle() {
+    this.idle = false;
+    this.polledState = null;
+    this.buffered = 0;
+  }
+
+  /**
+   * Work out how the buttons were polled by the instruction which has just read
+   * every button. The processor advances the program counter before executing
+   * an instruction, so this is the one before it (since every instruction
+   * reading the port is a single word).
+   *
+   * @return the poll.
+   */
+  private ButtonPoll poll() {
+    int pc = getAVR().getPC() - 1;
+    @Nullable AvrInstruction insn = this.engine.getInstruction(pc);
+    int tested = ALL_BUTTONS;
+    if (insn instanceof AvrInstruction.SBIS || insn instanceof AvrInstruction.SBIC) {
+      AvrInstruction.IoBit io = (AvrInstruction.IoBit) insn;
+      for (int i = 0; i != BUTTON_BITS.length; i++) {
+        if (io.A == PINB && io.b == BUTTON_BITS[i]) {
+          tested = 1 << i;
+        }
+      }
+    }
+    return new ButtonPoll(this.reads / READS_PER_STEP - 1, pc, tested, this.sampled);
+  }
+
+  @Override
+  public void destroy() {
+    JPeripheral v = this.view;
+    if (v != null) {
+      v.setVisible(false);
+      v.dispose();
+    }
+  }
+
+  @Override
+  public boolean getButtonState(ControlPad.Button button) {
+    return false;
+  }
+
+  /**
+   * Records every read of code memory, which covers both the instructions
+   * decoded and any program data loaded from flash.
+   */
+  private final class CoverageInstrument implements InstrumentableMemory.Instrument {
+    @Override
+    public void read(int address, byte value) {
+      FuzzEmulator.this.coverage.set(address);
+    }
+
+    @Override
+    public void peek(int address, byte value) {
+    }
+
+    @Override
+    public void write(int address, byte value) {
+    }
+
+    @Override
+    public void poke(int address, byte value) {
+    }
+
+    @Override
+    public void reset() {
+      FuzzEmulator.this.coverage.clear();
+    }
+  }
+
+  /**
+   * A bank of data memory which marks every byte written, so the fingerprint
+   * only needs to look at those bytes. This is used rather than an
+   * instrumented memory, since reads are too frequent to pay for notifying
+   * instruments.
+   */
+  private static final class TrackedMemory implements AVR.Memory {
+    /**
+     * The memory being tracked.
+     */
+    private final AVR.Memory memory;
+
+    /**
+     * Data memory address of the start of the bank.
+     */
+    private final int base;
+
+    /**
+     * Data memory addresses written, one bit per address.
+     */
+    private final long[] dirty;
+
+    /**
+     * Construct a tracked memory.
+     *
+     * @param memory The memory being tracked.
+     * @param base   Data memory address of the start of the bank.
+     * @param dirty  Where to mark the addresses written.
+     */
+    TrackedMemory(AVR.Memory memory, int base, long[] dirty) {
+      this.memory = memory;
+      this.base = base;
+      this.dirty = dirty;
+    }
+
+    /**
+     * Mark an address as written.
+     *
+     * @param address The address within the bank.
+     */
+    private void mark(int address) {
+      int a = this.base + address;
+      this.dirty[a >>> 6] |= 1L << a;
+    }
+
+    @Override
+    public byte read(int address) {
+      return this.memory.read(address);
+    }
+
+    @Override
+    public byte peek(int address) {
+      return this.memory.peek(address);
+    }
+
+    @Override
+    public void write(int address, byte value) {
+      this.memory.write(address, value);
+      mark(address);
+    }
+
+    @Override
+    public void poke(int address, byte value) {
+      this.memory.poke(address, value);
+      mark(address);
+    }
+
+    @Override
+    public void write(int address, byte[] bytes) {
+      this.memory.write(address, bytes);
+      for (int i = 0; i != bytes.length; i++) {
+        mark(address + i);
+      }
+    }
+
+    @Override
+    public int size() {
+      return this.memory.size();
+    }
+
+    @Override
+    public void reset() {
+      this.memory.reset();
+      for (int i = 0; i != this.memory.size(); i++) {
+        mark(i);
+      }
+    }
+  }
+
+  /**
+   * A wire connecting a button to the processor, whose value is taken from the
+   * input bound to the emulator each time it is read.
+   */
+  private static final class PullWire implements Wire {
+    /**
+     * Labels of the pins connected to buttons.
+     */
+    private static final String[] BUTTON_PINS = { "PB1", "PB3", "PB4", "PB5" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+    /**
+     * The emulator this wire belongs to. This is only set once the emulator has
+     * been constructed, since the wires are created by the emulator's super
+     * constructor.
+     */
+    private @Nullable FuzzEmulator emulator;
+
+    /**
+     * Labels for this wire.
+     */
+    private final String[] labels;
+
+    /**
+     * Construct a wire with the given labels.
+     *
+     * @param labels The labels for this wire.
+     */
+    private PullWire(String[] labels) {
+      this.labels = labels;
+    }
+
+    /**
+     * Create the wire for a given pin, which is a pull wire if the pin is
+     * connected to a button and an ideal wire otherwise.
+     *
+     * @param labels The labels of the pin.
+     * @return the wire.
+     */
+    static Wire create(String[] labels) {
+      for (String pin : BUTTON_PINS) {
+        if (labels[0].equals(pin)) {
+          return new PullWire(labels);
+        }
+      }
+      return new IdealWire(labels);
+    }
+
+    @Override
+    public String[] getLabels() {
+      return this.labels;
+    }
+
+    @Override
+    public boolean hasLabel(String label) {
+      for (String l : this.labels) {
+        if (l.equals(label)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean read() {
+      FuzzEmulator e = this.emulator;
+      if (e == null) {
+        return false;
+      }
+      int pin = e.reads++ % READS_PER_STEP;
+      e.engine.stop();
+      if (pin == 0) {
+        e.sampled = 0;
+      }
+      boolean value;
+      if (e.buffered != 0) {
+        e.buffered--;
+        value = (e.lookahead & (1 << pin)) != 0;
+      } else {
+        value = e.input.next().booleanValue();
+      }
+      if (value) {
+        e.sampled |= 1 << pin;
+      }
+      if (pin == READS_PER_STEP - 1) {
+        e.lastPoll = e.poll();
+      }
+      return value;
+    }
+
+    @Override
+    public boolean write(boolean value) {
+      return false;
+    }
+
+    @Override
+    public boolean isRising() {
+      return false;
+    }
+
+    @Override
+    public boolean clock() {
+      return false;
+    }
+
+    @Override
+    public void reset() {
+    }
+  }
+}
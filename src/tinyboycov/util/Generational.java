@@ -0,0 +1,36 @@
+package tinyboycov.util;
+
+/**
+ * An input generator which works in generations, where each generation is
+ * derived from the results of the previous one. A {@link FuzzDriver} uses this
+ * to record how coverage progresses from one generation to the next, and to
+ * tell the generator how many threads are executing its inputs. Every method is
+ * called whilst holding the generator's lock.
+ *
+ * @author niraj
+ *
+ */
+public interface Generational {
+  /**
+   * Get the number of generations whose inputs have all been recorded.
+   *
+   * @return the number of generations completed.
+   */
+  int getGeneration();
+
+  /**
+   * Get the number of distinct final states reached by the last generation
+   * completed, not counting those already expanded by an earlier generation.
+   *
+   * @return the number of new states.
+   */
+  int getNewStates();
+
+  /**
+   * Set the number of worker threads executing the inputs, which may change as
+   * the driver tunes itself. This affects how large later generations are.
+   *
+   * @param threads Number of worker threads.
+   */
+  void setThreads(int threads);
+}
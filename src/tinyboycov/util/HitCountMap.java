@@ -0,0 +1,79 @@
+package tinyboycov.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The hit count buckets reached by every input so far, for each instruction,
+ * which can be merged into by many threads at once without locking. As in
+ * AFL, the number of times an instruction is executed is placed into one of
+ * eight buckets (1, 2, 3, 4-7, 8-15, 16-31, 32-127 and 128 or more), so that
+ * only a change in the order of magnitude counts as new. A loop executed once
+ * and a loop executed a hundred times then look different, whilst a loop
+ * executed 100 and 101 times do not. Each instruction has one byte, with one
+ * bit per bucket, and eight instructions are packed into each word, which is
+ * updated with a compare-and-set loop in the same way as a
+ * {@link CoverageMap}.
+ *
+ * @author niraj
+ *
+ */
+public final class HitCountMap {
+  /**
+   * The bucket bit for each hit count.
+   */
+  private static final long[] BUCKETS = new long[256];
+
+  static {
+    for (int count = 1; count != BUCKETS.length; count++) {
+      int bucket;
+      if (count <= 3) {
+        bucket = count - 1;
+      } else if (count < 32) {
+        // 4-7, 8-15 and 16-31
+        bucket = Integer.SIZE - Integer.numberOfLeadingZeros(count);
+      } else {
+        bucket = count < 128 ? 6 : 7;
+      }
+      BUCKETS[count] = 1L << bucket;
+    }
+  }
+
+  /**
+   * The buckets reached, with those of instruction <code>i</code> in byte
+   * <code>i % 8</code> of word <code>i / 8</code>.
+   */
+  private final AtomicLongArray words;
+
+  /**
+   * Create an empty map for a given number of instructions.
+   *
+   * @param size Number of instructions.
+   */
+  public HitCountMap(int size) {
+    this.words = new AtomicLongArray((size + 7) >>> 3);
+  }
+
+  /**
+   * Merge the hit counts of an input into this map. This does not allocate.
+   *
+   * @param hits Number of times each instruction was executed, as unsigned
+   *             bytes. Any instructions beyond the size of the map are ignored.
+   * @return The number of instructions whose bucket was not previously in the
+   *         map.
+   */
+  public int merge(byte[] hits) {
+    int added = 0;
+    int n = Math.min(hits.length, this.words.length() << 3);
+    for (int i = 0; i < n; i += 8) {
+      long w = 0;
+      for (int j = 0; j != 8 && i + j != n; j++) {
+        w |= BUCKETS[hits[i + j] & 0xFF] << (j * Byte.SIZE);
+      }
+      if (w != 0) {
+        long old = this.words.getAndAccumulate(i >>> 3, w, (a, b) -> a | b);
+        added += Long.bitCount(w & ~old);
+      }
+    }
+    return added;
+  }
+}
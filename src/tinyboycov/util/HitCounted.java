@@ -0,0 +1,23 @@
+package tinyboycov.util;
+
+import java.util.Iterator;
+
+/**
+ * An input which accepts feedback about how many times the firmware executed
+ * each instruction whilst it was executed. When a {@link FuzzDriver} executes
+ * such an input, it hands back the number of instructions whose hit count fell
+ * into a bucket (see {@link HitCountMap}) which no earlier input had reached.
+ * This distinguishes inputs which cover the same instructions, but take a loop
+ * round a different number of times.
+ *
+ * @author niraj
+ *
+ */
+public interface HitCounted extends Iterator<Boolean> {
+  /**
+   * Accept the number of new hit count buckets reached by this input.
+   *
+   * @param newCounts The number of new buckets.
+   */
+  void counted(int newCounts);
+}
@@ -0,0 +1,23 @@
+package tinyboycov.util;
+
+import java.util.Iterator;
+
+/**
+ * An input which accepts feedback about how the firmware polled the buttons
+ * whilst it was executed. When a {@link FuzzDriver} executes such an input, it
+ * hands back the last poll made, which read the step after the last step of
+ * the input (when no button is pressed). Extending the input by one step
+ * changes exactly the value read by this poll, so the poll identifies which
+ * buttons are worth pressing next.
+ *
+ * @author niraj
+ *
+ */
+public interface Polled extends Iterator<Boolean> {
+  /**
+   * Accept the last poll of the buttons made whilst executing this input.
+   *
+   * @param poll The poll.
+   */
+  void polled(ButtonPoll poll);
+}
@@ -7,7 +7,15 @@ import java.lang.ProcessBuilder.Redirect;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jdt.annotation.Nullable;
 
@@ -17,6 +25,12 @@ import org.eclipse.jdt.annotation.Nullable;
  * support for this. Instead, we have to spin up a separate JVM into which the
  * method is actually executed.
  *
+ * Starting a fresh JVM for every method is expensive, especially when the
+ * method itself is short-lived. Therefore, methods can also be executed on a
+ * {@link Pool} of long-lived worker JVMs which accept repeated invocations.
+ * Only a worker which times out (or dies) is killed, and it is replaced the next
+ * time a worker is needed.
+ *
  * @author David J. Pearce
  *
  */
@@ -30,6 +44,50 @@ public class ProcessTimerMethod {
 	 * CLASSPATH to use for JVM being created.
 	 */
 	public static @Nullable String CLASSPATH = System.getProperty("java.class.path"); //$NON-NLS-1$
+	/**
+	 * System properties whose names start with this are passed on to each JVM
+	 * created, so that settings reach the method being executed.
+	 */
+	public static String PROPERTY_PREFIX = "tinyboycov."; //$NON-NLS-1$
+	/**
+	 * Number of worker JVMs in the pool used by
+	 * {@link #execPooled(long, String, String, Object...)}.
+	 */
+	public static int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Argument given to a new JVM to indicate it should run as a pooled worker.
+	 */
+	private static final String WORKER = "-worker"; //$NON-NLS-1$
+	/**
+	 * Marks a reply from a worker which holds the exit code of a method.
+	 */
+	private static final byte EXIT = 0;
+	/**
+	 * Marks a reply from a worker which holds output the method printed on
+	 * standard output.
+	 */
+	private static final byte STDOUT = 1;
+	/**
+	 * Marks a reply from a worker which holds output the method printed on
+	 * standard error.
+	 */
+	private static final byte STDERR = 2;
+	/**
+	 * The shared pool of worker JVMs, which is created on first use.
+	 */
+	private static @Nullable Pool POOL;
+	/**
+	 * Maximum number of bytes of standard output (and, separately, standard error)
+	 * retained from a method. Beyond this, only the most recent output is kept.
+	 */
+	public static int MAX_OUTPUT = 1 << 20;
+	/**
+	 * Flag to indicate whether output from a method (whether on a fresh JVM or a
+	 * pooled worker) should also be streamed to this JVM's standard output and
+	 * error as it is produced, as the output of a fresh JVM always used to be.
+	 * The output is retained in the outcome either way.
+	 */
+	public static boolean ECHO = true;
 
 	/**
 	 * Execute a given method with zero or more arguments whilst ensuring a timeout.
@@ -42,44 +100,33 @@ public class ProcessTimerMethod {
 	 * @throws Throwable If something goes wrong.
 	 */
 	public static Outcome exec(long timeout, String receiver, String method, Object... args) throws Throwable {
-		// ===================================================
-		// Construct command
-		// ===================================================
-		ArrayList<@Nullable String> command = new ArrayList<>();
-		command.add(JAVA_CMD);
-		command.add("-ea"); // enable assertions by default //$NON-NLS-1$
-		command.add("-cp"); //$NON-NLS-1$
-		command.add(CLASSPATH);
-		command.add("tinyboycov.util.ProcessTimerMethod"); //$NON-NLS-1$
-
 		// ===================================================
 		// Construct the process
 		// ===================================================
-		ProcessBuilder builder = new ProcessBuilder(command);
-		builder.redirectError(Redirect.INHERIT);
-		builder.redirectOutput(Redirect.INHERIT);
+		ProcessBuilder builder = new ProcessBuilder(command());
 		Process child = builder.start();
+		// Drain output as it is produced, so the child never blocks on a full pipe
+		Drainer stdout = new Drainer(child.getInputStream(), new Capture(MAX_OUTPUT, ECHO ? System.out : null));
+		Drainer stderr = new Drainer(child.getErrorStream(), new Capture(MAX_OUTPUT, ECHO ? System.err : null));
 		try {
 			// first, send over the method in question + args
-			OutputStream output = child.getOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(output);
-			oos.writeObject(receiver);
-			oos.writeObject(method);
-			oos.writeObject(args);
-			oos.flush();
-			output.flush();
-			// second, read the result whilst checking for a timeout
-			try (InputStream input = child.getInputStream(); InputStream error = child.getErrorStream()) {
-				assert input != null;
-				assert error != null;
-				boolean success = child.waitFor(timeout, TimeUnit.MILLISECONDS);
-				byte[] stdout = readInputStream(input);
-				byte[] stderr = readInputStream(error);
-				oos.close();
-				output.close();
-				error.close();
-				return new Outcome(success ? Integer.valueOf(child.exitValue()) : null, stdout, stderr);
+			try (OutputStream output = child.getOutputStream();
+					ObjectOutputStream oos = new ObjectOutputStream(output)) {
+				oos.writeObject(receiver);
+				oos.writeObject(method);
+				oos.writeObject(args);
+				oos.flush();
+			}
+			// second, wait for the result whilst checking for a timeout
+			boolean success = child.waitFor(timeout, TimeUnit.MILLISECONDS);
+			if (!success) {
+				// Destroying the child closes its output, which stops the drainers
+				child.destroyForcibly();
 			}
+			stdout.join();
+			stderr.join();
+			return new Outcome(success ? Integer.valueOf(child.exitValue()) : null, stdout.toByteArray(),
+					stderr.toByteArray());
 		} finally {
 			// make sure child process is destroyed.
 			child.destroy();
@@ -87,22 +134,198 @@ public class ProcessTimerMethod {
 	}
 
 	/**
-	 * Read all available data from an input stream.
+	 * Execute a given method with zero or more arguments whilst ensuring a timeout,
+	 * using a worker JVM from the shared pool rather than starting a fresh one.
+	 * Note that, unlike {@link #exec(long, String, String, Object...)}, any static
+	 * state left behind by the method is visible to later methods executed on the
+	 * same worker.
 	 *
-	 * @param input Stream from which to read.
-	 * @return byte array containing data read.
-	 * @throws IOException If something goes wrong.
+	 * @param timeout  Timeout (in ms).
+	 * @param receiver Identifies enclosing class.
+	 * @param method   Identifies method name
+	 * @param args     Arguments to supply to method.
+	 * @return Outcome of executing the method.
+	 * @throws Throwable If something goes wrong.
+	 */
+	public static Outcome execPooled(long timeout, String receiver, String method, Object... args) throws Throwable {
+		Pool pool;
+		synchronized (ProcessTimerMethod.class) {
+			pool = POOL;
+			if (pool == null) {
+				Pool p = new Pool(POOL_SIZE);
+				// Make sure workers do not outlive this JVM
+				Runtime.getRuntime().addShutdownHook(new Thread(p::close));
+				POOL = pool = p;
+			}
+		}
+		return pool.exec(timeout, receiver, method, args);
+	}
+
+	/**
+	 * Construct the command used to start a new JVM.
+	 *
+	 * @param args Arguments to pass to the new JVM.
+	 * @return The command.
 	 */
-	private static byte[] readInputStream(InputStream input) throws IOException {
-		byte[] buffer = new byte[1024];
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		while (input.available() > 0) {
-			int count = input.read(buffer);
-			output.write(buffer, 0, count);
+	private static ArrayList<@Nullable String> command(String... args) {
+		ArrayList<@Nullable String> command = new ArrayList<>();
+		command.add(JAVA_CMD);
+		command.add("-ea"); // enable assertions by default //$NON-NLS-1$
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(PROPERTY_PREFIX)) {
+				command.add("-D" + name + "=" + System.getProperty(name)); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		command.add("-cp"); //$NON-NLS-1$
+		command.add(CLASSPATH);
+		command.add("tinyboycov.util.ProcessTimerMethod"); //$NON-NLS-1$
+		for (String arg : args) {
+			command.add(arg);
+		}
+		return command;
+	}
+
+	/**
+	 * Responsible for reading everything written to a given stream by a child
+	 * process until it is closed, retaining at most {@link #MAX_OUTPUT} bytes.
+	 *
+	 * @author niraj
+	 *
+	 */
+	private static class Drainer extends Thread {
+		/**
+		 * Stream being drained.
+		 */
+		private final InputStream input;
+		/**
+		 * Retains (and possibly echoes) the output read so far.
+		 */
+		private final Capture capture;
+
+		/**
+		 * Start draining a given stream.
+		 *
+		 * @param input   Stream to drain.
+		 * @param capture Where to write the output read.
+		 */
+		public Drainer(InputStream input, Capture capture) {
+			this.input = input;
+			this.capture = capture;
+			setDaemon(true);
+			start();
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[8192];
+			try (InputStream in = this.input) {
+				int count;
+				while ((count = in.read(buffer)) >= 0) {
+					this.capture.write(buffer, 0, count);
+				}
+			} catch (IOException ex) {
+				// Stream closed because child was destroyed
+			}
+		}
+
+		/**
+		 * Get the output retained. This should only be called once draining has
+		 * finished.
+		 *
+		 * @return byte array containing data read.
+		 */
+		public byte[] toByteArray() {
+			return this.capture.toByteArray();
+		}
+	}
+
+	/**
+	 * A bounded buffer which retains only the most recent bytes written to it,
+	 * overwriting the oldest once full. Storage grows as needed, so small outputs
+	 * only use a small buffer. Everything written can also be echoed to another
+	 * stream as it arrives.
+	 *
+	 * @author niraj
+	 *
+	 */
+	private static class Capture extends OutputStream {
+		/**
+		 * Maximum number of bytes retained.
+		 */
+		private final int capacity;
+		/**
+		 * Storage, used as a ring once it reaches full capacity.
+		 */
+		private byte[] bytes = new byte[256];
+		/**
+		 * Total number of bytes written.
+		 */
+		private long total;
+		/**
+		 * Stream to which output is echoed as it arrives (if any).
+		 */
+		private final @Nullable PrintStream echo;
+
+		/**
+		 * Create an empty buffer.
+		 *
+		 * @param capacity Maximum number of bytes retained.
+		 * @param echo     Stream to echo output to, or <code>null</code> for none.
+		 */
+		public Capture(int capacity, @Nullable PrintStream echo) {
+			this.capacity = Math.max(1, capacity);
+			this.echo = echo;
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			PrintStream e = this.echo;
+			if (e != null) {
+				e.write(b, off, len);
+				e.flush();
+			}
+			if (this.total + len > this.bytes.length && this.bytes.length < this.capacity) {
+				// Grow storage (which is not yet being used as a ring)
+				long size = Math.max(this.total + len, 2L * this.bytes.length);
+				this.bytes = Arrays.copyOf(this.bytes, (int) Math.min(size, this.capacity));
+			}
+			int n = this.bytes.length;
+			// Only the last n bytes of a large write can be retained
+			int skip = Math.max(0, len - n);
+			long pos = this.total + skip;
+			for (int i = off + skip; i < off + len;) {
+				int index = (int) (pos % n);
+				int count = Math.min(off + len - i, n - index);
+				System.arraycopy(b, i, this.bytes, index, count);
+				i += count;
+				pos += count;
+			}
+			this.total += len;
+		}
+
+		/**
+		 * Get the bytes retained, in the order written. If any were discarded, this
+		 * is noted at the beginning.
+		 *
+		 * @return byte array containing data retained.
+		 */
+		public synchronized byte[] toByteArray() {
+			int n = this.bytes.length;
+			if (this.total <= n) {
+				return Arrays.copyOf(this.bytes, (int) this.total);
+			}
+			byte[] note = ("... (" + (this.total - n) + " bytes omitted)\n").getBytes(); //$NON-NLS-1$ //$NON-NLS-2$
+			byte[] out = Arrays.copyOf(note, note.length + n);
+			int start = (int) (this.total % n);
+			System.arraycopy(this.bytes, start, out, note.length, n - start);
+			System.arraycopy(this.bytes, 0, out, note.length + n - start, start);
+			return out;
 		}
-		byte[] out = output.toByteArray();
-		assert out != null;
-		return out;
 	}
 
 	/**
@@ -112,7 +335,25 @@ public class ProcessTimerMethod {
 	 * @throws IOException If something goes wrong.
 	 */
 	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals(WORKER)) {
+			work();
+			return;
+		}
 		ObjectInputStream ois = new ObjectInputStream(System.in);
+		int exitCode = invoke(ois);
+		// Finally write the exit code
+		System.exit(exitCode);
+
+	}
+
+	/**
+	 * Read a method and its arguments from a given stream, and then invoke it.
+	 *
+	 * @param ois Stream from which to read the method.
+	 * @return Exit code (where 0 = success).
+	 * @throws EOFException If the stream has no more methods.
+	 */
+	private static int invoke(ObjectInputStream ois) throws EOFException {
 		int exitCode=0;
 		try {
 			String receiver = (String) ois.readObject();
@@ -131,13 +372,288 @@ public class ProcessTimerMethod {
 		} catch(InvocationTargetException e) {
 			e.getCause().printStackTrace();
 			exitCode=-1;
+		} catch (EOFException e) {
+			throw e;
 		} catch (Exception e) {
 			e.printStackTrace();
 			exitCode=-2;
 		}
-		// Finally write the exit code
-		System.exit(exitCode);
+		return exitCode;
+	}
+
+	/**
+	 * Called when the new JVM is a pooled worker. This repeatedly reads a method
+	 * from standard input, invokes it and writes back its exit code. Since
+	 * standard output is used for replies, output printed by a method is not
+	 * written directly. Instead, it is forwarded as replies as soon as it is
+	 * printed, so that whatever was printed is not lost if the method times out.
+	 * The worker stops when standard input is closed.
+	 *
+	 * @throws IOException If something goes wrong.
+	 */
+	private static void work() throws IOException {
+		ObjectOutputStream replies = new ObjectOutputStream(System.out);
+		replies.flush();
+		ObjectInputStream ois = new ObjectInputStream(System.in);
+		System.setOut(new PrintStream(new Forwarder(replies, STDOUT), true));
+		System.setErr(new PrintStream(new Forwarder(replies, STDERR), true));
+		while (true) {
+			int exitCode;
+			try {
+				exitCode = invoke(ois);
+			} catch (EOFException e) {
+				break;
+			}
+			System.out.flush();
+			System.err.flush();
+			synchronized (replies) {
+				replies.writeByte(EXIT);
+				replies.writeInt(exitCode);
+				replies.flush();
+			}
+		}
+	}
+
+	/**
+	 * Forwards everything written to it by a method executing on a pooled worker
+	 * as replies to the pool, each marked with the stream it was written to.
+	 *
+	 * @author niraj
+	 *
+	 */
+	private static class Forwarder extends OutputStream {
+		/**
+		 * Stream on which replies are sent, which is shared by every forwarder.
+		 */
+		private final ObjectOutputStream replies;
+		/**
+		 * Marks which stream the output was written to.
+		 */
+		private final byte stream;
+
+		/**
+		 * Create a forwarder for a given stream.
+		 *
+		 * @param replies Stream on which replies are sent.
+		 * @param stream  Either {@link #STDOUT} or {@link #STDERR}.
+		 */
+		public Forwarder(ObjectOutputStream replies, byte stream) {
+			this.replies = replies;
+			this.stream = stream;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (this.replies) {
+				this.replies.writeByte(this.stream);
+				this.replies.writeInt(len);
+				this.replies.write(b, off, len);
+				this.replies.flush();
+			}
+		}
+	}
+
+	/**
+	 * A fixed-size pool of long-lived worker JVMs. Workers are started lazily, and
+	 * each executes one method at a time. A worker which fails to reply within the
+	 * timeout is killed, and a fresh worker is started in its place when next
+	 * needed.
+	 *
+	 * @author niraj
+	 *
+	 */
+	public static class Pool implements Closeable {
+		/**
+		 * Threads used to wait for replies from workers, so that waiting can be
+		 * abandoned on a timeout.
+		 */
+		private final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		});
+		/**
+		 * Limits the number of workers in use (or idle) at any one time.
+		 */
+		private final Semaphore permits;
+		/**
+		 * Workers which are alive but not currently executing a method.
+		 */
+		private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Create a new pool.
+		 *
+		 * @param size Maximum number of workers.
+		 */
+		public Pool(int size) {
+			this.permits = new Semaphore(Math.max(1, size));
+		}
+
+		/**
+		 * Execute a given method with zero or more arguments on a worker whilst
+		 * ensuring a timeout. This blocks until a worker is available.
+		 *
+		 * @param timeout  Timeout (in ms).
+		 * @param receiver Identifies enclosing class.
+		 * @param method   Identifies method name
+		 * @param args     Arguments to supply to method.
+		 * @return Outcome of executing the method.
+		 * @throws Throwable If something goes wrong.
+		 */
+		public Outcome exec(long timeout, String receiver, String method, Object... args) throws Throwable {
+			this.permits.acquire();
+			try {
+				Worker worker = take();
+				Capture stdout = new Capture(MAX_OUTPUT, ECHO ? System.out : null);
+				Capture stderr = new Capture(MAX_OUTPUT, ECHO ? System.err : null);
+				boolean reusable = false;
+				try {
+					worker.send(receiver, method, args);
+					Future<Integer> reply = this.readers.submit(() -> worker.receive(stdout, stderr));
+					try {
+						Integer exitCode = reply.get(timeout, TimeUnit.MILLISECONDS);
+						reusable = true;
+						return new Outcome(exitCode, stdout.toByteArray(), stderr.toByteArray());
+					} catch (TimeoutException e) {
+						reply.cancel(true);
+						// Keep whatever was printed before the timeout
+						return new Outcome(null, stdout.toByteArray(), stderr.toByteArray());
+					}
+				} catch (ExecutionException e) {
+					// Worker died, so report its exit code
+					if (e.getCause() instanceof EOFException) {
+						return new Outcome(Integer.valueOf(worker.process.waitFor()), stdout.toByteArray(),
+								stderr.toByteArray());
+					}
+					throw e.getCause();
+				} finally {
+					if (reusable) {
+						this.idle.add(worker);
+					} else {
+						worker.process.destroyForcibly();
+					}
+				}
+			} finally {
+				this.permits.release();
+			}
+		}
+
+		/**
+		 * Take an idle worker which is still alive, or start a new one.
+		 *
+		 * @return A worker.
+		 * @throws IOException If something goes wrong.
+		 */
+		private Worker take() throws IOException {
+			Worker worker;
+			while ((worker = this.idle.poll()) != null) {
+				if (worker.process.isAlive()) {
+					return worker;
+				}
+			}
+			return new Worker();
+		}
+
+		/**
+		 * Kill all idle workers.
+		 */
+		@Override
+		public void close() {
+			Worker worker;
+			while ((worker = this.idle.poll()) != null) {
+				worker.process.destroyForcibly();
+			}
+			this.readers.shutdownNow();
+		}
+	}
+
+	/**
+	 * A long-lived JVM which executes methods sent to it one at a time.
+	 *
+	 * @author niraj
+	 *
+	 */
+	private static class Worker {
+		/**
+		 * The JVM itself.
+		 */
+		private final Process process;
+		/**
+		 * Stream on which methods are sent.
+		 */
+		private final ObjectOutputStream requests;
+		/**
+		 * Stream on which replies are received, which is opened on the first reply
+		 * since that blocks until the JVM has started.
+		 */
+		private @Nullable ObjectInputStream replies;
+
+		/**
+		 * Start a new worker.
+		 *
+		 * @throws IOException If something goes wrong.
+		 */
+		public Worker() throws IOException {
+			ProcessBuilder builder = new ProcessBuilder(command(WORKER));
+			builder.redirectError(Redirect.INHERIT);
+			Process p = builder.start();
+			assert p != null;
+			this.process = p;
+			this.requests = new ObjectOutputStream(p.getOutputStream());
+		}
+
+		/**
+		 * Send a method to be executed.
+		 *
+		 * @param receiver Identifies enclosing class.
+		 * @param method   Identifies method name
+		 * @param args     Arguments to supply to method.
+		 * @throws IOException If something goes wrong.
+		 */
+		public void send(String receiver, String method, Object[] args) throws IOException {
+			this.requests.writeObject(receiver);
+			this.requests.writeObject(method);
+			this.requests.writeObject(args);
+			this.requests.flush();
+			// Avoid holding onto arguments already sent
+			this.requests.reset();
+		}
 
+		/**
+		 * Wait for the method last sent to finish, retaining (and possibly echoing)
+		 * everything it prints as it arrives.
+		 *
+		 * @param stdout Retains what the method prints on standard output.
+		 * @param stderr Retains what the method prints on standard error.
+		 * @return Exit code of the method (where 0 = success).
+		 * @throws IOException If something goes wrong.
+		 */
+		public Integer receive(Capture stdout, Capture stderr) throws IOException {
+			ObjectInputStream ois = this.replies;
+			if (ois == null) {
+				this.replies = ois = new ObjectInputStream(this.process.getInputStream());
+			}
+			byte[] buffer = new byte[8192];
+			while (true) {
+				byte stream = ois.readByte();
+				if (stream == EXIT) {
+					return Integer.valueOf(ois.readInt());
+				}
+				Capture capture = stream == STDOUT ? stdout : stderr;
+				for (int remaining = ois.readInt(); remaining > 0;) {
+					int count = Math.min(remaining, buffer.length);
+					ois.readFully(buffer, 0, count);
+					capture.write(buffer, 0, count);
+					remaining -= count;
+				}
+			}
+		}
 	}
 
 
@@ -0,0 +1,44 @@
+package tinyboycov.util;
+
+import java.util.Iterator;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * An input which can be resumed part way through, rather than being executed
+ * from reset. Inputs are read as a sequence of steps, each made up of
+ * {@link FuzzEmulator#READS_PER_STEP} wire reads. When a {@link FuzzDriver}
+ * executes a resumable input, it first asks for a snapshot to start from, and
+ * then hands back a snapshot taken once every step of the input has been read.
+ * That snapshot can then be used to resume any longer input sharing the same
+ * steps.
+ *
+ * @author niraj
+ *
+ */
+public interface Resumable extends Iterator<Boolean> {
+  /**
+   * Get the number of steps in this input.
+   *
+   * @return the number of steps.
+   */
+  int length();
+
+  /**
+   * Choose a snapshot to begin execution from. If one is returned, then the next
+   * value read from this input must be the first wire read of step
+   * {@link Snapshot#getSteps()}.
+   *
+   * @return The snapshot to resume from, or <code>null</code> to start from
+   *         reset.
+   */
+  @Nullable
+  Snapshot resume();
+
+  /**
+   * Accept a snapshot taken immediately after the last step of this input was
+   * read.
+   *
+   * @param snapshot The snapshot taken.
+   */
+  void checkpoint(Snapshot snapshot);
+}
@@ -0,0 +1,175 @@
+package tinyboycov.util;
+
+import java.util.BitSet;
+
+/**
+ * A copy of the complete state of a {@link FuzzEmulator} at some point part way
+ * through executing an input, from which execution can later be resumed. This
+ * includes the processor registers, data memory, the I/O port directions, the
+ * state of every output wire, the code memory read so far, the number of times
+ * each instruction has been executed and the edges taken. A snapshot is
+ * immutable once taken.
+ *
+ * @author niraj
+ *
+ */
+public final class Snapshot {
+  /**
+   * Number of input steps which had been read when the snapshot was taken.
+   */
+  private final int steps;
+
+  /**
+   * The program counter.
+   */
+  private final int pc;
+
+  /**
+   * The processor's internal status register.
+   */
+  private final int sreg;
+
+  /**
+   * Contents of data memory (registers, I/O space and SRAM), excluding the I/O
+   * port registers.
+   */
+  private final byte[] data;
+
+  /**
+   * Data direction register of each I/O port.
+   */
+  private final byte[] directions;
+
+  /**
+   * State of each output wire.
+   */
+  private final byte[] wires;
+
+  /**
+   * Code memory read so far.
+   */
+  private final BitSet coverage;
+
+  /**
+   * Number of times each instruction executed so far has been executed, as its
+   * address (in words) shifted up by eight bits, or'd with the count.
+   */
+  private final int[] hits;
+
+  /**
+   * Edges taken so far (see {@link EdgeCoverage}).
+   */
+  private final BitSet edges;
+
+  /**
+   * Construct a new snapshot. This is only done by the emulator.
+   *
+   * @param steps      Number of input steps read so far.
+   * @param pc         The program counter.
+   * @param sreg       The internal status register.
+   * @param data       Contents of data memory.
+   * @param directions Data direction register of each I/O port.
+   * @param wires      State of each output wire.
+   * @param coverage   Code memory read so far.
+   * @param hits       Number of times each instruction executed so far has been
+   *                   executed.
+   * @param edges      Edges taken so far.
+   */
+  Snapshot(int steps, int pc, int sreg, byte[] data, byte[] directions, byte[] wires,
+      BitSet coverage, int[] hits, BitSet edges) {
+    this.steps = steps;
+    this.pc = pc;
+    this.sreg = sreg;
+    this.data = data;
+    this.directions = directions;
+    this.wires = wires;
+    this.coverage = coverage;
+    this.hits = hits;
+    this.edges = edges;
+  }
+
+  /**
+   * Get the number of input steps which had been read when this snapshot was
+   * taken. An input resuming from this snapshot must continue from that step.
+   *
+   * @return the number of steps read.
+   */
+  public int getSteps() {
+    return this.steps;
+  }
+
+  /**
+   * Get the program counter.
+   *
+   * @return the program counter.
+   */
+  int getPC() {
+    return this.pc;
+  }
+
+  /**
+   * Get the internal status register.
+   *
+   * @return the status register.
+   */
+  int getStatusRegister() {
+    return this.sreg;
+  }
+
+  /**
+   * Get the contents of data memory. The returned array must not be modified.
+   *
+   * @return the data memory.
+   */
+  byte[] getData() {
+    return this.data;
+  }
+
+  /**
+   * Get the data direction register of each I/O port. The returned array must
+   * not be modified.
+   *
+   * @return the port directions.
+   */
+  byte[] getDirections() {
+    return this.directions;
+  }
+
+  /**
+   * Get the state of each output wire. The returned array must not be modified.
+   *
+   * @return the wire states.
+   */
+  byte[] getWires() {
+    return this.wires;
+  }
+
+  /**
+   * Get the code memory read so far. The returned set must not be modified.
+   *
+   * @return the coverage so far.
+   */
+  BitSet getCoverage() {
+    return this.coverage;
+  }
+
+  /**
+   * Get the number of times each instruction executed so far has been
+   * executed. The returned array must not be modified.
+   *
+   * @return the address of each instruction (in words) shifted up by eight
+   *         bits, or'd with its count.
+   */
+  int[] getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Get the edges taken so far. The returned set must not be modified.
+   *
+   * @return the edges.
+   */
+  BitSet getEdges() {
+    return this.edges;
+  }
+}